@@ -0,0 +1,226 @@
+package server;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/***
+ * Logger for the message hot path. The level check runs on the calling thread
+ * and the message plus its arguments are parked in a preallocated ring buffer.
+ * A background thread builds the LogRecord and hands it to java.util.logging,
+ * so string building, Payload.toString() and console I/O never happen while a
+ * payload is being handled.
+ *
+ * Messages use the java.util.logging {0} style, i.e.
+ * log.log(Level.INFO, "Removed client {0}", id), and the arguments are only
+ * formatted if the record is actually written. If the ring is full the record
+ * is dropped (and counted) instead of blocking the caller.
+ *
+ * The writer parks while the ring is empty and the producer that makes it
+ * non-empty unparks it, so an idle server doesn't wake up just to find nothing
+ * to write.
+ */
+public class AsyncLog {
+	private final static int RING_SIZE = 4096;// power of two
+	private final static int MASK = RING_SIZE - 1;
+	private final static long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private final static Slot[] ring = new Slot[RING_SIZE];
+	private final static AtomicLong claimed = new AtomicLong();
+	private final static AtomicLong dropped = new AtomicLong();
+	private static volatile long written = 0;// only the writer thread moves this
+	private static volatile boolean writerParked = false;
+	private final static Thread writer;
+
+	static {
+		for (int i = 0; i < RING_SIZE; i++) {
+			ring[i] = new Slot();
+		}
+		writer = new Thread(AsyncLog::drain, "async-log");
+		writer.setDaemon(true);
+		writer.start();
+		// give queued records a chance to reach the handlers on exit
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(TimeUnit.SECONDS.toMillis(1))));
+	}
+
+	/***
+	 * One entry in the ring. The fields are written by the producer that claimed
+	 * the slot and published by the volatile write to sequence.
+	 */
+	private static class Slot {
+		volatile long sequence = -1;
+		Logger logger;
+		Level level;
+		String message;
+		int argCount;
+		Object arg0;
+		Object arg1;
+		Object arg2;
+		Throwable thrown;
+		long millis;
+
+		LogRecord toRecord() {
+			LogRecord record = new LogRecord(level, message);
+			record.setLoggerName(logger.getName());
+			// we know who logged it, don't let the record walk the writer's stack
+			record.setSourceClassName(logger.getName());
+			record.setInstant(Instant.ofEpochMilli(millis));
+			record.setThrown(thrown);
+			if (argCount == 1) {
+				record.setParameters(new Object[] { arg0 });
+			} else if (argCount == 2) {
+				record.setParameters(new Object[] { arg0, arg1 });
+			} else if (argCount == 3) {
+				record.setParameters(new Object[] { arg0, arg1, arg2 });
+			}
+			return record;
+		}
+
+		void clear() {
+			logger = null;
+			level = null;
+			message = null;
+			arg0 = null;
+			arg1 = null;
+			arg2 = null;
+			thrown = null;
+		}
+	}
+
+	private final Logger logger;
+
+	private AsyncLog(Logger logger) {
+		this.logger = logger;
+	}
+
+	public static AsyncLog getLogger(String name) {
+		return new AsyncLog(Logger.getLogger(name));
+	}
+
+	public boolean isLoggable(Level level) {
+		return logger.isLoggable(level);
+	}
+
+	public void log(Level level, String message) {
+		if (logger.isLoggable(level)) {
+			publish(level, message, 0, null, null, null, null);
+		}
+	}
+
+	public void log(Level level, String message, Object arg0) {
+		if (logger.isLoggable(level)) {
+			publish(level, message, 1, arg0, null, null, null);
+		}
+	}
+
+	public void log(Level level, String message, Object arg0, Object arg1) {
+		if (logger.isLoggable(level)) {
+			publish(level, message, 2, arg0, arg1, null, null);
+		}
+	}
+
+	public void log(Level level, String message, Object arg0, Object arg1, Object arg2) {
+		if (logger.isLoggable(level)) {
+			publish(level, message, 3, arg0, arg1, arg2, null);
+		}
+	}
+
+	public void log(Level level, String message, Throwable thrown) {
+		if (logger.isLoggable(level)) {
+			publish(level, message, 0, null, null, null, thrown);
+		}
+	}
+
+	public void log(Level level, String message, Object arg0, Throwable thrown) {
+		if (logger.isLoggable(level)) {
+			publish(level, message, 1, arg0, null, null, thrown);
+		}
+	}
+
+	private void publish(Level level, String message, int argCount, Object arg0, Object arg1, Object arg2,
+			Throwable thrown) {
+		long seq;
+		do {
+			seq = claimed.get();
+			if (seq - written >= RING_SIZE) {
+				// writer is behind, don't make the caller wait for the console
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!claimed.compareAndSet(seq, seq + 1));
+		Slot slot = ring[(int) (seq & MASK)];
+		slot.logger = logger;
+		slot.level = level;
+		slot.message = message;
+		slot.argCount = argCount;
+		slot.arg0 = arg0;
+		slot.arg1 = arg1;
+		slot.arg2 = arg2;
+		slot.thrown = thrown;
+		slot.millis = System.currentTimeMillis();
+		slot.sequence = seq;
+		// read after publishing, the writer sets it before it looks again
+		if (writerParked) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/***
+	 * Background loop, writes records in the order they were claimed
+	 */
+	private static void drain() {
+		long next = 0;
+		long reportedDrops = 0;
+		while (true) {
+			Slot slot = ring[(int) (next & MASK)];
+			if (slot.sequence != next) {
+				long drops = dropped.get();
+				if (drops != reportedDrops) {
+					Logger.getLogger(AsyncLog.class.getName()).log(Level.WARNING,
+							"Dropped " + (drops - reportedDrops) + " log records");
+					reportedDrops = drops;
+				}
+				writerParked = true;
+				// look again, whoever published before we set it won't unpark us
+				if (slot.sequence != next) {
+					LockSupport.park();
+				}
+				writerParked = false;
+				continue;
+			}
+			Logger target = slot.logger;
+			LogRecord record = slot.toRecord();
+			slot.clear();
+			written = ++next;
+			try {
+				target.log(record);
+			} catch (RuntimeException e) {
+				// a broken handler shouldn't kill the writer
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/***
+	 * Waits (up to timeoutMillis) for everything logged so far to be written
+	 *
+	 * @param timeoutMillis
+	 */
+	public static void flush(long timeoutMillis) {
+		long target = claimed.get();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (written < target && System.currentTimeMillis() < deadline) {
+			LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+	}
+
+	/***
+	 * @return how many records were dropped because the ring was full
+	 */
+	public static long getDroppedCount() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,74 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/***
+ * A payload that goes out to many clients. The message is formatted once by
+ * the Room and each wire version is encoded at most once, so every recipient
+ * after the first just writes the same bytes.
+ *
+ * The payload must not be modified after the Broadcast is created.
+ */
+public class Broadcast {
+	private final Payload payload;
+	// written once per version by whichever recipient needs it first, then shared
+	private final AtomicReferenceArray<ByteBuffer> frames = new AtomicReferenceArray<ByteBuffer>(
+			PayloadFrames.CURRENT_VERSION + 1);
+	private long sequence = -1;// position in the room's RecentMessages ring
+
+	public Broadcast(PayloadType type, String clientName, String message) {
+		this(type, clientName, message, 0);
+	}
+
+	public Broadcast(PayloadType type, String clientName, String message, long timestamp) {
+		this(type, clientName, message, timestamp, 0);
+	}
+
+	/***
+	 * @param offset the message's offset in the room history
+	 */
+	public Broadcast(PayloadType type, String clientName, String message, long timestamp, long offset) {
+		payload = new Payload();
+		payload.setOffset(offset);
+		payload.setPayloadType(type);
+		payload.setClientName(clientName);
+		payload.setMessage(message);
+		payload.setTimestamp(timestamp);
+	}
+
+	public Payload getPayload() {
+		return payload;
+	}
+
+	protected long getSequence() {
+		return sequence;
+	}
+
+	/***
+	 * Only RecentMessages sets this, right before it publishes the broadcast
+	 */
+	protected void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	/***
+	 * Returns the encoded frame for the given version. The returned buffer is a
+	 * view with its own position so callers can write it concurrently; callers
+	 * must not modify its contents.
+	 *
+	 * @param version
+	 * @return frame positioned at 0
+	 * @throws IOException
+	 */
+	public ByteBuffer getFrame(int version) throws IOException {
+		ByteBuffer frame = frames.get(version);
+		if (frame == null) {
+			// racing threads may both encode, only the first one's frame is kept
+			ByteBuffer encoded = PayloadFrames.encode(payload, version);
+			frame = frames.compareAndSet(version, null, encoded) ? encoded : frames.get(version);
+		}
+		return frame.duplicate();
+	}
+}
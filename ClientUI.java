@@ -4,7 +4,6 @@ import java.awt.BorderLayout;
 import java.awt.CardLayout;
 import java.awt.Component;
 import java.awt.Dimension;
-import java.awt.FontMetrics;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -15,24 +14,25 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.swing.AbstractAction;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
-import javax.swing.JEditorPane;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
-import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
 
 public class ClientUI extends JFrame implements Event {
 	/**
@@ -41,7 +41,7 @@ public class ClientUI extends JFrame implements Event {
 	private static final long serialVersionUID = 1L;
 	CardLayout card;
 	ClientUI self;
-	JPanel textArea;
+	TranscriptView textArea;
 	JPanel userPanel;
 	List<User> users = new ArrayList<User>();
 	private final static Logger log = Logger.getLogger(ClientUI.class.getName());
@@ -49,8 +49,26 @@ public class ClientUI extends JFrame implements Event {
 	String username;
 	RoomsPanel roomsPanel;
 	JMenuBar menu;
+	private final static int DEFAULT_SCROLLBACK = 5000;
+	private final int scrollback;
+	// where connect() went, reconnect() goes back there
+	private String host;
+	private String port;
+	// first wait before reconnecting, doubled after every failed try up to the max
+	private final static long RECONNECT_DELAY_MS = 1000;
+	private final static long MAX_RECONNECT_DELAY_MS = 30000;
+	private final AtomicBoolean reconnecting = new AtomicBoolean();
 
 	public ClientUI(String title) {
+		this(title, DEFAULT_SCROLLBACK);
+	}
+
+	/***
+	 * @param title
+	 * @param scrollback most chat lines kept on screen, older ones are dropped
+	 */
+	public ClientUI(String title, int scrollback) {
+		this.scrollback = scrollback;
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		menu = new JMenuBar();
 		JMenu roomsMenu = new JMenu("Rooms");
@@ -153,9 +171,7 @@ public class ClientUI extends JFrame implements Event {
 		JPanel panel = new JPanel();
 		panel.setLayout(new BorderLayout());
 
-		textArea = new JPanel();
-		textArea.setLayout(new BoxLayout(textArea, BoxLayout.Y_AXIS));
-		textArea.setAlignmentY(Component.BOTTOM_ALIGNMENT);
+		textArea = new TranscriptView(scrollback);
 		JScrollPane scroll = new JScrollPane(textArea);
 		scroll.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
 		scroll.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED);
@@ -241,18 +257,6 @@ public class ClientUI extends JFrame implements Event {
 		userPanel.repaint();
 	}
 
-	int calcHeightForText(String str) {
-		FontMetrics metrics = self.getGraphics().getFontMetrics(self.getFont());
-		int hgt = metrics.getHeight();
-		int adv = metrics.stringWidth(str);
-		final int PIXEL_PADDING = 6;
-		Dimension size = new Dimension(adv, hgt + PIXEL_PADDING);
-		final float PADDING_PERCENT = 1.1f;
-		int mult = (int) Math.floor(size.width / (textArea.getSize().width * PADDING_PERCENT));
-		mult++;
-		return size.height * mult;
-	}
-
 	void exportChat() {
 		try {
 			File f = new File("chatistory.txt");
@@ -265,12 +269,8 @@ public class ClientUI extends JFrame implements Event {
 			System.err.println(e);
 		}
 		StringBuilder sb = new StringBuilder();
-		Component[] comps = textArea.getComponents();
-		for (Component msg : comps) {
-			JEditorPane jep = (JEditorPane) msg;
-			if (jep != null) {
-				sb.append(jep.getText() + System.lineSeparator());
-			}
+		for (String msg : textArea.getMessages()) {
+			sb.append(msg + System.lineSeparator());
 		}
 		try {
 			FileWriter fw = new FileWriter("chathistory.txt");
@@ -282,20 +282,9 @@ public class ClientUI extends JFrame implements Event {
 	}
 
 	void addMessage(String str) {
-
-		JEditorPane entry = new JEditorPane();
-		entry.setContentType("text/html");
-		entry.setEditable(false);
-		entry.setText(str);
-		Dimension d = new Dimension(textArea.getSize().width, calcHeightForText(str));
-		entry.setMinimumSize(d);
-		entry.setPreferredSize(d);
-		entry.setMaximumSize(d);
-		textArea.add(entry);
-
-		pack();
-		JScrollBar sb = ((JScrollPane) textArea.getParent().getParent()).getVerticalScrollBar();
-		sb.setValue(sb.getMaximum());
+		// called from the socket thread, the transcript only renders visible rows so
+		// appending doesn't need to relayout the frame
+		SwingUtilities.invokeLater(() -> textArea.addMessage(str));
 	}
 
 	void next() {
@@ -319,10 +308,43 @@ public class ClientUI extends JFrame implements Event {
 	}
 
 	void connect(String host, String port) throws IOException {
+		this.host = host;
+		this.port = port;
 		SocketClient.INSTANCE.registerCallbackListener(this);
 		SocketClient.INSTANCE.connectAndStart(host, port);
 	}
 
+	/***
+	 * Keeps trying to get back to the server, waiting longer after every failed
+	 * try (with some jitter so a restarted server isn't hit by every client at
+	 * once). SocketClient resumes our session, so we land in the same room with
+	 * just the messages we missed.
+	 */
+	private void reconnect() {
+		long delay = RECONNECT_DELAY_MS;
+		while (true) {
+			long wait = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+			self.addMessage(String.format("Connection lost, reconnecting in %ds", (wait + 999) / 1000));
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				reconnecting.set(false);
+				return;
+			}
+			try {
+				if (SocketClient.INSTANCE.reconnect(host, port)) {
+					log.log(Level.INFO, "Reconnected");
+					self.addMessage("Reconnected");
+					reconnecting.set(false);
+					return;
+				}
+			} catch (IOException e) {
+				log.log(Level.INFO, "Reconnecting failed: " + e.getMessage());
+			}
+			delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MS);
+		}
+	}
+
 	void showUI() {
 		pack();
 		Dimension lock = textArea.getSize();
@@ -380,16 +402,38 @@ public class ClientUI extends JFrame implements Event {
 			removeClient(u);
 			iter.remove();
 		}
+		// the server replays the new room's recent messages right after this
+		SwingUtilities.invokeLater(() -> textArea.clear());
 		goToPanel("lobby");
 	}
 
+	@Override
+	public void onConnectionLost() {
+		// before we have a name there's nothing to get back to, the login screen
+		// connects again
+		if (host == null || username == null || !reconnecting.compareAndSet(false, true)) {
+			return;
+		}
+		Thread reconnector = new Thread(this::reconnect, "reconnect");
+		reconnector.setDaemon(true);
+		reconnector.start();
+	}
+
 	@Override
 	public void onIsMuted(String clientName) {
 		System.out.println("LOL");
 	}
 
 	public static void main(String[] args) {
-		ClientUI ui = new ClientUI("My UI");
+		int scrollback = DEFAULT_SCROLLBACK;
+		if (args.length > 0) {
+			// optional scrollback cap, i.e. "java client.ClientUI 20000"
+			try {
+				scrollback = Integer.parseInt(args[0]);
+			} catch (NumberFormatException e) {
+			}
+		}
+		ClientUI ui = new ClientUI("My UI", scrollback);
 		if (ui != null) {
 			log.log(Level.FINE, "Started");
 		}
@@ -0,0 +1,643 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/***
+ * Cluster mode: several SocketServer processes share the rooms. Every room is
+ * owned by exactly one node, picked by consistent hashing of its name, and only
+ * the owner keeps its members, ring and history. A client stays connected to
+ * whatever node it picked; when it joins a room owned by another node it gets a
+ * RemoteRoom there and the owner sees a RemoteClient, and the two talk over the
+ * ClusterLink between the nodes. Each node keeps its own lobby.
+ *
+ * A room can be moved to another node while it's in use (Cluster.migrate(),
+ * or /moveroom on a node's admin endpoint, see MetricsEndpoint). Its owner
+ * then differs from the hash; every node learns that from the new owner or from
+ * the room lists nodes exchange when they link. Until a node hears of the move
+ * its chat goes to the old owner, which passes it on. Once it does hear, it
+ * sends a fence the same way and the new owner holds what the node sends
+ * directly until that fence arrives, so nothing is lost or overtaken.
+ *
+ * Nodes are listed as host:port of their client port, the same list on every
+ * node. The links between them use the client port + LINK_PORT_OFFSET on the
+ * node's host; the node with the smaller id dials, the other accepts. A link
+ * is only used once the dialing node's hello has the secret every node was
+ * started with.
+ */
+public class Cluster {
+	public final static int LINK_PORT_OFFSET = 1000;
+	private final static int CONNECT_TIMEOUT_MS = 1000;
+	private final static int HELLO_TIMEOUT_MS = 5000;
+	// a moved room stops waiting for fences that never come (a node went away)
+	private final static int FENCE_TIMEOUT_MS = 10000;
+	private final static int LINK_BACKLOG = 50;
+	private final static String MOVE_ROOM = "moveroom";
+	private final static AsyncLog log = AsyncLog.getLogger(Cluster.class.getName());
+	private final SocketServer server;
+	private final String selfId;
+	private final String secret;
+	private final HashRing ring;
+	// every other node, connected or not
+	private final Map<String, ClusterLink> links = new LinkedHashMap<String, ClusterLink>();
+	// rooms owned elsewhere that clients on this node are in (or joining)
+	private final ConcurrentMap<String, RemoteRoom> remoteRooms = new ConcurrentHashMap<String, RemoteRoom>();
+	// rooms that moved: key -> node that owns it instead of the one the ring picks
+	private final ConcurrentMap<String, String> owners = new ConcurrentHashMap<String, String>();
+	private final String lobbyKey;
+	private ServerSocket linkSocket;
+	// reads the hello of accepted links so the accept loop never waits on one
+	private ThreadPoolExecutor helloPool;
+	private final ScheduledExecutorService dialer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "cluster-dialer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/***
+	 * @param server
+	 * @param selfId this node's entry in nodes
+	 * @param secret what every node is started with, links have to know it
+	 * @param nodes  host:port of every node, including this one
+	 */
+	public Cluster(SocketServer server, String selfId, String secret, List<String> nodes) {
+		this.server = server;
+		this.selfId = selfId;
+		this.secret = secret;
+		this.ring = new HashRing(nodes);
+		this.lobbyKey = SocketServer.roomKey(SocketServer.LOBBY);
+		for (String node : nodes) {
+			if (!node.equals(selfId)) {
+				links.put(node, new ClusterLink(this, node));
+			}
+		}
+	}
+
+	/***
+	 * Parses the node list given on the command line
+	 *
+	 * @param nodes  comma separated host:port list
+	 * @param secret shared by every node
+	 * @param port   our client port, picks our own entry
+	 * @return the cluster or null if the list doesn't contain us or there's no
+	 *         secret
+	 */
+	public static Cluster fromArgs(SocketServer server, String nodes, String secret, int port) {
+		if (secret == null || secret.isEmpty()) {
+			log.log(Level.WARNING, "A cluster needs a secret every node knows, running alone");
+			return null;
+		}
+		List<String> ids = new ArrayList<String>();
+		String selfId = null;
+		for (String node : nodes.split(",")) {
+			node = node.trim();
+			if (node.isEmpty()) {
+				continue;
+			}
+			ids.add(node);
+			if (portOf(node) == port) {
+				selfId = node;
+			}
+		}
+		if (selfId == null) {
+			log.log(Level.WARNING, "Port {0} isn''t in the cluster node list, running alone", port);
+			return null;
+		}
+		return new Cluster(server, selfId, secret, ids);
+	}
+
+	private static int portOf(String node) {
+		try {
+			return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String hostOf(String node) {
+		int colon = node.lastIndexOf(':');
+		return colon > 0 ? node.substring(0, colon) : "localhost";
+	}
+
+	public String getSelfId() {
+		return selfId;
+	}
+
+	protected SocketServer getServer() {
+		return server;
+	}
+
+	/***
+	 * Starts accepting links and dialing the nodes we're responsible for
+	 *
+	 * @throws IOException if the link port can't be bound
+	 */
+	public void start() throws IOException {
+		int linkPort = portOf(selfId) + LINK_PORT_OFFSET;
+		// only on the address the other nodes know us by
+		linkSocket = new ServerSocket(linkPort, LINK_BACKLOG, InetAddress.getByName(hostOf(selfId)));
+		// every other node at once is all a legitimate cluster ever sends
+		int nodes = Math.max(1, links.size());
+		helloPool = new ThreadPoolExecutor(nodes, nodes, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(nodes),
+				r -> {
+					Thread t = new Thread(r, "cluster-hello");
+					t.setDaemon(true);
+					return t;
+				});
+		helloPool.allowCoreThreadTimeOut(true);
+		Thread acceptor = new Thread(this::acceptLinks, "cluster-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		dialer.scheduleWithFixedDelay(this::dialLinks, 0, 1, TimeUnit.SECONDS);
+		// for operators only, it isn't a chat command. They know the cluster's secret.
+		MetricsEndpoint.addAction(MOVE_ROOM, secret, args -> {
+			String roomName = args.get("room");
+			String node = args.get("node");
+			if (roomName == null || node == null) {
+				return "Usage: POST /" + MOVE_ROOM + "?room=name&node=host:port";
+			}
+			if (!migrate(roomName, node)) {
+				return "Couldn't move " + roomName + " to " + node;
+			}
+			return "Moving " + roomName + " to " + node;
+		});
+		log.log(Level.INFO, "Cluster node {0} of {1}, links on {2}", selfId, links.size() + 1,
+				linkSocket.getLocalSocketAddress());
+	}
+
+	public void stop() {
+		dialer.shutdownNow();
+		try {
+			if (linkSocket != null) {
+				linkSocket.close();
+			}
+		} catch (IOException e) {
+		}
+		if (helloPool != null) {
+			helloPool.shutdownNow();
+		}
+		Iterator<ClusterLink> iter = links.values().iterator();
+		while (iter.hasNext()) {
+			iter.next().close();
+		}
+	}
+
+	private void acceptLinks() {
+		while (!linkSocket.isClosed()) {
+			Socket socket;
+			try {
+				socket = linkSocket.accept();
+			} catch (IOException e) {
+				if (!linkSocket.isClosed()) {
+					log.log(Level.INFO, "Accepting a link failed: {0}", e.getMessage());
+				}
+				continue;
+			}
+			try {
+				helloPool.execute(() -> helloLink(socket));
+			} catch (RejectedExecutionException e) {
+				// more hellos pending than there are nodes, someone else is knocking
+				log.log(Level.WARNING, "Too many links waiting on their hello, dropping one from {0}",
+						socket.getInetAddress());
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	/***
+	 * Reads the hello of an accepted link and hands the link to its node
+	 *
+	 * @param socket
+	 */
+	private void helloLink(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(HELLO_TIMEOUT_MS);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			String node = ClusterLink.readHello(in, secret);
+			socket.setSoTimeout(0);
+			ClusterLink link = node == null ? null : links.get(node);
+			if (link == null) {
+				log.log(Level.WARNING, "Link from unknown node {0}, closing", node);
+				closeQuietly(socket);
+				return;
+			}
+			link.attach(socket, in);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Link handshake from {0} failed: {1}", socket.getInetAddress(), e.getMessage());
+			closeQuietly(socket);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/***
+	 * Connects the links we dial that are down. Runs every second so a node that
+	 * restarts is picked up again.
+	 */
+	private void dialLinks() {
+		Iterator<ClusterLink> iter = links.values().iterator();
+		while (iter.hasNext()) {
+			ClusterLink link = iter.next();
+			String node = link.getNodeId();
+			if (selfId.compareTo(node) > 0 || link.isConnected()) {
+				continue;
+			}
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(hostOf(node), portOf(node) + LINK_PORT_OFFSET),
+						CONNECT_TIMEOUT_MS);
+				socket.setTcpNoDelay(true);
+				ClusterLink.writeHello(socket.getOutputStream(), selfId, secret);
+				link.attach(socket, new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+			} catch (IOException e) {
+				log.log(Level.FINE, "Node {0} isn''t reachable yet", node);
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	/***
+	 * @param key normalized room name
+	 * @return true if this node owns the room (the lobby is always ours)
+	 */
+	public boolean isLocal(String key) {
+		return key.equals(lobbyKey) || selfId.equals(getOwner(key));
+	}
+
+	private String getOwner(String key) {
+		String owner = owners.get(key);
+		return owner != null ? owner : ring.getOwner(key);
+	}
+
+	private void setOwner(String key, String node) {
+		if (node.equals(ring.getOwner(key))) {
+			owners.remove(key);
+		} else {
+			owners.put(key, node);
+		}
+	}
+
+	private ClusterLink getOwnerLink(String key) {
+		return links.get(getOwner(key));
+	}
+
+	/***
+	 * @param node
+	 * @return the link to the node, null if it's us or not in the cluster
+	 */
+	protected ClusterLink getLink(String node) {
+		return links.get(node);
+	}
+
+	/***
+	 * @param key normalized room name of a room owned elsewhere
+	 * @return proxy for the room or null if its owner doesn't have it (or is
+	 *         down)
+	 */
+	protected Room getRemoteRoom(String key) {
+		ClusterLink link = getOwnerLink(key);
+		if (link == null) {
+			return null;
+		}
+		String name = link.getRoomName(key);
+		if (name == null) {
+			return null;
+		}
+		return remoteRooms.computeIfAbsent(key, k -> new RemoteRoom(name, link));
+	}
+
+	/***
+	 * @param key normalized room name of a room owned elsewhere
+	 * @return true if its owner has it
+	 */
+	protected boolean hasRemoteRoom(String key) {
+		ClusterLink link = getOwnerLink(key);
+		return link != null && link.getRoomName(key) != null;
+	}
+
+	/***
+	 * @param key
+	 * @return the proxy if clients here use it, null otherwise
+	 */
+	protected RemoteRoom findRemoteRoom(String key) {
+		return remoteRooms.get(key);
+	}
+
+	/***
+	 * Asks the owner to create the room. The link delivers in order so a join
+	 * sent right after finds it.
+	 *
+	 * @param roomName
+	 * @param key
+	 * @param recentSize
+	 * @return false if the room exists or its owner is down
+	 */
+	protected boolean createRemoteRoom(String roomName, String key, int recentSize) {
+		ClusterLink link = getOwnerLink(key);
+		if (link == null || !link.isConnected()) {
+			log.log(Level.WARNING, "Owner of room {0} is down", roomName);
+			return false;
+		}
+		if (link.getRoomName(key) != null) {
+			log.log(Level.INFO, "Room already exists");
+			return false;
+		}
+		return link.sendCreate(roomName, recentSize);
+	}
+
+	/***
+	 * @return names of the rooms owned by the nodes we're connected to
+	 */
+	protected List<String> getRemoteRoomNames() {
+		List<String> names = new ArrayList<String>();
+		Iterator<ClusterLink> iter = links.values().iterator();
+		while (iter.hasNext()) {
+			names.addAll(iter.next().getRoomNames());
+		}
+		return names;
+	}
+
+	/***
+	 * Tells the other nodes about a room this node created
+	 *
+	 * @param roomName
+	 */
+	protected void roomAdded(String roomName) {
+		if (roomName.equalsIgnoreCase(SocketServer.LOBBY)) {
+			return;
+		}
+		Iterator<ClusterLink> iter = links.values().iterator();
+		while (iter.hasNext()) {
+			iter.next().sendRoomAdded(roomName);
+		}
+	}
+
+	/***
+	 * Tells the other nodes a room of ours closed
+	 *
+	 * @param room
+	 * @param roomName
+	 */
+	protected void roomRemoved(Room room, String roomName) {
+		owners.remove(SocketServer.roomKey(roomName), selfId);
+		Iterator<ClusterLink> iter = links.values().iterator();
+		while (iter.hasNext()) {
+			iter.next().sendRoomRemoved(room, roomName);
+		}
+	}
+
+	/***
+	 * The node says it owns the room (it listed or created it)
+	 *
+	 * @param key
+	 * @param node
+	 */
+	protected void roomOwned(String key, String node) {
+		setOwner(key, node);
+	}
+
+	/***
+	 * A room owned by the link's node closed
+	 *
+	 * @param link
+	 * @param key
+	 */
+	protected void remoteRoomClosed(ClusterLink link, String key) {
+		owners.remove(key, link.getNodeId());
+		RemoteRoom room = remoteRooms.get(key);
+		// unless it moved on to another node
+		if (room != null && room.getLink() == link) {
+			closeRemoteRoom(key);
+		}
+	}
+
+	/***
+	 * Moves a room to another node without dropping anyone, see Room.moveTo().
+	 * If another node owns the room it's asked to do it.
+	 *
+	 * @param roomName
+	 * @param node     id of the node to move it to
+	 * @return false if the room or the node isn't there
+	 */
+	public boolean migrate(String roomName, String node) {
+		String key = SocketServer.roomKey(roomName);
+		if (key.equals(lobbyKey)) {
+			return false;
+		}
+		if (!isLocal(key)) {
+			ClusterLink owner = getOwnerLink(key);
+			return owner != null && owner.getRoomName(key) != null && owner.sendMove(roomName, node);
+		}
+		ClusterLink target = links.get(node);
+		if (target == null || !target.isConnected()) {
+			log.log(Level.WARNING, "Can''t move room {0}, node {1} isn''t linked", roomName, node);
+			return false;
+		}
+		Room room = server.getRoom(roomName);
+		if (room == null) {
+			return false;
+		}
+		log.log(Level.INFO, "Moving room {0} to node {1}", roomName, node);
+		room.moveTo(target);
+		return true;
+	}
+
+	/***
+	 * One of our rooms was handed to the link's node. Our members continue in the
+	 * returned RemoteRoom, which passes on whatever still comes here for the
+	 * room. The new owner tells the other nodes. Runs on the room's worker.
+	 *
+	 * @param room
+	 * @param roomName
+	 * @param link     to the new owner
+	 * @return the RemoteRoom our members continue in
+	 */
+	protected RemoteRoom roomMoved(Room room, String roomName, ClusterLink link) {
+		String key = SocketServer.roomKey(roomName);
+		// in place before we stop counting as the owner, so a lookup finds either the
+		// room or this
+		link.roomAdded(roomName);
+		RemoteRoom remote = new RemoteRoom(roomName, link, room);
+		remoteRooms.put(key, remote);
+		setOwner(key, link.getNodeId());
+		Iterator<ClusterLink> iter = links.values().iterator();
+		while (iter.hasNext()) {
+			iter.next().forgetRelayed(room);
+		}
+		return remote;
+	}
+
+	/***
+	 * A room was handed to this node. It picks up where the old owner left off,
+	 * and our clients in it (through a RemoteRoom until now) and the old owner's
+	 * members carry on without joining again. The other nodes are told it's here
+	 * now, and the room holds their direct chat (and ours) until their fences
+	 * came through the old owner.
+	 *
+	 * @param from       link to the old owner
+	 * @param roomName
+	 * @param recentSize
+	 * @param nextOffset
+	 * @param members    the old owner's members
+	 * @param recent     its ring
+	 */
+	protected void roomArrived(ClusterLink from, String roomName, int recentSize, long nextOffset,
+			List<ServerThread> members, List<Broadcast> recent) {
+		String key = SocketServer.roomKey(roomName);
+		List<String> fenced = new ArrayList<String>();
+		fenced.add(selfId);
+		Iterator<ClusterLink> iter = links.values().iterator();
+		while (iter.hasNext()) {
+			ClusterLink link = iter.next();
+			if (link != from && link.isConnected()) {
+				fenced.add(link.getNodeId());
+			}
+		}
+		// registered before we count as the owner, so a lookup in between still finds
+		// the room (through the old owner, which passes it back to us)
+		Room room = server.roomArrived(roomName, recentSize, nextOffset, recent, members, remoteRooms.get(key),
+				fenced);
+		setOwner(key, selfId);
+		RemoteRoom remote = remoteRooms.remove(key);
+		if (remote != null) {
+			remote.handOver(room, new HashSet<ServerThread>(members));
+			// behind what our clients sent through it
+			remote.execute(() -> remote.getLink().sendFence(roomName, selfId));
+		} else {
+			from.sendFence(roomName, selfId);
+		}
+		iter = links.values().iterator();
+		while (iter.hasNext()) {
+			ClusterLink link = iter.next();
+			if (link != from) {
+				link.sendRoomMoved(roomName, selfId);
+			}
+		}
+		dialer.schedule(() -> room.releaseChat(null), FENCE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		log.log(Level.INFO, "Room {0} moved here from node {1} with {2} members", roomName, from.getNodeId(),
+				members.size());
+	}
+
+	/***
+	 * A room owned elsewhere moved to another node, which has it now. Our chat
+	 * for it goes there from now on, with a fence sent through the old owner
+	 * behind what went that way (see roomArrived()).
+	 *
+	 * @param roomName
+	 * @param node     the new owner
+	 */
+	protected void remoteRoomMoved(String roomName, String node) {
+		String key = SocketServer.roomKey(roomName);
+		ClusterLink link = links.get(node);
+		if (link == null || node.equals(selfId)) {
+			return;
+		}
+		ClusterLink previous = getOwnerLink(key);
+		// so a lookup right after the switch finds the room there
+		link.roomAdded(roomName);
+		setOwner(key, node);
+		if (previous != null && previous != link) {
+			previous.roomGone(key);
+		}
+		RemoteRoom room = remoteRooms.get(key);
+		if (room == null) {
+			// none of our clients sent anything for it
+			(previous != null && previous.isConnected() ? previous : link).sendFence(roomName, selfId);
+			return;
+		}
+		// on the room's worker, so its chat is either ahead of the fence or goes to
+		// the new owner
+		room.execute(() -> {
+			ClusterLink old = room.getLink();
+			room.setLink(link);
+			old.sendFence(roomName, selfId);
+		});
+	}
+
+	/***
+	 * A node's fence for a room that moved, see roomArrived()
+	 *
+	 * @param roomName
+	 * @param node     where it started
+	 */
+	protected void fence(String roomName, String node) {
+		String key = SocketServer.roomKey(roomName);
+		if (isLocal(key)) {
+			Room room = server.getRoom(roomName);
+			if (room != null) {
+				room.releaseChat(node);
+			}
+			return;
+		}
+		RemoteRoom remote = remoteRooms.get(key);
+		if (remote != null) {
+			// behind the node's chat that came to it (or to the room it replaced)
+			remote.execute(() -> remote.getLink().sendFence(roomName, node));
+			return;
+		}
+		ClusterLink owner = getOwnerLink(key);
+		if (owner == null || !owner.sendFence(roomName, node)) {
+			log.log(Level.WARNING, "Can''t pass on the fence of node {0} for room {1}", node, roomName);
+		}
+	}
+
+	/***
+	 * A room owned by another node closed (or the node went away); whoever was in
+	 * our proxy of it goes back to the lobby
+	 *
+	 * @param key
+	 */
+	protected void closeRemoteRoom(String key) {
+		RemoteRoom room = remoteRooms.remove(key);
+		if (room != null) {
+			try {
+				room.close();
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Problem closing remote room {0}", key, e);
+			}
+		}
+	}
+
+	/***
+	 * Called by a link once it's down
+	 *
+	 * @param link
+	 */
+	protected void linkDown(ClusterLink link) {
+		// it tells us again what it owns when it's back
+		owners.values().removeIf(node -> node.equals(link.getNodeId()));
+		Iterator<Map.Entry<String, RemoteRoom>> iter = remoteRooms.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, RemoteRoom> entry = iter.next();
+			if (entry.getValue().getLink() == link) {
+				closeRemoteRoom(entry.getKey());
+			}
+		}
+	}
+}
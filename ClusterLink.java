@@ -0,0 +1,785 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+/***
+ * Connection to one other node of the cluster. Both nodes use it the same way:
+ * as the client's node it forwards joins, leaves, chat and history requests to
+ * the room's owner; as the owner it sends back what the room has for those
+ * clients.
+ *
+ * Messages are an op byte followed by its fields. Outgoing messages are
+ * encoded by the caller and queued for a writer thread like a stream client's
+ * payloads, so room workers never wait on the other node. One reader thread per
+ * link applies what arrives in order.
+ *
+ * Clients are named by their node and their id there, since a room that moved
+ * can pass on a third node's client (or send one of ours back to us).
+ */
+public class ClusterLink {
+	private final static byte HELLO = 1;// node id, cluster secret, first thing the dialing node sends
+	private final static byte ROOMS = 2;// rooms the sender owns
+	private final static byte ROOM_ADDED = 3;// room name
+	private final static byte ROOM_REMOVED = 4;// room name
+	private final static byte CREATE = 5;// room name, recent size
+	private final static byte JOIN = 6;// room name, client, client name
+	private final static byte LEAVE = 7;// room name, client
+	private final static byte MESSAGE = 8;// room name, client, client name, message, timestamp
+	private final static byte HISTORY = 9;// room name, client, count, after
+	private final static byte BROADCAST = 10;// room name, binary frame for every member on the receiving node
+	private final static byte DELIVER = 11;// client id, binary frame for that client
+	private final static byte REJECT = 12;// room name, client id of a join that failed
+	// room name, recent size, next history offset, member count, members (client,
+	// client name), recent count, binary frames
+	private final static byte MIGRATE = 13;
+	private final static byte ROOM_MOVED = 14;// room name, node that owns it now
+	private final static byte MOVE = 15;// room name, node to move it to
+	// room name, node the fence started on; behind everything that node sent for
+	// the room through the old owner
+	private final static byte FENCE = 16;
+	// messages waiting for the other node before the link counts as broken
+	private final static int LINK_CAPACITY = 64 * 1024;
+	private final static int MAX_BATCH = 256;
+	private final static AsyncLog log = AsyncLog.getLogger(ClusterLink.class.getName());
+	private final static Metrics.Counter relayedOut = Metrics.counter("cluster.relayed.out");
+	private final static Metrics.Counter relayedIn = Metrics.counter("cluster.relayed.in");
+	private final static Metrics.Counter chatDropped = Metrics.counter("cluster.chat.dropped");
+	private final Cluster cluster;
+	private final String nodeId;
+	private Socket socket;// guarded by this
+	private Thread writer;// guarded by this
+	private volatile OutboundQueue<byte[]> outbound;// null while down
+	// key -> name of the rooms the other node owns
+	private final ConcurrentMap<String, String> rooms = new ConcurrentHashMap<String, String>();
+	// stand ins for the other node's clients in our rooms, by their id there
+	private final ConcurrentMap<Long, RemoteClient> proxies = new ConcurrentHashMap<Long, RemoteClient>();
+	// last broadcast of each of our rooms that went over this link, every member
+	// on the other node gets it from one copy
+	private final ConcurrentMap<Room, Broadcast> relayed = new ConcurrentHashMap<Room, Broadcast>();
+
+	/***
+	 * Outgoing message being encoded
+	 */
+	private static class Message {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		Message(byte op) {
+			bytes.write(op);
+		}
+
+		Message string(String s) {
+			// writeUTF tops out at 64k, chat doesn't
+			return bytes(s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+		}
+
+		Message bytes(byte[] b) {
+			return bytes(b, 0, b == null ? -1 : b.length);
+		}
+
+		Message bytes(byte[] b, int offset, int length) {
+			try {
+				out.writeInt(length);
+				if (length > 0) {
+					out.write(b, offset, length);
+				}
+			} catch (IOException e) {
+				// not on a byte array
+			}
+			return this;
+		}
+
+		Message number(long n) {
+			try {
+				out.writeLong(n);
+			} catch (IOException e) {
+			}
+			return this;
+		}
+
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+
+	public ClusterLink(Cluster cluster, String nodeId) {
+		this.cluster = cluster;
+		this.nodeId = nodeId;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public boolean isConnected() {
+		return outbound != null;
+	}
+
+	protected static void writeHello(OutputStream out, String selfId, String secret) throws IOException {
+		out.write(new Message(HELLO).string(selfId).string(secret).toByteArray());
+		out.flush();
+	}
+
+	/***
+	 * @param in
+	 * @param secret what every node of the cluster is started with
+	 * @return node id the other side sent or null if it didn't start with a hello
+	 * @throws IOException if the hello has another secret
+	 */
+	protected static String readHello(DataInputStream in, String secret) throws IOException {
+		if (in.readByte() != HELLO) {
+			return null;
+		}
+		String node = readString(in);
+		byte[] theirs = readBytes(in);
+		// compared in constant time so timing doesn't give it away
+		if (theirs == null || !MessageDigest.isEqual(theirs, secret.getBytes(StandardCharsets.UTF_8))) {
+			throw new IOException("Wrong cluster secret from " + node);
+		}
+		return node;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = readBytes(in);
+		return b == null ? null : new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > PayloadFrames.MAX_FRAME_SIZE) {
+			throw new IOException("Link message too big: " + length);
+		}
+		byte[] b = new byte[length];
+		in.readFully(b);
+		return b;
+	}
+
+	/***
+	 * Starts using a freshly connected socket, replacing the old one if the other
+	 * node reconnected before we noticed it was gone
+	 *
+	 * @param socket
+	 * @param in     after the hello
+	 * @throws IOException
+	 */
+	protected void attach(Socket socket, DataInputStream in) throws IOException {
+		Socket old;
+		synchronized (this) {
+			old = this.socket;
+		}
+		if (old != null) {
+			linkLost(old);
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		OutboundQueue<byte[]> queue = new OutboundQueue<byte[]>(LINK_CAPACITY, OverflowPolicy.BLOCK);
+		Thread writer = new Thread(() -> write(socket, out, queue), "cluster-link-" + nodeId + "-writer");
+		writer.setDaemon(true);
+		synchronized (this) {
+			this.socket = socket;
+			this.outbound = queue;
+			this.writer = writer;
+		}
+		writer.start();
+		Thread reader = new Thread(() -> read(socket, in), "cluster-link-" + nodeId);
+		reader.setDaemon(true);
+		reader.start();
+		Message mine = new Message(ROOMS);
+		List<String> local = cluster.getServer().getLocalRooms();
+		// every node has its own lobby
+		local.remove(SocketServer.LOBBY);
+		mine.number(local.size());
+		for (String name : local) {
+			mine.string(name);
+		}
+		send(mine);
+		log.log(Level.INFO, "Linked to node {0}", nodeId);
+	}
+
+	public void close() {
+		Socket current;
+		synchronized (this) {
+			current = socket;
+		}
+		if (current != null) {
+			linkLost(current);
+		}
+	}
+
+	/***
+	 * Tears down everything that depended on the socket. Only the first call for
+	 * a socket does anything.
+	 */
+	private void linkLost(Socket lost) {
+		Thread lostWriter;
+		synchronized (this) {
+			if (socket != lost) {
+				return;
+			}
+			lostWriter = writer;
+			socket = null;
+			outbound = null;
+			writer = null;
+		}
+		try {
+			lost.close();
+		} catch (IOException e) {
+		}
+		lostWriter.interrupt();
+		log.log(Level.WARNING, "Lost link to node {0}", nodeId);
+		rooms.clear();
+		relayed.clear();
+		// their clients are gone from our rooms...
+		Iterator<RemoteClient> iter = proxies.values().iterator();
+		while (iter.hasNext()) {
+			RemoteClient proxy = iter.next();
+			Room room = proxy.getCurrentRoom();
+			if (room != null && proxy.compareAndSetCurrentRoom(room, null)) {
+				room.removeClient(proxy);
+			}
+		}
+		proxies.clear();
+		// ...and ours are out of theirs
+		cluster.linkDown(this);
+	}
+
+	private void write(Socket socket, DataOutputStream out, OutboundQueue<byte[]> queue) {
+		List<byte[]> batch = new ArrayList<byte[]>(MAX_BATCH);
+		try {
+			while (!socket.isClosed()) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				long bytes = 0;
+				for (byte[] message : batch) {
+					out.write(message);
+					bytes += message.length;
+				}
+				out.flush();
+				Metrics.bytesWritten.add(bytes);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+		} catch (IOException e) {
+			linkLost(socket);
+		}
+	}
+
+	private void read(Socket socket, DataInputStream in) {
+		try {
+			while (!socket.isClosed()) {
+				receive(in.readByte(), in);
+			}
+		} catch (IOException e) {
+			log.log(Level.INFO, "Link to {0} closed: {1}", nodeId, e.getMessage());
+		} finally {
+			linkLost(socket);
+		}
+	}
+
+	/***
+	 * Queues a message for the other node. Room workers don't wait if the link is
+	 * backed up, the link is dropped instead.
+	 *
+	 * @return false if the link is down
+	 */
+	private boolean send(Message message) {
+		OutboundQueue<byte[]> queue = outbound;
+		if (queue == null) {
+			return false;
+		}
+		if (!queue.offer(message.toByteArray(), !RoomWorkers.isWorkerThread())) {
+			log.log(Level.WARNING, "Link to {0} can''t keep up, dropping it", nodeId);
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	/***
+	 * @param key normalized room name
+	 * @return the room's name if the other node owns it
+	 */
+	protected String getRoomName(String key) {
+		return rooms.get(key);
+	}
+
+	protected Collection<String> getRoomNames() {
+		return rooms.values();
+	}
+
+	protected boolean sendCreate(String roomName, int recentSize) {
+		if (!send(new Message(CREATE).string(roomName).number(recentSize))) {
+			return false;
+		}
+		// so a join right behind it finds the room before the owner confirms it
+		rooms.put(SocketServer.roomKey(roomName), roomName);
+		return true;
+	}
+
+	protected void sendRoomAdded(String roomName) {
+		send(new Message(ROOM_ADDED).string(roomName));
+	}
+
+	protected void sendRoomRemoved(Room room, String roomName) {
+		relayed.remove(room);
+		send(new Message(ROOM_REMOVED).string(roomName));
+	}
+
+	protected void sendRoomMoved(String roomName, String node) {
+		send(new Message(ROOM_MOVED).string(roomName).string(node));
+	}
+
+	protected boolean sendFence(String roomName, String node) {
+		return send(new Message(FENCE).string(roomName).string(node));
+	}
+
+	/***
+	 * Our room moved away, it doesn't relay anything anymore
+	 *
+	 * @param room
+	 */
+	protected void forgetRelayed(Room room) {
+		relayed.remove(room);
+	}
+
+	protected boolean sendMove(String roomName, String node) {
+		return send(new Message(MOVE).string(roomName).string(node));
+	}
+
+	/***
+	 * A room the other node owns now, i.e. one that moved to it
+	 *
+	 * @param roomName
+	 */
+	protected void roomAdded(String roomName) {
+		rooms.put(SocketServer.roomKey(roomName), roomName);
+	}
+
+	/***
+	 * A room the other node owned moved on to another node
+	 *
+	 * @param key
+	 */
+	protected void roomGone(String key) {
+		rooms.remove(key);
+	}
+
+	/***
+	 * Writes who the client is cluster wide: its node and its id there
+	 */
+	private Message client(Message message, ServerThread client) {
+		if (client instanceof RemoteClient) {
+			RemoteClient proxy = (RemoteClient) client;
+			return message.string(proxy.getLink().getNodeId()).number(proxy.getRemoteId());
+		}
+		return message.string(cluster.getSelfId()).number(client.getId());
+	}
+
+	protected boolean sendJoin(String roomName, ServerThread client) {
+		return send(client(new Message(JOIN).string(roomName), client).string(client.getClientName()));
+	}
+
+	protected boolean sendLeave(String roomName, ServerThread client) {
+		return send(client(new Message(LEAVE).string(roomName), client));
+	}
+
+	protected boolean sendMessage(String roomName, ServerThread sender, String message, long timestamp) {
+		return send(client(new Message(MESSAGE).string(roomName), sender).string(sender.getClientName()).string(message)
+				.number(timestamp));
+	}
+
+	protected boolean sendHistory(String roomName, ServerThread client, int count, long after) {
+		return send(client(new Message(HISTORY).string(roomName), client).number(count).number(after));
+	}
+
+	/***
+	 * Hands one of our rooms to the other node, see Room.moveTo(). Runs on the
+	 * room's worker.
+	 *
+	 * @param roomName
+	 * @param recentSize capacity of the room's ring
+	 * @param nextOffset the room's next history offset, 0 without history
+	 * @param members
+	 * @param recent     the ring, oldest first
+	 * @return false if the link is down
+	 */
+	protected boolean sendMigrate(String roomName, int recentSize, long nextOffset, Collection<ServerThread> members,
+			List<Broadcast> recent) {
+		Message message = new Message(MIGRATE).string(roomName).number(recentSize).number(nextOffset)
+				.number(members.size());
+		Iterator<ServerThread> iter = members.iterator();
+		while (iter.hasNext()) {
+			ServerThread member = iter.next();
+			client(message, member).string(member.getClientName());
+		}
+		message.number(recent.size());
+		Iterator<Broadcast> broadcasts = recent.iterator();
+		while (broadcasts.hasNext()) {
+			if (!frame(message, broadcasts.next())) {
+				return false;
+			}
+		}
+		return send(message);
+	}
+
+	/***
+	 * Lets go of a stand in that was in a room we just handed to this link's node
+	 *
+	 * @param proxy
+	 * @param from   the room that moved
+	 * @param remote our RemoteRoom for it
+	 */
+	protected void movedAway(RemoteClient proxy, Room from, RemoteRoom remote) {
+		if (proxy.getLink() == this) {
+			// the new owner's own client, it doesn't need us for it
+			if (proxy.compareAndSetCurrentRoom(from, null)) {
+				proxies.remove(proxy.getRemoteId(), proxy);
+			}
+		} else {
+			// a third node's client, its leave may still come through us
+			proxy.compareAndSetCurrentRoom(from, remote);
+		}
+	}
+
+	/***
+	 * Finds the client a message from the other node is about
+	 *
+	 * @param node its node
+	 * @param id   its id there
+	 * @param name to create a stand in with if there isn't one, null to only
+	 *             look it up
+	 * @return our client, a stand in or null
+	 */
+	private ServerThread findClient(String node, long id, String name) {
+		if (node.equals(cluster.getSelfId())) {
+			// one of ours that came back, the room moved while it was on its way
+			return cluster.getServer().findClient(id);
+		}
+		ClusterLink link = node.equals(nodeId) ? this : cluster.getLink(node);
+		if (link == null) {
+			return null;
+		}
+		if (name == null) {
+			return link.proxies.get(id);
+		}
+		return link.proxies.computeIfAbsent(id,
+				i -> new RemoteClient(link, i, name, cluster.getServer().getLobby()));
+	}
+
+	/***
+	 * Same as findClient() but a client we don't know yet gets a stand in that's
+	 * only used for this message
+	 */
+	private ServerThread findSender(String node, long id, String name) {
+		ServerThread sender = findClient(node, id, null);
+		if (sender == null && !node.equals(cluster.getSelfId())) {
+			ClusterLink link = node.equals(nodeId) ? this : cluster.getLink(node);
+			if (link != null) {
+				sender = new RemoteClient(link, id, name, cluster.getServer().getLobby());
+			}
+		}
+		return sender;
+	}
+
+	private static boolean isIn(ServerThread client, String roomName) {
+		Room room = client.getCurrentRoom();
+		return room != null && roomName.equalsIgnoreCase(room.getName());
+	}
+
+	/***
+	 * Sends one of our room's broadcasts to a member on the other node. The room
+	 * calls this for each of them in a row; only the first call sends it, the
+	 * other node hands it to all its members.
+	 *
+	 * @param room
+	 * @param broadcast
+	 * @return false if the link is down
+	 */
+	protected boolean relay(Room room, Broadcast broadcast) {
+		if (!isConnected()) {
+			return false;
+		}
+		if (room == null || relayed.put(room, broadcast) == broadcast) {
+			return true;
+		}
+		relayedOut.increment();
+		Message message = new Message(BROADCAST).string(room.getName());
+		return frame(message, broadcast) && send(message);
+	}
+
+	/***
+	 * Sends something to one client on the other node
+	 *
+	 * @param clientId
+	 * @param broadcast
+	 * @return false if the link is down
+	 */
+	protected boolean deliver(long clientId, Broadcast broadcast) {
+		Message message = new Message(DELIVER).number(clientId);
+		return frame(message, broadcast) && send(message);
+	}
+
+	protected boolean deliver(long clientId, Payload p) {
+		Message message = new Message(DELIVER).number(clientId);
+		try {
+			ByteBuffer frame = PayloadFrames.encode(p, PayloadFrames.BINARY);
+			message.bytes(frame.array(), frame.arrayOffset() + PayloadFrames.HEADER_SIZE,
+					frame.remaining() - PayloadFrames.HEADER_SIZE);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn''t encode payload for node {0}", nodeId, e);
+			return false;
+		}
+		return send(message);
+	}
+
+	private boolean frame(Message message, Broadcast broadcast) {
+		try {
+			ByteBuffer frame = broadcast.getFrame(PayloadFrames.BINARY);
+			message.bytes(frame.array(), frame.arrayOffset() + PayloadFrames.HEADER_SIZE,
+					frame.remaining() - PayloadFrames.HEADER_SIZE);
+			return true;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn''t encode broadcast for node {0}", nodeId, e);
+			return false;
+		}
+	}
+
+	private static Payload decode(byte[] body) throws IOException {
+		return PayloadFrames.decode(body, 0, body.length, PayloadFrames.BINARY);
+	}
+
+	/***
+	 * Applies one message from the other node, on the reader thread. Anything
+	 * that touches a room is posted to it.
+	 */
+	private void receive(byte op, DataInputStream in) throws IOException {
+		SocketServer server = cluster.getServer();
+		switch (op) {
+		case ROOMS: {
+			long count = in.readLong();
+			for (long i = 0; i < count; i++) {
+				String name = readString(in);
+				rooms.put(SocketServer.roomKey(name), name);
+				cluster.roomOwned(SocketServer.roomKey(name), nodeId);
+			}
+			break;
+		}
+		case ROOM_ADDED: {
+			String name = readString(in);
+			rooms.put(SocketServer.roomKey(name), name);
+			cluster.roomOwned(SocketServer.roomKey(name), nodeId);
+			break;
+		}
+		case ROOM_REMOVED: {
+			String key = SocketServer.roomKey(readString(in));
+			rooms.remove(key);
+			cluster.remoteRoomClosed(this, key);
+			break;
+		}
+		case ROOM_MOVED: {
+			// from the new owner, once it has the room
+			String name = readString(in);
+			cluster.remoteRoomMoved(name, readString(in));
+			break;
+		}
+		case FENCE: {
+			String name = readString(in);
+			cluster.fence(name, readString(in));
+			break;
+		}
+		case MOVE: {
+			String name = readString(in);
+			cluster.migrate(name, readString(in));
+			break;
+		}
+		case MIGRATE: {
+			String name = readString(in);
+			int recentSize = (int) in.readLong();
+			long nextOffset = in.readLong();
+			long count = in.readLong();
+			List<ServerThread> members = new ArrayList<ServerThread>();
+			for (long i = 0; i < count; i++) {
+				String node = readString(in);
+				long id = in.readLong();
+				ServerThread member = findClient(node, id, readString(in));
+				if (member != null) {
+					members.add(member);
+				}
+			}
+			long recentCount = in.readLong();
+			List<Broadcast> recent = new ArrayList<Broadcast>();
+			for (long i = 0; i < recentCount; i++) {
+				recent.add(toBroadcast(decode(readBytes(in))));
+			}
+			cluster.roomArrived(this, name, recentSize, nextOffset, members, recent);
+			rooms.remove(SocketServer.roomKey(name));
+			break;
+		}
+		case CREATE: {
+			String name = readString(in);
+			int recentSize = (int) in.readLong();
+			server.createNewRoom(name, recentSize);
+			break;
+		}
+		case JOIN: {
+			String name = readString(in);
+			String node = readString(in);
+			long id = in.readLong();
+			ServerThread client = findClient(node, id, readString(in));
+			if (client instanceof RemoteClient) {
+				RemoteClient proxy = (RemoteClient) client;
+				if (!server.joinRoom(name, proxy)) {
+					if (proxy.getCurrentRoom() == null) {
+						proxy.getLink().proxies.remove(id, proxy);
+					}
+					proxy.getLink().send(new Message(REJECT).string(name).number(id));
+				}
+			} else if (client != null && isIn(client, name)) {
+				// ours, it joined the room while the room was on its way here
+				if (!server.joinRoom(name, client)) {
+					rejected(name, client);
+				}
+			}
+			break;
+		}
+		case LEAVE: {
+			String name = readString(in);
+			String node = readString(in);
+			long id = in.readLong();
+			ServerThread client = findClient(node, id, null);
+			// ours leave by themselves, a leave of ours that comes back is stale
+			if (client instanceof RemoteClient) {
+				RemoteClient proxy = (RemoteClient) client;
+				Room room = proxy.getCurrentRoom();
+				// unless a join that came first already moved it on
+				if (room != null && name.equalsIgnoreCase(room.getName()) && proxy.compareAndSetCurrentRoom(room, null)) {
+					proxy.getLink().proxies.remove(id, proxy);
+					room.removeClient(proxy);
+				}
+			}
+			break;
+		}
+		case MESSAGE: {
+			String name = readString(in);
+			String node = readString(in);
+			long id = in.readLong();
+			ServerThread sender = findSender(node, id, readString(in));
+			String message = readString(in);
+			long timestamp = in.readLong();
+			// by name, the sender may have moved on while it was on its way
+			Room room = sender == null ? null : server.getRoom(name);
+			if (room != null) {
+				room.sendChat(sender, message, timestamp, nodeId);
+			} else {
+				chatDropped.increment();
+				log.log(Level.WARNING, "Dropping chat from node {0} for room {1}, {2}", node, name,
+						sender == null ? "its node isn't linked" : "the room is gone");
+			}
+			break;
+		}
+		case HISTORY: {
+			String name = readString(in);
+			String node = readString(in);
+			long id = in.readLong();
+			int count = (int) in.readLong();
+			long after = in.readLong();
+			ServerThread client = findSender(node, id, null);
+			Room room = client == null ? null : server.getRoom(name);
+			if (room != null) {
+				room.sendHistory(client, count, after);
+			}
+			break;
+		}
+		case BROADCAST: {
+			String name = readString(in);
+			Payload p = decode(readBytes(in));
+			relayedIn.increment();
+			RemoteRoom room = cluster.findRemoteRoom(SocketServer.roomKey(name));
+			if (room != null) {
+				room.deliver(toBroadcast(p));
+			}
+			break;
+		}
+		case DELIVER: {
+			long id = in.readLong();
+			Payload p = decode(readBytes(in));
+			ServerThread client = server.findClient(id);
+			Room room = client == null ? null : client.getCurrentRoom();
+			if (room != null) {
+				// through the room so it stays in order with the room's broadcasts
+				room.execute(() -> deliver(client, p));
+			}
+			break;
+		}
+		case REJECT: {
+			String name = readString(in);
+			ServerThread client = server.findClient(in.readLong());
+			if (client != null) {
+				rejected(name, client);
+			}
+			break;
+		}
+		default:
+			throw new IOException("Unknown link op " + op);
+		}
+	}
+
+	private static Broadcast toBroadcast(Payload p) {
+		return new Broadcast(p.getPayloadType(), p.getClientName(), p.getMessage(), p.getTimestamp(), p.getOffset());
+	}
+
+	/***
+	 * Sends one of our clients whose join the room's owner turned down back to the
+	 * lobby, unless it moved on already
+	 */
+	private void rejected(String roomName, ServerThread client) {
+		Room room = client.getCurrentRoom();
+		if (room instanceof RemoteRoom && roomName.equalsIgnoreCase(room.getName())) {
+			log.log(Level.INFO, "Node {0} doesn''t have room {1}, {2} goes back to the lobby", nodeId, roomName,
+					client.getClientName());
+			cluster.getServer().joinLobby(client);
+		}
+	}
+
+	/***
+	 * Hands a payload the owner sent for one of our clients to it, through the
+	 * same calls the room would have made so legacy clients still skip what they
+	 * don't understand
+	 */
+	private static void deliver(ServerThread client, Payload p) {
+		switch (p.getPayloadType()) {
+		case CLEAR_PLAYERS:
+			client.sendClearList();
+			break;
+		case GET_HISTORY:
+			client.sendHistoryEnd(p.getMessage(), p.getNumber());
+			break;
+		case MESSAGE:
+			if (!client.isMuted(p.getClientName())) {
+				client.sendPayload(p);
+			}
+			break;
+		default:
+			client.sendPayload(p);
+			break;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package server;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+
+/***
+ * Chat commands ("/name args...") and the handlers registered for them. A
+ * message is only treated as a command when its first character is the
+ * trigger, so plain chat (and URLs in the middle of a line) costs one char
+ * check. The command name is matched in place against the registered names
+ * without cutting it out of the message, and arguments are only split when a
+ * handler asks for them.
+ *
+ * Handlers are registered once; registering is copy on write so dispatching
+ * never locks.
+ */
+public class CommandRegistry {
+	public final static char TRIGGER = '/';
+	private final static AsyncLog log = AsyncLog.getLogger(CommandRegistry.class.getName());
+	private volatile Command[] commands = new Command[0];
+
+	public interface Handler {
+		/***
+		 * @param room   room the command was sent in
+		 * @param client who sent it
+		 * @param args   everything after the command name
+		 * @return false to let the message through as regular chat
+		 */
+		boolean handle(Room room, ServerThread client, Args args);
+	}
+
+	private static class Command {
+		final String name;
+		final Handler handler;
+
+		Command(String name, Handler handler) {
+			this.name = name;
+			this.handler = handler;
+		}
+	}
+
+	/***
+	 * Adds (or replaces) the handler for a command. Names are matched case
+	 * insensitively.
+	 *
+	 * @param name    without the trigger, i.e. "mute"
+	 * @param handler
+	 */
+	public synchronized void register(String name, Handler handler) {
+		Command[] current = commands;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].name.equalsIgnoreCase(name)) {
+				Command[] updated = current.clone();
+				updated[i] = new Command(name, handler);
+				commands = updated;
+				return;
+			}
+		}
+		Command[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = new Command(name, handler);
+		commands = updated;
+	}
+
+	/***
+	 * Runs the handler for the message if it's a registered command
+	 *
+	 * @param room
+	 * @param client
+	 * @param message
+	 * @return true if a handler took the message
+	 */
+	public boolean dispatch(Room room, ServerThread client, String message) {
+		if (message == null || message.isEmpty() || message.charAt(0) != TRIGGER) {
+			return false;
+		}
+		int end = 1;
+		while (end < message.length() && message.charAt(end) != ' ') {
+			end++;
+		}
+		int length = end - 1;
+		for (Command command : commands) {
+			if (command.name.length() == length && message.regionMatches(true, 1, command.name, 0, length)) {
+				log.log(Level.INFO, "Command from {0}: {1}", client.getClientName(), message);
+				try {
+					return command.handler.handle(room, client, new Args(message, end));
+				} catch (RuntimeException e) {
+					log.log(Level.WARNING, "Command {0} failed", command.name, e);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/***
+	 * Space separated arguments of a command. The message is only scanned the
+	 * first time an argument is asked for, and strings are only created for the
+	 * arguments that are actually read.
+	 */
+	public static class Args {
+		private final String message;
+		private final int start;
+		private int[] bounds;// start/end of each argument
+		private int count = -1;
+
+		Args(String message, int start) {
+			this.message = message;
+			this.start = start;
+		}
+
+		private void tokenize() {
+			if (count >= 0) {
+				return;
+			}
+			count = 0;
+			bounds = new int[8];
+			int i = start;
+			int length = message.length();
+			while (i < length) {
+				while (i < length && message.charAt(i) == ' ') {
+					i++;
+				}
+				if (i == length) {
+					break;
+				}
+				int tokenStart = i;
+				while (i < length && message.charAt(i) != ' ') {
+					i++;
+				}
+				if (count * 2 == bounds.length) {
+					bounds = Arrays.copyOf(bounds, bounds.length * 2);
+				}
+				bounds[count * 2] = tokenStart;
+				bounds[count * 2 + 1] = i;
+				count++;
+			}
+		}
+
+		public int count() {
+			tokenize();
+			return count;
+		}
+
+		/***
+		 * @param index
+		 * @return the argument or null if there aren't that many
+		 */
+		public String get(int index) {
+			tokenize();
+			if (index < 0 || index >= count) {
+				return null;
+			}
+			return message.substring(bounds[index * 2], bounds[index * 2 + 1]);
+		}
+
+		/***
+		 * Parses a number argument in place
+		 *
+		 * @param index
+		 * @param fallback returned if it's missing or not a number
+		 * @return the number
+		 */
+		public int getInt(int index, int fallback) {
+			tokenize();
+			if (index < 0 || index >= count) {
+				return fallback;
+			}
+			int i = bounds[index * 2];
+			int end = bounds[index * 2 + 1];
+			boolean negative = message.charAt(i) == '-';
+			if (negative) {
+				i++;
+			}
+			if (i == end || end - i > 9) {
+				return fallback;
+			}
+			int value = 0;
+			for (; i < end; i++) {
+				char c = message.charAt(i);
+				if (c < '0' || c > '9') {
+					return fallback;
+				}
+				value = value * 10 + (c - '0');
+			}
+			return negative ? -value : value;
+		}
+
+		/***
+		 * @return everything after the command name, trimmed
+		 */
+		public String rest() {
+			return message.substring(start).trim();
+		}
+	}
+}
@@ -12,4 +12,9 @@ public interface Event {
 	void onGetRoom(String roomName);
 
 	void onIsMuted(String clientName);
+
+	/***
+	 * Our own connection to the server dropped (not one we closed)
+	 */
+	void onConnectionLost();
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/***
+ * Owns a selector and every connection registered with it. Other threads only
+ * ever talk to the loop through the pending queues + wakeup(), so keys are only
+ * cancelled here. Whatever goes wrong with one connection closes that one and
+ * the loop carries on with the rest.
+ */
+class EventLoop extends Thread {
+	private final Selector selector;
+	private final Queue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<NioConnection>();
+	private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<NioConnection>();
+	private final Queue<NioConnection> pendingHandoffs = new ConcurrentLinkedQueue<NioConnection>();
+	private final Queue<NioConnection> pendingCloses = new ConcurrentLinkedQueue<NioConnection>();
+	private volatile boolean isRunning = true;
+	private final static AsyncLog log = AsyncLog.getLogger(EventLoop.class.getName());
+
+	EventLoop(String name) throws IOException {
+		super(name);
+		setDaemon(true);
+		selector = Selector.open();
+	}
+
+	void register(NioConnection connection) {
+		pendingRegistrations.add(connection);
+		selector.wakeup();
+	}
+
+	void flushLater(NioConnection connection) {
+		pendingFlushes.add(connection);
+		// also needed on the loop itself so the next select() doesn't block
+		selector.wakeup();
+	}
+
+	/***
+	 * The connection's key was just cancelled; it's only deregistered after the
+	 * next select() so the actual handoff waits for processPending()
+	 * 
+	 * @param connection
+	 */
+	void handoffLater(NioConnection connection) {
+		pendingHandoffs.add(connection);
+		selector.wakeup();
+	}
+
+	/***
+	 * Closes the connection on the loop, used when another thread decides a
+	 * client has to go (i.e., its outbound queue overflowed, it never finished
+	 * its handshake or another connection took over its session)
+	 * 
+	 * @param connection
+	 */
+	void closeLater(NioConnection connection) {
+		pendingCloses.add(connection);
+		selector.wakeup();
+	}
+
+	void shutdown() {
+		isRunning = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (isRunning) {
+				selector.select();
+				processPending();
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					NioConnection connection = (NioConnection) key.attachment();
+					try {
+						if (!key.isValid()) {
+							connection.close();
+							continue;
+						}
+						if (key.isReadable()) {
+							connection.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.onWritable();
+						}
+					} catch (CancelledKeyException e) {
+						connection.close();
+					} catch (RuntimeException e) {
+						failed(connection, e);
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "{0} stopped unexpectedly", getName(), e);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				((NioConnection) key.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void processPending() {
+		NioConnection connection;
+		while ((connection = pendingRegistrations.poll()) != null) {
+			try {
+				connection.attach(selector);
+			} catch (ClosedChannelException | CancelledKeyException e) {
+				connection.close();
+			} catch (RuntimeException e) {
+				failed(connection, e);
+			}
+		}
+		// flushes are processed after registrations so early writes aren't lost
+		while ((connection = pendingFlushes.poll()) != null) {
+			try {
+				connection.onWritable();
+			} catch (CancelledKeyException e) {
+				connection.close();
+			} catch (RuntimeException e) {
+				failed(connection, e);
+			}
+		}
+		while ((connection = pendingHandoffs.poll()) != null) {
+			try {
+				connection.handoff();
+			} catch (RuntimeException e) {
+				failed(connection, e);
+			}
+		}
+		while ((connection = pendingCloses.poll()) != null) {
+			try {
+				connection.close();
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "Problem closing a connection", e);
+			}
+		}
+	}
+
+	/***
+	 * A connection broke in a way we didn't expect, only it goes
+	 * 
+	 * @param connection
+	 * @param e
+	 */
+	private void failed(NioConnection connection, RuntimeException e) {
+		log.log(Level.WARNING, "Closing a connection after an unexpected error", e);
+		try {
+			connection.close();
+		} catch (RuntimeException e1) {
+			log.log(Level.WARNING, "Problem closing a connection", e1);
+		}
+	}
+}
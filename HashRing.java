@@ -0,0 +1,61 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/***
+ * Consistent hashing of room names onto cluster nodes. Every node is placed on
+ * the ring many times (virtual nodes) so rooms spread evenly, and adding or
+ * removing a node only moves the rooms next to its points. Every node builds
+ * the ring from the same node list, so they all agree on who owns a room
+ * without asking each other.
+ */
+public class HashRing {
+	private final static int POINTS_PER_NODE = 128;
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+	/***
+	 * @param nodes node ids, i.e. "localhost:3001"
+	 */
+	public HashRing(Collection<String> nodes) {
+		for (String node : nodes) {
+			for (int i = 0; i < POINTS_PER_NODE; i++) {
+				ring.put(hash(node + "#" + i), node);
+			}
+		}
+	}
+
+	/***
+	 * @param key normalized room name
+	 * @return id of the node that owns it
+	 */
+	public String getOwner(String key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+		return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+	}
+
+	/***
+	 * First 8 bytes of the MD5, the same on every JVM (String.hashCode() would do
+	 * too but spreads the virtual nodes poorly)
+	 */
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xFF);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has MD5
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.Metrics;
+import server.Payload;
+import server.PayloadCodec;
+import server.PayloadFrames;
+import server.PayloadType;
+import server.VirtualThreads;
+
+/***
+ * Headless load generator. SocketClient is a singleton so it can only hold one
+ * connection per JVM; this opens N independent connections that each do the
+ * hello + CONNECT handshake, join a room and send chat messages at a fixed
+ * rate. Every message carries the send time in Payload.timestamp which the
+ * server echoes on the broadcast, so each delivery gives a latency sample.
+ *
+ * Run with: java client.LoadGenerator host port [connections] [rooms]
+ * [messages/sec per connection] [seconds]
+ */
+public class LoadGenerator {
+	private final static String ROOM_PREFIX = "load";
+
+	private final String host;
+	private final int port;
+	private final int connectionCount;
+	private final int roomCount;
+	private final double rate;
+	private final List<Connection> connections = new ArrayList<Connection>();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final Metrics.Histogram latency = new Metrics.Histogram();
+	private volatile boolean recording = false;
+
+	public LoadGenerator(String host, int port, int connectionCount, int roomCount, double rate) {
+		this.host = host;
+		this.port = port;
+		this.connectionCount = connectionCount;
+		this.roomCount = roomCount;
+		this.rate = rate;
+	}
+
+	/***
+	 * One client connection speaking the framed Payload protocol
+	 */
+	private class Connection {
+		private final String name;
+		private final String room;
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private final int wireVersion;
+		private final PayloadCodec writeCodec = new PayloadCodec();
+		private final PayloadCodec readCodec = new PayloadCodec();
+		private int sequence = 0;
+
+		Connection(String name, String room) throws IOException {
+			this.name = name;
+			this.room = room;
+			socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			wireVersion = PayloadFrames.negotiate(in, out);
+		}
+
+		/***
+		 * CONNECT, then create/join our room (creating fails harmlessly if another
+		 * connection got there first)
+		 */
+		void handshake() throws IOException {
+			Payload connect = new Payload();
+			connect.setPayloadType(PayloadType.CONNECT);
+			connect.setClientName(name);
+			send(connect);
+			if (room != null) {
+				send(message("/createroom " + room, 0));
+				Payload join = new Payload();
+				join.setPayloadType(PayloadType.JOIN_ROOM);
+				join.setClientName(name);
+				join.setMessage(room);
+				send(join);
+			}
+		}
+
+		void sendChat() {
+			try {
+				send(message(name + " says hi " + (sequence++), System.nanoTime()));
+				sent.incrementAndGet();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private Payload message(String text, long timestamp) {
+			Payload p = new Payload();
+			p.setPayloadType(PayloadType.MESSAGE);
+			p.setClientName(name);
+			p.setMessage(text);
+			p.setTimestamp(timestamp);
+			return p;
+		}
+
+		private synchronized void send(Payload p) throws IOException {
+			PayloadFrames.write(out, p, wireVersion, writeCodec);
+		}
+
+		void listen() {
+			try {
+				while (!socket.isClosed()) {
+					Payload p = PayloadFrames.read(in, wireVersion, readCodec);
+					long timestamp = p.getTimestamp();
+					if (p.getPayloadType() == PayloadType.MESSAGE && timestamp != 0 && recording) {
+						latency.record(System.nanoTime() - timestamp);
+						delivered.incrementAndGet();
+					}
+				}
+			} catch (IOException e) {
+				// closed at the end of the run or by the server
+			} finally {
+				close();
+			}
+		}
+
+		void disconnect() {
+			try {
+				Payload p = new Payload();
+				p.setPayloadType(PayloadType.DISCONNECT);
+				p.setClientName(name);
+				send(p);
+			} catch (IOException e) {
+			}
+			close();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/***
+	 * Connects everyone, sends for the given number of seconds and prints the
+	 * results
+	 *
+	 * @param seconds
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void run(int seconds) throws IOException, InterruptedException {
+		for (int i = 0; i < connectionCount; i++) {
+			String room = roomCount > 0 ? ROOM_PREFIX + (i % roomCount) : null;
+			Connection c = new Connection("load" + i, room);
+			connections.add(c);
+			VirtualThreads.start(c::listen);
+			c.handshake();
+		}
+		System.out.println(String.format("%d connections in %s, %.1f msg/s each", connectionCount,
+				roomCount > 0 ? roomCount + " rooms" : "the lobby", rate));
+
+		long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		ScheduledExecutorService scheduler = Executors
+				.newScheduledThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+		List<ScheduledFuture<?>> tasks = new ArrayList<ScheduledFuture<?>>();
+		recording = true;
+		long start = System.nanoTime();
+		Iterator<Connection> iter = connections.iterator();
+		while (iter.hasNext()) {
+			Connection c = iter.next();
+			// spread the first sends over one period so connections don't fire in lockstep
+			long delay = (long) (Math.random() * periodNanos);
+			tasks.add(scheduler.scheduleAtFixedRate(c::sendChat, delay, periodNanos, TimeUnit.NANOSECONDS));
+		}
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		for (ScheduledFuture<?> task : tasks) {
+			task.cancel(false);
+		}
+		scheduler.shutdown();
+		long sendElapsed = System.nanoTime() - start;
+		// let in flight broadcasts arrive
+		Thread.sleep(1000);
+		recording = false;
+		long elapsed = System.nanoTime() - start;
+		for (Connection c : connections) {
+			c.disconnect();
+		}
+		report(sendElapsed, elapsed);
+	}
+
+	private void report(long sendElapsed, long elapsed) {
+		double sendSeconds = sendElapsed / 1e9;
+		double seconds = elapsed / 1e9;
+		System.out.println(String.format("sent:      %,12d (%,.0f msg/s)", sent.get(), sent.get() / sendSeconds));
+		System.out.println(String.format("delivered: %,12d (%,.0f msg/s)", delivered.get(), delivered.get() / seconds));
+		System.out.println(String.format("latency:   p50 %,.0f us, p99 %,.0f us, p999 %,.0f us, max %,.0f us",
+				latency.percentile(50) / 1e3, latency.percentile(99) / 1e3, latency.percentile(99.9) / 1e3,
+				latency.getMax() / 1e3));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println(
+					"Usage: java client.LoadGenerator host port [connections] [rooms] [messages/sec per connection] [seconds]");
+			return;
+		}
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		int connections = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int rooms = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		double rate = args.length > 4 ? Double.parseDouble(args[4]) : 10;
+		int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+		new LoadGenerator(host, port, connections, rooms, rate).run(seconds);
+		System.exit(0);
+	}
+}
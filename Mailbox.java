@@ -0,0 +1,87 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/***
+ * A room's queue of work. Any thread can post to it but only the room's worker
+ * runs what was posted, one task at a time and in the order they were posted,
+ * so nothing the tasks touch needs a lock.
+ *
+ * The queue is a linked list that producers append to with a single atomic swap
+ * of the tail; the worker walks it from the head without any atomics (Vyukov's
+ * multi producer single consumer queue). A mailbox is handed to its worker when
+ * it goes from idle to having work and stays there while more keeps arriving,
+ * so a busy room doesn't cost its worker anything extra per message.
+ */
+public class Mailbox {
+	// tasks run in one go before the other rooms on the worker get a turn
+	private final static int BATCH = 64;
+	private final static AsyncLog log = AsyncLog.getLogger(Mailbox.class.getName());
+	private final RoomWorkers.Worker worker;
+	private final AtomicReference<Node> tail;
+	private Node head;// worker only, the last node that was run
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	private static class Node {
+		Runnable task;
+		volatile Node next;
+
+		Node(Runnable task) {
+			this.task = task;
+		}
+	}
+
+	Mailbox(RoomWorkers.Worker worker) {
+		this.worker = worker;
+		head = new Node(null);
+		tail = new AtomicReference<Node>(head);
+	}
+
+	/***
+	 * Queues a task for the room's worker. Never blocks.
+	 *
+	 * @param task
+	 */
+	public void post(Runnable task) {
+		Node node = new Node(task);
+		Node previous = tail.getAndSet(node);
+		// between the swap and this write the worker can't see the node yet, run()
+		// notices through the tail and comes back for it
+		previous.next = node;
+		schedule();
+	}
+
+	private void schedule() {
+		if (!scheduled.get() && scheduled.compareAndSet(false, true)) {
+			worker.schedule(this);
+		}
+	}
+
+	/***
+	 * Runs what's queued, up to BATCH tasks. Called by the worker only.
+	 */
+	void run() {
+		for (int i = 0; i < BATCH; i++) {
+			Node next = head.next;
+			if (next == null) {
+				break;
+			}
+			Runnable task = next.task;
+			next.task = null;
+			head = next;
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// a broken task mustn't take the worker (and every room on it) down
+				log.log(Level.WARNING, "Room task failed", e);
+			}
+		}
+		scheduled.set(false);
+		if (tail.get() != head) {
+			// more was posted, or a post is still linking its node
+			schedule();
+		}
+	}
+}
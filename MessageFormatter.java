@@ -0,0 +1,207 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * Converts the chat text style triggers into html in a single pass:
+ * <ul>
+ * <li>@bold@, #italic# and _underline_ (only when there are at least two of
+ * that trigger)</li>
+ * <li>color%text% (only when the number of % is even)</li>
+ * </ul>
+ * Produces exactly the same output as the original String.replace/split based
+ * version in ServerThread, including its spacing quirks, but writes into one
+ * reusable StringBuilder instead of rebuilding the message for every rule.
+ *
+ * Instances aren't thread safe; use get() for a per thread instance. Formatted
+ * results for short messages are cached since the same lines (greetings,
+ * commands echoed back, etc) come up a lot.
+ */
+public class MessageFormatter {
+	private final static int CACHE_SIZE = 1024;
+	private final static int MAX_CACHED_LENGTH = 256;
+	private final static Map<String, String> cache = new ConcurrentHashMap<String, String>();
+	private final static ThreadLocal<MessageFormatter> formatters = ThreadLocal.withInitial(MessageFormatter::new);
+
+	private final StringBuilder sb = new StringBuilder(256);
+	private final StringBuilder word = new StringBuilder(64);
+
+	public static MessageFormatter get() {
+		return formatters.get();
+	}
+
+	/***
+	 * Formats a message, using the cache for short messages
+	 *
+	 * @param message
+	 * @return formatted message
+	 */
+	public String format(String message) {
+		if (message.length() > MAX_CACHED_LENGTH) {
+			return formatUncached(message);
+		}
+		String formatted = cache.get(message);
+		if (formatted == null) {
+			formatted = formatUncached(message);
+			if (cache.size() >= CACHE_SIZE) {
+				// cheap bound, chat lines aren't worth an LRU
+				cache.clear();
+			}
+			cache.put(message, formatted);
+		}
+		return formatted;
+	}
+
+	public static void clearCache() {
+		cache.clear();
+	}
+
+	/***
+	 * Formats a message without touching the cache
+	 *
+	 * @param message
+	 * @return formatted message
+	 */
+	public String formatUncached(String message) {
+		int length = message.length();
+		int bold = 0;
+		int italic = 0;
+		int underline = 0;
+		int color = 0;
+		for (int i = 0; i < length; i++) {
+			switch (message.charAt(i)) {
+			case '@':
+				bold++;
+				break;
+			case '#':
+				italic++;
+				break;
+			case '_':
+				underline++;
+				break;
+			case '%':
+				color++;
+				break;
+			default:
+				break;
+			}
+		}
+		boolean isBold = bold >= 2;
+		boolean isItalic = italic >= 2;
+		boolean isUnderline = underline >= 2;
+		boolean isColor = color % 2 == 0;
+
+		sb.setLength(0);
+		int wordStart = 0;
+		for (int i = 0; i < length; i++) {
+			char c = message.charAt(i);
+			if (c == ' ') {
+				if (isColor) {
+					colorWord(wordStart);
+				}
+				sb.append(' ');
+				wordStart = sb.length();
+				continue;
+			}
+			// a trigger closes its tag when it ends a word
+			boolean closes = i + 1 == length || message.charAt(i + 1) == ' ';
+			if (c == '@' && isBold) {
+				sb.append(closes ? "</b>" : "<b>");
+			} else if (c == '#' && isItalic) {
+				sb.append(closes ? "</i>" : "<i>");
+			} else if (c == '_' && isUnderline) {
+				sb.append(closes ? "</u>" : "<u>");
+			} else if (c == '<' && i + 2 < length && message.charAt(i + 2) == '>'
+					&& (i + 3 == length || message.charAt(i + 3) == ' ') && isOpenedTag(message.charAt(i + 1),
+							isBold, isItalic, isUnderline)) {
+				// a typed <b>, <i> or <u> ending a word gets closed just like the triggers
+				sb.append("</").append(message.charAt(i + 1)).append('>');
+				i += 2;
+			} else {
+				sb.append(c);
+			}
+		}
+		if (isColor) {
+			colorWord(wordStart);
+			// words are re-joined with a single trailing space, trailing blanks dropped
+			int end = sb.length();
+			while (end > 0 && sb.charAt(end - 1) == ' ') {
+				end--;
+			}
+			sb.setLength(end);
+			if (end > 0) {
+				sb.append(' ');
+			}
+		} else {
+			// each style rule that ran appended a space
+			if (isBold) {
+				sb.append(' ');
+			}
+			if (isItalic) {
+				sb.append(' ');
+			}
+			if (isUnderline) {
+				sb.append(' ');
+			}
+		}
+		return sb.toString();
+	}
+
+	private static boolean isOpenedTag(char tag, boolean isBold, boolean isItalic, boolean isUnderline) {
+		return (tag == 'b' && isBold) || (tag == 'i' && isItalic) || (tag == 'u' && isUnderline);
+	}
+
+	/***
+	 * Applies the color rule to the word that starts at wordStart and runs to the
+	 * end of the builder. A trailing % closes the color, the text before the first
+	 * remaining % is the color name.
+	 */
+	private void colorWord(int wordStart) {
+		int end = sb.length();
+		if (end == wordStart) {
+			return;
+		}
+		if (sb.charAt(end - 1) == '%') {
+			sb.setLength(end - 1);
+			sb.append("</b>");
+			end = sb.length();
+		}
+		int trigger = -1;
+		for (int i = wordStart; i < end; i++) {
+			if (sb.charAt(i) == '%') {
+				trigger = i;
+				break;
+			}
+		}
+		if (trigger < 0) {
+			return;
+		}
+		// every occurrence of "<color>%" in the word becomes the style tag
+		int prefixLength = trigger - wordStart + 1;
+		word.setLength(0);
+		word.append("<b style=color:").append(sb, wordStart, trigger).append('>');
+		int styleLength = word.length();
+		int i = wordStart;
+		while (i < end) {
+			if (i + prefixLength <= end && matchesPrefix(i, wordStart, prefixLength)) {
+				word.append(word, 0, styleLength);
+				i += prefixLength;
+			} else {
+				word.append(sb.charAt(i));
+				i++;
+			}
+		}
+		sb.setLength(wordStart);
+		sb.append(word, styleLength, word.length());
+	}
+
+	private boolean matchesPrefix(int at, int wordStart, int prefixLength) {
+		for (int j = 0; j < prefixLength; j++) {
+			if (sb.charAt(at + j) != sb.charAt(wordStart + j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
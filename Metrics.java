@@ -0,0 +1,214 @@
+package server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/***
+ * Server wide registry of counters, gauges and histograms. Counters and
+ * histograms are cheap enough to update on the hot path (LongAdder / atomic
+ * bucket increments); gauges are only evaluated when the stats are dumped.
+ *
+ * dump() renders everything as "name value" lines sorted by name, which is
+ * what the admin endpoint serves and what the periodic log dump prints.
+ */
+public class Metrics {
+	private final static ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private final static ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+	private final static ConcurrentMap<String, Supplier<Map<String, Long>>> gaugeGroups = new ConcurrentHashMap<String, Supplier<Map<String, Long>>>();
+	private final static ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	// the hot path ones, kept in fields so updates don't need a map lookup
+	private final static Counter[] payloadsIn = perType("payloads.in.");
+	private final static Counter[] payloadsOut = perType("payloads.out.");
+	public final static Counter connectionsAccepted = counter("connections.accepted");
+	public final static Counter handshakesFailed = counter("handshakes.failed");
+	public final static Counter handshakesRejected = counter("handshakes.rejected");
+	public final static Counter sendFailures = counter("send.failures");
+	public final static Counter bytesWritten = counter("bytes.written");
+	public final static Histogram broadcastNanos = histogram("broadcast.fanout.nanos");
+	public final static Histogram broadcastRecipients = histogram("broadcast.recipients");
+
+	static {
+		gauge("outbound.queued", OutboundQueue::getTotalDepth);
+		gauge("outbound.dropped", OutboundQueue::getDroppedCount);
+		gauge("log.dropped", AsyncLog::getDroppedCount);
+	}
+
+	private Metrics() {
+	}
+
+	public static class Counter {
+		private final LongAdder value = new LongAdder();
+
+		public void increment() {
+			value.increment();
+		}
+
+		public void add(long amount) {
+			value.add(amount);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+	}
+
+	/***
+	 * Log/linear histogram, recorded values are kept to within ~3%
+	 */
+	public static class Histogram {
+		private final static int SUB_BITS = 6;
+		private final static int SUB_BUCKETS = 1 << SUB_BITS;
+		private final static int HALF = SUB_BUCKETS / 2;
+		private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			counts.incrementAndGet(index(value));
+			count.increment();
+			sum.add(value);
+			long current;
+			while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			}
+		}
+
+		private static int index(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+			return exponent * HALF + HALF + (int) (value >>> exponent) - HALF;
+		}
+
+		private static long lowerBound(int index) {
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+			int exponent = (index - HALF) / HALF;
+			return (long) ((index - HALF) % HALF + HALF) << exponent;
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		public double getMean() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) sum.sum() / n;
+		}
+
+		public long percentile(double percentile) {
+			long n = count.sum();
+			if (n == 0) {
+				return 0;
+			}
+			long target = (long) Math.ceil(n * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if (seen >= target) {
+					return lowerBound(i);
+				}
+			}
+			return max.get();
+		}
+	}
+
+	private static Counter[] perType(String prefix) {
+		PayloadType[] types = PayloadType.values();
+		Counter[] perType = new Counter[types.length];
+		for (int i = 0; i < types.length; i++) {
+			perType[i] = counter(prefix + types[i].name());
+		}
+		return perType;
+	}
+
+	public static Counter counter(String name) {
+		return counters.computeIfAbsent(name, k -> new Counter());
+	}
+
+	public static Histogram histogram(String name) {
+		return histograms.computeIfAbsent(name, k -> new Histogram());
+	}
+
+	/***
+	 * Registers (or replaces) a value that's read when the stats are dumped
+	 *
+	 * @param name
+	 * @param gauge
+	 */
+	public static void gauge(String name, LongSupplier gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/***
+	 * Registers a set of gauges that changes over time, i.e. one per room. Each
+	 * entry is dumped as prefix.key
+	 *
+	 * @param prefix
+	 * @param group
+	 */
+	public static void gaugeGroup(String prefix, Supplier<Map<String, Long>> group) {
+		gaugeGroups.put(prefix, group);
+	}
+
+	public static void payloadIn(PayloadType type) {
+		if (type != null) {
+			payloadsIn[type.ordinal()].increment();
+		}
+	}
+
+	public static void payloadOut(PayloadType type) {
+		if (type != null) {
+			payloadsOut[type.ordinal()].increment();
+		}
+	}
+
+	/***
+	 * @return every metric as "name value" lines, sorted by name
+	 */
+	public static String dump() {
+		Map<String, String> lines = new TreeMap<String, String>();
+		for (Map.Entry<String, Counter> e : counters.entrySet()) {
+			lines.put(e.getKey(), Long.toString(e.getValue().get()));
+		}
+		for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+			lines.put(e.getKey(), Long.toString(e.getValue().getAsLong()));
+		}
+		for (Map.Entry<String, Supplier<Map<String, Long>>> e : gaugeGroups.entrySet()) {
+			Map<String, Long> group = e.getValue().get();
+			for (Map.Entry<String, Long> g : group.entrySet()) {
+				lines.put(e.getKey() + "." + g.getKey(), Long.toString(g.getValue()));
+			}
+		}
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			Histogram h = e.getValue();
+			lines.put(e.getKey(), String.format("count=%d mean=%.1f p50=%d p99=%d p999=%d max=%d", h.getCount(),
+					h.getMean(), h.percentile(50), h.percentile(99), h.percentile(99.9), h.getMax()));
+		}
+		StringBuilder sb = new StringBuilder();
+		Iterator<Map.Entry<String, String>> iter = lines.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, String> line = iter.next();
+			sb.append(line.getKey()).append(' ').append(line.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,216 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/***
+ * Exposes Metrics.dump(). The admin endpoint only listens on loopback and
+ * answers any request with a plain text HTTP response, so curl, a browser or
+ * nc all work: curl http://127.0.0.1:port/
+ *
+ * Operator actions (see addAction()) are reached by their path, but only with a
+ * POST that has the action's secret in an X-Admin-Secret header. Arguments go
+ * in the query string (or a form body), e.g. curl -X POST -H "X-Admin-Secret:
+ * secret" "http://127.0.0.1:port/moveroom?room=games&node=host:port". A GET
+ * can't trigger one, so neither can a page that makes the operator's browser
+ * fetch the URL.
+ *
+ * The periodic dump logs the same text every N seconds instead.
+ */
+public class MetricsEndpoint {
+	private final static AsyncLog log = AsyncLog.getLogger(MetricsEndpoint.class.getName());
+	private final static Map<String, Registered> actions = new ConcurrentHashMap<String, Registered>();
+	private final static String SECRET_HEADER = "x-admin-secret";
+	private final static int MAX_BODY = 4096;
+
+	/***
+	 * Something an operator can do through the admin endpoint
+	 */
+	public interface Action {
+		/***
+		 * @param args the query string's parameters
+		 * @return what to answer
+		 */
+		String run(Map<String, String> args);
+	}
+
+	private static class Registered {
+		final byte[] secret;
+		final Action action;
+
+		Registered(String secret, Action action) {
+			this.secret = secret.getBytes(StandardCharsets.UTF_8);
+			this.action = action;
+		}
+	}
+
+	/***
+	 * What a request gets back
+	 */
+	private static class Reply {
+		final String status;
+		final String body;
+
+		Reply(String status, String body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	private MetricsEndpoint() {
+	}
+
+	/***
+	 * Starts the admin endpoint on a daemon thread
+	 *
+	 * @param port
+	 * @throws IOException if the port can't be bound
+	 */
+	public static void start(int port) throws IOException {
+		ServerSocket serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread(() -> serve(serverSocket), "metrics-endpoint");
+		thread.setDaemon(true);
+		thread.start();
+		log.log(Level.INFO, "Metrics available on http://127.0.0.1:{0,number,#}/", port);
+	}
+
+	/***
+	 * Answers POSTs to /name that know the secret with the action instead of the
+	 * metrics
+	 *
+	 * @param name
+	 * @param secret what the X-Admin-Secret header has to be
+	 * @param action
+	 */
+	public static void addAction(String name, String secret, Action action) {
+		actions.put("/" + name, new Registered(secret, action));
+	}
+
+	private static void serve(ServerSocket serverSocket) {
+		while (!serverSocket.isClosed()) {
+			try (Socket client = serverSocket.accept()) {
+				client.setSoTimeout(2000);
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+				// "GET /path?query HTTP/1.0", then the headers
+				String request = in.readLine();
+				Map<String, String> headers = new HashMap<String, String>();
+				String line;
+				while ((line = in.readLine()) != null && !line.isEmpty()) {
+					int colon = line.indexOf(':');
+					if (colon > 0) {
+						headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+					}
+				}
+				Reply reply = answer(request, headers, readBody(in, headers.get("content-length")));
+				byte[] body = reply.body.getBytes(StandardCharsets.UTF_8);
+				String header = "HTTP/1.0 " + reply.status
+						+ "\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: " + body.length
+						+ (reply.status.startsWith("405") ? "\r\nAllow: POST" : "") + "\r\nConnection: close\r\n\r\n";
+				OutputStream out = client.getOutputStream();
+				out.write(header.getBytes(StandardCharsets.US_ASCII));
+				out.write(body);
+				out.flush();
+			} catch (IOException e) {
+				log.log(Level.INFO, "Problem answering metrics request", e);
+			}
+		}
+	}
+
+	/***
+	 * @param in
+	 * @param length the Content-Length header, null if there was none
+	 * @return the request's body, empty if it has none (or too big of one)
+	 * @throws IOException
+	 */
+	private static String readBody(BufferedReader in, String length) throws IOException {
+		int count;
+		try {
+			count = length == null ? 0 : Integer.parseInt(length);
+		} catch (NumberFormatException e) {
+			return "";
+		}
+		if (count <= 0 || count > MAX_BODY) {
+			return "";
+		}
+		char[] body = new char[count];
+		int read = 0;
+		while (read < count) {
+			int n = in.read(body, read, count - read);
+			if (n < 0) {
+				break;
+			}
+			read += n;
+		}
+		return new String(body, 0, read);
+	}
+
+	private static Reply answer(String request, Map<String, String> headers, String body) {
+		String[] parts = request == null ? new String[0] : request.split(" ");
+		String method = parts.length > 0 ? parts[0] : "GET";
+		String target = parts.length > 1 ? parts[1] : "/";
+		int query = target.indexOf('?');
+		Registered registered = actions.get(query < 0 ? target : target.substring(0, query));
+		if (registered == null) {
+			return new Reply("200 OK", Metrics.dump());
+		}
+		if (!"POST".equals(method)) {
+			return new Reply("405 Method Not Allowed", "Actions need a POST\n");
+		}
+		String secret = headers.get(SECRET_HEADER);
+		if (secret == null || !MessageDigest.isEqual(registered.secret, secret.getBytes(StandardCharsets.UTF_8))) {
+			log.log(Level.WARNING, "Refused admin action {0} without the secret", target);
+			return new Reply("403 Forbidden", "Wrong or missing X-Admin-Secret\n");
+		}
+		Map<String, String> args = new HashMap<String, String>();
+		if (query >= 0) {
+			parseArgs(target.substring(query + 1), args);
+		}
+		parseArgs(body, args);
+		return new Reply("200 OK", registered.action.run(args) + "\n");
+	}
+
+	/***
+	 * Adds the name=value pairs of a query string or form body to args
+	 */
+	private static void parseArgs(String pairs, Map<String, String> args) {
+		String[] split = pairs.split("&");
+		for (int i = 0; i < split.length; i++) {
+			int eq = split[i].indexOf('=');
+			if (eq > 0) {
+				args.put(URLDecoder.decode(split[i].substring(0, eq), StandardCharsets.UTF_8),
+						URLDecoder.decode(split[i].substring(eq + 1).trim(), StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	/***
+	 * Logs the metrics every interval seconds
+	 *
+	 * @param seconds
+	 */
+	public static void startDump(int seconds) {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-dump");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleAtFixedRate(() -> log.log(Level.INFO, "Server stats:\n{0}", Metrics.dump()), seconds,
+				seconds, TimeUnit.SECONDS);
+	}
+}
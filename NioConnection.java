@@ -0,0 +1,266 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/***
+ * State for one client on the selector transport: negotiated wire version,
+ * partial read buffer, queued outgoing frames and the ServerThread that
+ * processes decoded payloads.
+ */
+class NioConnection {
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	private SelectionKey key;
+	private ServerThread serverThread;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+	private final static int MAX_BATCH = 64;
+	private final OutboundQueue<ByteBuffer> writeQueue = new OutboundQueue<ByteBuffer>(
+			SocketServer.getOutboundCapacity(), SocketServer.getOverflowPolicy());
+	// frames taken off the queue and being written with one gathering write,
+	// only touched by the event loop
+	private final ByteBuffer[] inflight = new ByteBuffer[MAX_BATCH];
+	private int inflightStart = 0;
+	private int inflightCount = 0;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final AtomicBoolean isOpen = new AtomicBoolean(true);
+	private volatile int wireVersion = -1;// -1 until the hello arrives
+	private final static AsyncLog log = AsyncLog.getLogger(NioConnection.class.getName());
+
+	NioConnection(SocketChannel channel, EventLoop loop) {
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+	void setServerThread(ServerThread serverThread) {
+		this.serverThread = serverThread;
+	}
+
+	void attach(Selector selector) throws ClosedChannelException {
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+		if (!writeQueue.isEmpty()) {
+			onWritable();
+		}
+	}
+
+	boolean isOpen() {
+		return isOpen.get();
+	}
+
+	int getWireVersion() {
+		return wireVersion;
+	}
+
+	int getQueueDepth() {
+		return writeQueue.size() + inflightCount;
+	}
+
+	/***
+	 * Queues a frame for writing. Safe to call from any thread. Event loops never
+	 * wait on a full queue since they may be the ones that have to drain it.
+	 *
+	 * @param frame
+	 * @return false if the connection is closed or was just dropped for not
+	 *         keeping up
+	 */
+	boolean send(ByteBuffer frame) {
+		if (!isOpen()) {
+			return false;
+		}
+		boolean mayBlock = !(Thread.currentThread() instanceof EventLoop) && !RoomWorkers.isWorkerThread();
+		if (!writeQueue.offer(frame, mayBlock)) {
+			log.log(Level.INFO, "Outbound queue full, disconnecting slow client");
+			close();
+			return false;
+		}
+		if (flushScheduled.compareAndSet(false, true)) {
+			loop.flushLater(this);
+		}
+		return true;
+	}
+
+	/***
+	 * Reads whatever is available and dispatches every complete frame. Only called
+	 * on the event loop.
+	 */
+	void onReadable() {
+		try {
+			int read = channel.read(readBuffer);
+			if (read < 0) {
+				close();
+				return;
+			}
+			readBuffer.flip();
+			if (wireVersion < 0 && !negotiate()) {
+				return;
+			}
+			while (readBuffer.remaining() >= PayloadFrames.HEADER_SIZE) {
+				int length = readBuffer.getInt(readBuffer.position());
+				if (length < 0 || length > PayloadFrames.MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				if (readBuffer.remaining() < PayloadFrames.HEADER_SIZE + length) {
+					break;
+				}
+				int start = readBuffer.position() + PayloadFrames.HEADER_SIZE;
+				Payload p = PayloadFrames.decode(readBuffer.array(), readBuffer.arrayOffset() + start, length,
+						wireVersion);
+				readBuffer.position(start + length);
+				serverThread.receivePayload(p);
+				if (!isOpen()) {
+					return;
+				}
+			}
+			readBuffer.compact();
+			if (!readBuffer.hasRemaining()) {
+				// a frame bigger than our buffer is still arriving
+				ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+				readBuffer.flip();
+				bigger.put(readBuffer);
+				readBuffer = bigger;
+			}
+		} catch (Exception e) {
+			// happens when client disconnects or sends something we can't decode
+			log.log(Level.INFO, "Client Disconnected");
+			close();
+		}
+	}
+
+	/***
+	 * Handles the first bytes from the client. Either a hello we answer with the
+	 * version we'll use, or the java serialization header from an old client which
+	 * gets handed to a blocking ServerThread since object streams can't be decoded
+	 * incrementally.
+	 * 
+	 * @return true if frames can be read, false if we need more bytes or the
+	 *         connection left the event loop
+	 * @throws IOException
+	 */
+	private boolean negotiate() throws IOException {
+		if (readBuffer.remaining() < 2) {
+			readBuffer.compact();
+			return false;
+		}
+		int position = readBuffer.position();
+		if (PayloadFrames.isLegacyStream(readBuffer.get(position), readBuffer.get(position + 1))) {
+			key.cancel();
+			loop.handoffLater(this);
+			return false;
+		}
+		if (readBuffer.remaining() < PayloadFrames.HELLO_SIZE) {
+			readBuffer.compact();
+			return false;
+		}
+		int version = Math.min(PayloadFrames.parseHello(readBuffer.array(), readBuffer.arrayOffset() + position),
+				PayloadFrames.CURRENT_VERSION);
+		readBuffer.position(position + PayloadFrames.HELLO_SIZE);
+		wireVersion = version;
+		send(ByteBuffer.wrap(PayloadFrames.hello(version)));
+		return true;
+	}
+
+	/***
+	 * Moves a legacy client off the event loop. Whatever we already read is
+	 * replayed in front of the socket's stream.
+	 */
+	void handoff() {
+		if (!isOpen.compareAndSet(true, false)) {
+			return;
+		}
+		try {
+			channel.configureBlocking(true);
+			byte[] leftover = new byte[readBuffer.remaining()];
+			readBuffer.get(leftover);
+			SequenceInputStream in = new SequenceInputStream(new ByteArrayInputStream(leftover),
+					channel.socket().getInputStream());
+			log.log(Level.INFO, "Handing legacy client off to a blocking ServerThread");
+			VirtualThreads.start(() -> serverThread.runHandedOff(channel.socket(), in));
+		} catch (IOException e) {
+			log.log(Level.INFO, "Client Disconnected");
+			isOpen.set(true);
+			close();
+		}
+	}
+
+	/***
+	 * Writes as much of the queue as the socket accepts and toggles write interest
+	 * depending on whether anything is left. Queued frames are written in batches
+	 * with a single gathering write. Only called on the event loop.
+	 */
+	void onWritable() {
+		if (key == null || !isOpen()) {
+			// not registered yet, attach() will flush
+			return;
+		}
+		flushScheduled.set(false);
+		try {
+			while (true) {
+				if (inflightCount == 0 && fillInflight() == 0) {
+					break;
+				}
+				Metrics.bytesWritten.add(channel.write(inflight, inflightStart, inflightCount));
+				while (inflightCount > 0 && !inflight[inflightStart].hasRemaining()) {
+					inflight[inflightStart++] = null;
+					inflightCount--;
+				}
+				if (inflightCount > 0) {
+					// socket buffer is full, wait for write readiness
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			if (key.isValid()) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		} catch (IOException e) {
+			log.log(Level.INFO, "Error sending message to client (most likely disconnected)");
+			close();
+		}
+	}
+
+	private int fillInflight() {
+		inflightStart = 0;
+		ByteBuffer frame;
+		while (inflightCount < inflight.length && (frame = writeQueue.poll()) != null) {
+			inflight[inflightCount++] = frame;
+		}
+		return inflightCount;
+	}
+
+	/***
+	 * Closes the channel once and lets the ServerThread clean up its room state.
+	 * Off the event loop it's only asked for, the loop does it so the key isn't
+	 * cancelled under it.
+	 */
+	void close() {
+		if (Thread.currentThread() != loop) {
+			if (isOpen()) {
+				loop.closeLater(this);
+			}
+			return;
+		}
+		if (!isOpen.compareAndSet(true, false)) {
+			return;
+		}
+		writeQueue.clear();
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.log(Level.INFO, "Client already closed");
+		}
+		if (serverThread != null) {
+			serverThread.onConnectionClosed();
+		}
+	}
+}
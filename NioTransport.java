@@ -0,0 +1,111 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.logging.Level;
+
+/***
+ * Selector based transport. A single acceptor selector hands new sockets off to
+ * a small pool of event loops that handle read/write readiness for every
+ * connection, so we no longer need a blocked thread per client.
+ */
+public class NioTransport implements AutoCloseable {
+	private final SocketServer server;
+	private final EventLoop[] loops;
+	private ServerSocketChannel serverChannel;
+	private Selector acceptSelector;
+	private int nextLoop = 0;
+	private final static AsyncLog log = AsyncLog.getLogger(NioTransport.class.getName());
+
+	public NioTransport(SocketServer server, int loopCount) {
+		this.server = server;
+		this.loops = new EventLoop[Math.max(1, loopCount)];
+	}
+
+	/***
+	 * Opens the listening channel, starts the event loops and runs the accept loop
+	 * on the calling thread until the server stops.
+	 *
+	 * @param port
+	 * @throws IOException
+	 */
+	public void start(int port) throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop("EventLoop-" + i);
+			loops[i].start();
+		}
+		acceptSelector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), SocketServer.ACCEPT_BACKLOG);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+		log.log(Level.INFO, "Selector transport listening with " + loops.length + " event loops");
+		while (SocketServer.isRunning) {
+			acceptSelector.select();
+			Iterator<SelectionKey> iter = acceptSelector.selectedKeys().iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				if (key.isValid() && key.isAcceptable()) {
+					accept();
+				}
+			}
+		}
+	}
+
+	private void accept() {
+		SocketChannel channel;
+		while (true) {
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Problem accepting client", e);
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				EventLoop loop = loops[nextLoop];
+				nextLoop = (nextLoop + 1) % loops.length;
+				NioConnection connection = new NioConnection(channel, loop);
+				ServerThread thread = new ServerThread(connection, server.getLobby());
+				connection.setServerThread(thread);
+				server.onClientAccepted(thread);
+				loop.register(connection);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Problem setting up client", e);
+				try {
+					channel.close();
+				} catch (IOException e1) {
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		for (EventLoop loop : loops) {
+			if (loop != null) {
+				loop.shutdown();
+			}
+		}
+		try {
+			if (acceptSelector != null) {
+				acceptSelector.close();
+			}
+			if (serverChannel != null) {
+				serverChannel.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.INFO, "Server channel already closed");
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package server;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Bounded per connection queue of things waiting to be written to a client.
+ * Senders never touch the socket, a single writer drains the queue so one slow
+ * client can't stall the room that's sending to it.
+ *
+ * @param <T> what the writer consumes (encoded frames or pending broadcasts)
+ */
+public class OutboundQueue<T> {
+	private final static long BLOCK_TIMEOUT_MS = 5000;
+	private final static AtomicLong totalDepth = new AtomicLong();
+	private final static AtomicLong dropped = new AtomicLong();
+	private final ArrayBlockingQueue<T> queue;
+	private final OverflowPolicy policy;
+
+	public OutboundQueue(int capacity, OverflowPolicy policy) {
+		this.queue = new ArrayBlockingQueue<T>(capacity);
+		this.policy = policy;
+	}
+
+	/***
+	 * Queues an item applying the overflow policy when full
+	 *
+	 * @param item
+	 * @param mayBlock false if the caller must never wait (i.e., an event loop),
+	 *                 BLOCK is treated as DISCONNECT then
+	 * @return false if the client should be disconnected
+	 */
+	public boolean offer(T item, boolean mayBlock) {
+		if (queue.offer(item)) {
+			totalDepth.incrementAndGet();
+			return true;
+		}
+		switch (policy) {
+		case DROP_OLDEST:
+			while (!queue.offer(item)) {
+				if (queue.poll() != null) {
+					totalDepth.decrementAndGet();
+					dropped.incrementAndGet();
+				}
+			}
+			totalDepth.incrementAndGet();
+			return true;
+		case BLOCK:
+			if (mayBlock) {
+				try {
+					if (queue.offer(item, BLOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+						totalDepth.incrementAndGet();
+						return true;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return false;
+		case DISCONNECT:
+		default:
+			return false;
+		}
+	}
+
+	/***
+	 * Waits for the next item
+	 *
+	 * @return the next item
+	 * @throws InterruptedException
+	 */
+	public T take() throws InterruptedException {
+		T item = queue.take();
+		totalDepth.decrementAndGet();
+		return item;
+	}
+
+	/***
+	 * Moves whatever is queued (up to max items) into batch without waiting
+	 *
+	 * @param batch
+	 * @param max
+	 * @return number of items moved
+	 */
+	public int drainTo(Collection<? super T> batch, int max) {
+		int count = queue.drainTo(batch, max);
+		totalDepth.addAndGet(-count);
+		return count;
+	}
+
+	public T poll() {
+		T item = queue.poll();
+		if (item != null) {
+			totalDepth.decrementAndGet();
+		}
+		return item;
+	}
+
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	public void clear() {
+		int count = queue.size();
+		queue.clear();
+		totalDepth.addAndGet(-count);
+	}
+
+	/***
+	 * @return items queued across every connection
+	 */
+	public static long getTotalDepth() {
+		return totalDepth.get();
+	}
+
+	/***
+	 * @return items thrown away by DROP_OLDEST across every connection
+	 */
+	public static long getDroppedCount() {
+		return dropped.get();
+	}
+}
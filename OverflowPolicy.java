@@ -0,0 +1,9 @@
+package server;
+
+/***
+ * What to do when a client's outbound queue is full because it isn't reading
+ * fast enough
+ */
+public enum OverflowPolicy {
+	DROP_OLDEST, DISCONNECT, BLOCK
+}
@@ -46,6 +46,30 @@ public class Payload implements Serializable {
 		return this.number;
 	}
 
+	// when the sender sent it (their System.nanoTime()), echoed on broadcasts so
+	// load tests can measure delivery latency; 0 if not set
+	private long timestamp;
+
+	public void setTimestamp(long t) {
+		this.timestamp = t;
+	}
+
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	// a chat message's offset in its room's history (1, 2, 3...), on a SESSION
+	// resume the newest offset the client has; 0 if not set
+	private long offset;
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public long getOffset() {
+		return this.offset;
+	}
+
 	@Override
 	public String toString() {
 		return String.format("Type[%s], Number[%s], Message[%s]", getPayloadType().toString(), getNumber(),
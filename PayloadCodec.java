@@ -0,0 +1,282 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/***
+ * Compact binary encoding of a Payload body:
+ *
+ * <pre>
+ * [type:1][number:zigzag varint][clientName:string][message:string][timestamp:zigzag varlong][offset:varlong]
+ * string = [length + 1:varint][UTF-8 bytes], a length of 0 means null
+ * </pre>
+ *
+ * The timestamp and offset are only written when they're set (a timestamp of 0
+ * goes in front of an offset that has none); decoders treat a body that ends
+ * early as 0 for what's missing (and older decoders ignore the extra bytes).
+ *
+ * An instance keeps a reusable buffer so stream based writers/readers don't
+ * allocate per payload. The static helpers size the output exactly so the
+ * selector transport only allocates the frame it queues.
+ */
+public class PayloadCodec {
+	private final static PayloadType[] TYPES = PayloadType.values();
+	private byte[] buffer;
+
+	public PayloadCodec() {
+		this(256);
+	}
+
+	public PayloadCodec(int initialSize) {
+		buffer = new byte[initialSize];
+	}
+
+	/***
+	 * Encodes a full frame (length header + body) into the reusable buffer
+	 *
+	 * @param p
+	 * @return number of valid bytes in getBuffer()
+	 */
+	public int encodeFrame(Payload p) {
+		int size = PayloadFrames.HEADER_SIZE + bodySize(p);
+		if (buffer.length < size) {
+			buffer = new byte[Math.max(size, buffer.length * 2)];
+		}
+		ByteBuffer dst = ByteBuffer.wrap(buffer);
+		dst.putInt(size - PayloadFrames.HEADER_SIZE);
+		writeBody(p, dst);
+		return size;
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/***
+	 * Makes sure the reusable buffer can hold at least size bytes (used by readers
+	 * to read a frame body in place)
+	 *
+	 * @param size
+	 * @return the buffer
+	 */
+	public byte[] ensureCapacity(int size) {
+		if (buffer.length < size) {
+			buffer = new byte[Math.max(size, buffer.length * 2)];
+		}
+		return buffer;
+	}
+
+	/***
+	 * Encodes a full frame (length header + body) into a new, exactly sized buffer
+	 *
+	 * @param p
+	 * @return buffer positioned at 0
+	 */
+	public static ByteBuffer encode(Payload p) {
+		int bodySize = bodySize(p);
+		ByteBuffer frame = ByteBuffer.allocate(PayloadFrames.HEADER_SIZE + bodySize);
+		frame.putInt(bodySize);
+		writeBody(p, frame);
+		frame.flip();
+		return frame;
+	}
+
+	/***
+	 * Decodes a frame body (without the length header)
+	 *
+	 * @param body
+	 * @param offset
+	 * @param length
+	 * @return the decoded payload
+	 * @throws IOException if the body is malformed
+	 */
+	public static Payload decode(byte[] body, int offset, int length) throws IOException {
+		try {
+			ByteBuffer src = ByteBuffer.wrap(body, offset, length);
+			Payload p = new Payload();
+			int type = src.get() & 0xFF;
+			if (type >= TYPES.length) {
+				throw new IOException("Unknown payload type " + type);
+			}
+			p.setPayloadType(TYPES[type]);
+			int zigzag = readVarInt(src);
+			p.setNumber((zigzag >>> 1) ^ -(zigzag & 1));
+			p.setClientName(readString(src));
+			p.setMessage(readString(src));
+			if (src.hasRemaining()) {
+				long zigzagTime = readVarLong(src);
+				p.setTimestamp((zigzagTime >>> 1) ^ -(zigzagTime & 1));
+			}
+			if (src.hasRemaining()) {
+				p.setOffset(readVarLong(src));
+			}
+			return p;
+		} catch (RuntimeException e) {
+			// BufferUnderflowException etc. from a truncated body
+			throw new IOException("Malformed payload frame", e);
+		}
+	}
+
+	private static int bodySize(Payload p) {
+		int number = p.getNumber();
+		int size = 1 + varIntSize((number << 1) ^ (number >> 31)) + stringSize(p.getClientName())
+				+ stringSize(p.getMessage());
+		long timestamp = p.getTimestamp();
+		long offset = p.getOffset();
+		if (timestamp != 0 || offset != 0) {
+			size += varLongSize((timestamp << 1) ^ (timestamp >> 63));
+		}
+		if (offset != 0) {
+			size += varLongSize(offset);
+		}
+		return size;
+	}
+
+	private static void writeBody(Payload p, ByteBuffer dst) {
+		dst.put((byte) p.getPayloadType().ordinal());
+		int number = p.getNumber();
+		writeVarInt(dst, (number << 1) ^ (number >> 31));
+		writeString(dst, p.getClientName());
+		writeString(dst, p.getMessage());
+		long timestamp = p.getTimestamp();
+		long offset = p.getOffset();
+		if (timestamp != 0 || offset != 0) {
+			writeVarLong(dst, (timestamp << 1) ^ (timestamp >> 63));
+		}
+		if (offset != 0) {
+			writeVarLong(dst, offset);
+		}
+	}
+
+	private static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private static void writeVarInt(ByteBuffer dst, int value) {
+		while ((value & ~0x7F) != 0) {
+			dst.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		dst.put((byte) value);
+	}
+
+	private static int readVarInt(ByteBuffer src) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = src.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static int varLongSize(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private static void writeVarLong(ByteBuffer dst, long value) {
+		while ((value & ~0x7FL) != 0) {
+			dst.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		dst.put((byte) value);
+	}
+
+	private static long readVarLong(ByteBuffer src) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			byte b = src.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static int stringSize(String s) {
+		if (s == null) {
+			return 1;
+		}
+		int bytes = utf8Length(s);
+		return varIntSize(bytes + 1) + bytes;
+	}
+
+	private static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/***
+	 * Writes the string as UTF-8 straight into the buffer (String.getBytes() would
+	 * allocate a temporary array per field)
+	 */
+	private static void writeString(ByteBuffer dst, String s) {
+		if (s == null) {
+			dst.put((byte) 0);
+			return;
+		}
+		writeVarInt(dst, utf8Length(s) + 1);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				dst.put((byte) c);
+			} else if (c < 0x800) {
+				dst.put((byte) (0xC0 | (c >> 6)));
+				dst.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				dst.put((byte) (0xF0 | (cp >> 18)));
+				dst.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				dst.put((byte) (0x80 | (cp & 0x3F)));
+			} else {
+				// lone surrogate, the decoder turns it into a replacement char
+				dst.put((byte) (0xE0 | (c >> 12)));
+				dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				dst.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	private static String readString(ByteBuffer src) throws IOException {
+		int length = readVarInt(src) - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (length > src.remaining()) {
+			throw new IOException("String length past end of frame");
+		}
+		String s = new String(src.array(), src.arrayOffset() + src.position(), length, StandardCharsets.UTF_8);
+		src.position(src.position() + length);
+		return s;
+	}
+}
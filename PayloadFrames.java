@@ -0,0 +1,217 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/***
+ * Length prefixed framing for Payloads. Each frame is a 4 byte length followed
+ * by a self contained body so a frame can be decoded without any state from
+ * earlier frames (needed by the selector transport which only sees whatever
+ * bytes are ready on the socket).
+ *
+ * Framed peers start with a hello (magic + highest version they speak) and the
+ * server answers with the version both sides will use. Old clients that open
+ * an ObjectOutputStream straight away are recognized by the serialization
+ * stream magic instead and keep using plain object streams.
+ */
+public class PayloadFrames {
+	public final static int HEADER_SIZE = 4;
+	public final static int MAX_FRAME_SIZE = 1024 * 1024;
+
+	// wire versions
+	public final static int LEGACY_STREAM = 0;// ObjectOutputStream, no hello
+	public final static int SERIALIZED = 1;// frames with a serialized Payload body
+	public final static int BINARY = 2;// frames with a PayloadCodec body
+	public final static int CURRENT_VERSION = BINARY;
+
+	private final static byte[] MAGIC = { 'C', 'H', 'A', 'T' };
+	public final static int HELLO_SIZE = MAGIC.length + 1;
+	private final static int STREAM_MAGIC = 0xACED;// java.io.ObjectStreamConstants.STREAM_MAGIC
+
+	private PayloadFrames() {
+	}
+
+	/***
+	 * Checks the first two bytes a client sent for the java serialization header
+	 *
+	 * @param first
+	 * @param second
+	 * @return true if this is an old ObjectOutputStream based client
+	 */
+	public static boolean isLegacyStream(int first, int second) {
+		return ((first & 0xFF) << 8 | (second & 0xFF)) == STREAM_MAGIC;
+	}
+
+	public static byte[] hello(int version) {
+		byte[] hello = new byte[HELLO_SIZE];
+		System.arraycopy(MAGIC, 0, hello, 0, MAGIC.length);
+		hello[MAGIC.length] = (byte) version;
+		return hello;
+	}
+
+	/***
+	 * Validates a hello and returns the version it carries
+	 *
+	 * @param hello
+	 * @param offset
+	 * @return version from the hello
+	 * @throws IOException if the magic doesn't match
+	 */
+	public static int parseHello(byte[] hello, int offset) throws IOException {
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (hello[offset + i] != MAGIC[i]) {
+				throw new IOException("Unknown protocol");
+			}
+		}
+		int version = hello[offset + MAGIC.length] & 0xFF;
+		if (version < SERIALIZED) {
+			throw new IOException("Unsupported version " + version);
+		}
+		return version;
+	}
+
+	/***
+	 * Client side of the handshake; sends our hello and waits for the version the
+	 * server picked
+	 *
+	 * @param in
+	 * @param out
+	 * @return negotiated version
+	 * @throws IOException
+	 */
+	public static int negotiate(DataInputStream in, OutputStream out) throws IOException {
+		out.write(hello(CURRENT_VERSION));
+		out.flush();
+		byte[] reply = new byte[HELLO_SIZE];
+		in.readFully(reply);
+		return parseHello(reply, 0);
+	}
+
+	/***
+	 * Server side of the handshake for stream based connections. The caller has
+	 * already checked it isn't a legacy stream.
+	 *
+	 * @param in
+	 * @param out
+	 * @return negotiated version
+	 * @throws IOException
+	 */
+	public static int accept(DataInputStream in, OutputStream out) throws IOException {
+		byte[] hello = new byte[HELLO_SIZE];
+		in.readFully(hello);
+		int version = Math.min(parseHello(hello, 0), CURRENT_VERSION);
+		out.write(hello(version));
+		out.flush();
+		return version;
+	}
+
+	/***
+	 * Encodes a payload into a new frame ready to be queued on a channel
+	 *
+	 * @param p
+	 * @param version
+	 * @return buffer positioned at 0 with the frame header and body
+	 * @throws IOException
+	 */
+	public static ByteBuffer encode(Payload p, int version) throws IOException {
+		if (version == BINARY) {
+			return PayloadCodec.encode(p);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		bytes.write(new byte[HEADER_SIZE]);// placeholder for the length
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(p);
+		}
+		ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+		frame.putInt(0, frame.remaining() - HEADER_SIZE);
+		return frame;
+	}
+
+	/***
+	 * Decodes the body of a frame (without the length header)
+	 *
+	 * @param body
+	 * @param offset
+	 * @param length
+	 * @param version
+	 * @return the decoded payload
+	 * @throws IOException
+	 */
+	public static Payload decode(byte[] body, int offset, int length, int version) throws IOException {
+		if (version == BINARY) {
+			return PayloadCodec.decode(body, offset, length);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body, offset, length))) {
+			return (Payload) in.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException("Frame didn't contain a Payload", e);
+		}
+	}
+
+	/***
+	 * Blocking helper for stream based peers. The codec's buffer is reused so
+	 * binary frames don't allocate.
+	 *
+	 * @param out
+	 * @param p
+	 * @param version
+	 * @param codec
+	 * @throws IOException
+	 */
+	public static void write(DataOutputStream out, Payload p, int version, PayloadCodec codec) throws IOException {
+		if (version == BINARY) {
+			int size = codec.encodeFrame(p);
+			out.write(codec.getBuffer(), 0, size);
+		} else {
+			ByteBuffer frame = encode(p, version);
+			out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+		}
+		out.flush();
+	}
+
+	/***
+	 * Blocking helper for stream based peers. The frame body is read into the
+	 * codec's reusable buffer.
+	 *
+	 * @param in
+	 * @param version
+	 * @param codec
+	 * @return the next payload on the stream
+	 * @throws IOException
+	 */
+	public static Payload read(DataInputStream in, int version, PayloadCodec codec) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+			throw new IOException("Invalid frame length " + length);
+		}
+		byte[] body = codec.ensureCapacity(length);
+		in.readFully(body, 0, length);
+		return decode(body, 0, length, version);
+	}
+
+	/***
+	 * Peeks at the first two bytes without consuming them
+	 *
+	 * @param in must support mark/reset
+	 * @return true if the peer is an old ObjectOutputStream client
+	 * @throws IOException
+	 */
+	public static boolean peekLegacyStream(InputStream in) throws IOException {
+		in.mark(2);
+		int first = in.read();
+		int second = in.read();
+		in.reset();
+		if (first < 0 || second < 0) {
+			throw new IOException("Connection closed before handshake");
+		}
+		return isLegacyStream(first, second);
+	}
+}
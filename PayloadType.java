@@ -1,5 +1,5 @@
 package server;
 
 public enum PayloadType {
-	CONNECT, DISCONNECT, MESSAGE, CREATE_ROOM, JOIN_ROOM, GET_ROOMS
+	CONNECT, DISCONNECT, MESSAGE, CREATE_ROOM, JOIN_ROOM, GET_ROOMS, CLEAR_PLAYERS, GET_HISTORY, SESSION
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/***
+ * Fixed size ring of the last broadcasts sent in a room, so a joiner can be
+ * caught up from memory without reading the history files. The slots are
+ * allocated once; a broadcast is stored as the Broadcast itself so whatever
+ * frames it already encoded are reused when it's replayed.
+ *
+ * Adding never locks: a writer claims the next sequence with one atomic
+ * increment and publishes the broadcast into its slot. Readers check each
+ * slot's sequence and skip anything that was overwritten (or not published
+ * yet) while they looked.
+ */
+public class RecentMessages {
+	private final int capacity;
+	private final int mask;
+	private final AtomicReferenceArray<Broadcast> slots;
+	private final AtomicLong next = new AtomicLong();
+
+	/***
+	 * @param capacity how many broadcasts to keep
+	 */
+	public RecentMessages(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		int size = Integer.highestOneBit(this.capacity);
+		if (size < this.capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		slots = new AtomicReferenceArray<Broadcast>(size);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/***
+	 * @return how many broadcasts are currently kept
+	 */
+	public int size() {
+		return (int) Math.min(next.get(), capacity);
+	}
+
+	/***
+	 * Stores the broadcast, replacing the oldest one once the ring is full
+	 *
+	 * @param broadcast
+	 */
+	public void add(Broadcast broadcast) {
+		long sequence = next.getAndIncrement();
+		broadcast.setSequence(sequence);
+		// release store, readers that see the broadcast also see its sequence
+		slots.lazySet((int) (sequence & mask), broadcast);
+	}
+
+	/***
+	 * @param max
+	 * @return up to max of the newest broadcasts, oldest first
+	 */
+	public List<Broadcast> getRecent(int max) {
+		long end = next.get();
+		long start = Math.max(0, end - Math.min(max, capacity));
+		List<Broadcast> recent = new ArrayList<Broadcast>((int) (end - start));
+		for (long sequence = start; sequence < end; sequence++) {
+			Broadcast broadcast = slots.get((int) (sequence & mask));
+			if (broadcast != null && broadcast.getSequence() == sequence) {
+				recent.add(broadcast);
+			}
+		}
+		return recent;
+	}
+}
@@ -0,0 +1,70 @@
+package server;
+
+/***
+ * Stand in for a client connected to another node of the cluster, so it can be
+ * a member of a room owned here like anyone else. Whatever the room sends it
+ * goes over the link to the client's node.
+ */
+class RemoteClient extends ServerThread {
+	private final ClusterLink link;
+	private final long remoteId;
+	private final String name;
+
+	/***
+	 * @param link     to the client's node
+	 * @param remoteId the client's id on its node
+	 * @param name
+	 * @param lobby
+	 */
+	RemoteClient(ClusterLink link, long remoteId, String name, Room lobby) {
+		super((NioConnection) null, lobby);
+		this.link = link;
+		this.remoteId = remoteId;
+		this.name = name;
+	}
+
+	protected ClusterLink getLink() {
+		return link;
+	}
+
+	protected long getRemoteId() {
+		return remoteId;
+	}
+
+	@Override
+	public String getClientName() {
+		return name;
+	}
+
+	@Override
+	protected boolean sendPayload(Payload p) {
+		return link.deliver(remoteId, p);
+	}
+
+	@Override
+	protected boolean sendBroadcast(Broadcast broadcast) {
+		return link.deliver(remoteId, broadcast);
+	}
+
+	@Override
+	protected boolean sendRoomBroadcast(Broadcast broadcast) {
+		// everyone on that node gets it from one copy
+		return link.relay(getCurrentRoom(), broadcast);
+	}
+
+	@Override
+	protected boolean sendClearList() {
+		Payload payload = new Payload();
+		payload.setPayloadType(PayloadType.CLEAR_PLAYERS);
+		return sendPayload(payload);
+	}
+
+	@Override
+	protected boolean sendHistoryEnd(String room, int count) {
+		Payload payload = new Payload();
+		payload.setPayloadType(PayloadType.GET_HISTORY);
+		payload.setMessage(room);
+		payload.setNumber(count);
+		return sendPayload(payload);
+	}
+}
@@ -0,0 +1,107 @@
+package server;
+
+/***
+ * This node's side of a room owned by another node of the cluster. It only
+ * tracks the members connected here: joins, leaves, chat and history requests
+ * are forwarded to the owner, and the owner's broadcasts come back once per
+ * node and are fanned out to the local members (applying their mutes) like any
+ * room's. Commands and private messages still run here, on the sender's node.
+ *
+ * When the room moves to another node the link is pointed at the new owner;
+ * the old owner keeps one for its own members and passes on whatever arrives
+ * for the room from nodes that didn't hear about the move yet.
+ */
+class RemoteRoom extends Room {
+	private volatile ClusterLink link;
+
+	/***
+	 * @param name
+	 * @param link to the node that owns the room
+	 */
+	RemoteRoom(String name, ClusterLink link) {
+		// the owner keeps the recent messages
+		super(name, 1);
+		this.link = link;
+	}
+
+	/***
+	 * @param name
+	 * @param link     to the node the room moved to
+	 * @param replaced our room that moved away, see Room(name, recentSize,
+	 *                 history, replaced)
+	 */
+	RemoteRoom(String name, ClusterLink link, Room replaced) {
+		super(name, 1, null, replaced);
+		this.link = link;
+	}
+
+	protected ClusterLink getLink() {
+		return link;
+	}
+
+	/***
+	 * @param link to the room's new owner
+	 */
+	protected void setLink(ClusterLink link) {
+		this.link = link;
+	}
+
+	@Override
+	protected void addClient(ServerThread client) {
+		if (client instanceof RemoteClient) {
+			// a third node's client that reached us before that node heard the room moved
+			link.sendJoin(getName(), client);
+			return;
+		}
+		super.addClient(client);
+	}
+
+	@Override
+	protected void removeClient(ServerThread client) {
+		if (client instanceof RemoteClient) {
+			link.sendLeave(getName(), client);
+			return;
+		}
+		super.removeClient(client);
+	}
+
+	@Override
+	protected void onJoined(ServerThread client) {
+		// the owner sends the member list, catch up and join notice
+		link.sendJoin(getName(), client);
+	}
+
+	@Override
+	protected void onLeft(ServerThread client) {
+		link.sendLeave(getName(), client);
+	}
+
+	@Override
+	protected void cleanupEmptyRoom() {
+		// the owner decides when the room goes away, we hear about it over the link
+	}
+
+	@Override
+	protected void publish(ServerThread sender, String message, long timestamp) {
+		link.sendMessage(getName(), sender, message, timestamp);
+	}
+
+	@Override
+	protected void sendHistory(ServerThread client, int count, long after) {
+		Room moved = getMovedTo();
+		if (moved != null) {
+			moved.sendHistory(client, count, after);
+			return;
+		}
+		link.sendHistory(getName(), client, count, after);
+	}
+
+	/***
+	 * Fans out a broadcast the owner relayed to us
+	 *
+	 * @param broadcast
+	 */
+	protected void deliver(Broadcast broadcast) {
+		execute(() -> fanOut(broadcast));
+	}
+}
@@ -1,17 +1,29 @@
 package server;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
-import java.util.logging.Logger;
 
+/***
+ * A chat room. Each room is an actor: joins, leaves, commands and broadcasts are
+ * posted to its Mailbox and run one at a time on the worker thread the room is
+ * pinned to, so the members and mute index are plain collections only that
+ * thread touches. Rooms created without a server (i.e. by the benchmarks) have
+ * no mailbox and run everything on the caller.
+ */
 public class Room implements AutoCloseable {
 	private static SocketServer server;
-	private String name;
-	private final static Logger log = Logger.getLogger(Room.class.getName());
+	private volatile String name;
+	private final static AsyncLog log = AsyncLog.getLogger(Room.class.getName());
 
-	private final static String COMMAND_TRIGGER = "/";
 	private final static String CREATE_ROOM = "createroom";
 	private final static String JOIN_ROOM = "joinroom";
 	private final static String ROLL = "roll";
@@ -19,9 +31,58 @@ public class Room implements AutoCloseable {
 	private final static String PM = "@";
 	private final static String MUTE = "mute";
 	private final static String UNMUTE = "unmute";
+	// built in commands, more can be added through getCommands()
+	private final static CommandRegistry commands = new CommandRegistry();
+	private final static int DEFAULT_HISTORY = 50;
+	private final static int DEFAULT_RECENT = 100;
+	// joiners get the ring as individual payloads, keep it under the outbound
+	// queue size
+	private final static int MAX_RECENT = 1024;
+	// per request, clients page with the last offset they got. Replays are views of
+	// the mapped log so a big one costs the same few objects as a small one.
+	private final static int MAX_HISTORY = 10000;
+	// rooms a client created that can be open at once, each holds history files
+	private final static int MAX_ROOMS_PER_CLIENT = 10;
 
 	public Room(String name) {
+		this(name, 0);
+	}
+
+	/***
+	 * @param name
+	 * @param recentSize how many recent broadcasts to keep in memory for joiners,
+	 *                   0 for the default
+	 */
+	public Room(String name, int recentSize) {
+		this(name, recentSize, server == null ? null : server.getHistory(name));
+	}
+
+	/***
+	 * @param name
+	 * @param recentSize
+	 * @param history    where the room's messages are kept, null for nowhere
+	 */
+	protected Room(String name, int recentSize, RoomHistory history) {
+		this(name, recentSize, history, null);
+	}
+
+	/***
+	 * @param name
+	 * @param recentSize
+	 * @param history    where the room's messages are kept, null for nowhere
+	 * @param replaced   the room this one takes the place of when the room moves
+	 *                   between nodes, null if none. They share a mailbox so
+	 *                   whatever was posted to it and to us stays in order.
+	 */
+	protected Room(String name, int recentSize, RoomHistory history, Room replaced) {
 		this.name = name;
+		this.history = history;
+		this.recent = new RecentMessages(recentSize > 0 ? Math.min(recentSize, MAX_RECENT) : DEFAULT_RECENT);
+		if (replaced != null) {
+			this.mailbox = replaced.mailbox;
+		} else {
+			this.mailbox = server == null ? null : server.newMailbox(name);
+		}
 	}
 
 	public static void setServer(SocketServer server) {
@@ -32,20 +93,146 @@ public class Room implements AutoCloseable {
 		return name;
 	}
 
-	private List<ServerThread> clients = new ArrayList<ServerThread>();
+	public int getClientCount() {
+		return clientCount;
+	}
+
+	// where everything that touches the fields below runs, null = on the caller
+	private final Mailbox mailbox;
+	// only changed by tasks on our mailbox, and never while a task is iterating
+	// it: anything that wants a member gone posts a removal instead
+	private final List<ServerThread> clients = new ArrayList<ServerThread>();
+	private volatile int clientCount = 0;// for the metrics thread
+	// muted name -> members of this room that muted them, so a broadcast only
+	// has to look at the muters of its sender
+	private final Map<String, Set<ServerThread>> mutedBy = new HashMap<String, Set<ServerThread>>();
+	// chat messages are appended here, null if the server doesn't keep history
+	private final RoomHistory history;
+	// the newest broadcasts, so most joins are caught up without the history
+	private final RecentMessages recent;
+	// where the room went once it moved to or from another node of the cluster,
+	// whatever is still posted to us is passed on to it
+	private volatile Room movedTo;
+	// while the room is moving here: chat that didn't come through the old owner,
+	// by the node it came from (ours for our own clients), until that node's
+	// fence comes through the old owner behind everything it sent there
+	private Map<String, List<Runnable>> held;// worker only, null unless moving here
+
+	/***
+	 * Runs the task on this room's worker after everything already posted to it
+	 * 
+	 * @param task
+	 */
+	protected void execute(Runnable task) {
+		if (mailbox == null) {
+			task.run();
+		} else {
+			mailbox.post(task);
+		}
+	}
+
+	/***
+	 * Runs a task the room we replaced (or that replaced us) passes on. With a
+	 * shared mailbox it runs right away, so it keeps its place ahead of what
+	 * was posted after it.
+	 * 
+	 * @param from
+	 * @param task
+	 */
+	private void forwarded(Room from, Runnable task) {
+		if (mailbox != null && mailbox == from.mailbox) {
+			task.run();
+		} else {
+			execute(task);
+		}
+	}
 
-	protected synchronized void addClient(ServerThread client) {
-		client.setCurrentRoom(this);
-		if (clients.indexOf(client) > -1) {
+	/***
+	 * Adds the client to this room. The client should already point at this
+	 * room (see SocketServer.joinRoom()) so whatever it sends next is posted here
+	 * after the join.
+	 * 
+	 * @param client
+	 */
+	protected void addClient(ServerThread client) {
+		execute(() -> addClientNow(client));
+	}
+
+	private void addClientNow(ServerThread client) {
+		Room moved = movedTo;
+		if (moved != null) {
+			// posted before the room moved, join where it is now
+			if (client.compareAndSetCurrentRoom(this, moved)) {
+				moved.addClient(client);
+			}
+			return;
+		}
+		if (!client.compareAndSetCurrentRoom(null, this) && client.getCurrentRoom() != this) {
+			// moved on to another room before we got to it
+			return;
+		}
+		if (name == null) {
+			// closed between the lookup and the add
+			Room lobby = server.getLobby();
+			if (lobby != this && client.compareAndSetCurrentRoom(this, lobby)) {
+				lobby.addClient(client);
+			}
+			return;
+		}
+		if (clients.contains(client)) {
 			log.log(Level.INFO, "Attempting to add a client that already exists");
 		} else {
 			clients.add(client);
-			if (client.getClientName() != null) {
-				client.sendClearList();
-				sendConnectionStatus(client, true, "joined the room " + getName());
-				updateClientList(client);
+			clientCount = clients.size();
+			indexMutes(client);
+			onJoined(client);
+		}
+	}
+
+	/***
+	 * Catches up and announces a client that was just added
+	 * 
+	 * @param client
+	 */
+	protected void onJoined(ServerThread client) {
+		if (client.getClientName() != null) {
+			client.sendClearList();
+			// catch them up before anything new arrives
+			sendRecent(client);
+			sendConnectionStatus(client, true, "joined the room " + getName());
+			updateClientList(client);
+		}
+	}
+
+	/***
+	 * Sends a joining client the newest messages. They come from the in memory
+	 * ring unless the client wants more than it holds and the history has more
+	 * (i.e. right after a restart, when the ring is still empty).
+	 * 
+	 * @param client
+	 */
+	private void sendRecent(ServerThread client) {
+		int wanted = SocketServer.getJoinHistory();
+		if (wanted <= 0) {
+			return;
+		}
+		int kept = recent.size();
+		if (history != null && kept < wanted && history.getLastOffset() > kept) {
+			sendHistory(client, wanted, 0);
+			return;
+		}
+		int count = 0;
+		Iterator<Broadcast> iter = recent.getRecent(wanted).iterator();
+		while (iter.hasNext()) {
+			Broadcast broadcast = iter.next();
+			if (!client.isMuted(broadcast.getPayload().getClientName())) {
+				if (!client.sendBroadcast(broadcast)) {
+					return;
+				}
+				count++;
 			}
 		}
+		client.sendHistoryEnd(getName(), count);
 	}
 
 	private void updateClientList(ServerThread client) {
@@ -58,114 +245,435 @@ public class Room implements AutoCloseable {
 		}
 	}
 
-	protected synchronized void removeClient(ServerThread client) {
-		clients.remove(client);
+	protected void removeClient(ServerThread client) {
+		execute(() -> removeClientNow(client));
+	}
+
+	private void removeClientNow(ServerThread client) {
+		Room moved = movedTo;
+		if (moved != null) {
+			// unless it left us for where the room is now
+			if (client.getCurrentRoom() != moved) {
+				moved.removeClient(client);
+			}
+			return;
+		}
+		if (clients.remove(client)) {
+			clientCount = clients.size();
+			unindexMutes(client);
+			onLeft(client);
+		}
+		if (clients.isEmpty()) {
+			cleanupEmptyRoom();
+		}
+	}
+
+	/***
+	 * Announces a client that was just removed
+	 * 
+	 * @param client
+	 */
+	protected void onLeft(ServerThread client) {
 		if (clients.size() > 0) {
 			sendConnectionStatus(client, false, "left the room " + getName());
-		} else {
-			cleanupEmptyRoom();
 		}
 	}
 
-	private void cleanupEmptyRoom() {
+	/***
+	 * Takes over the members of the room when it moved between nodes, without
+	 * announcing them (everyone saw them join already). They're pointed at us by
+	 * our worker, so whatever they send from then on comes after.
+	 * 
+	 * @param members
+	 * @param from    where our clients among them are now, null if none are
+	 */
+	protected void adoptClients(List<ServerThread> members, Room from) {
+		execute(() -> {
+			Iterator<ServerThread> iter = members.iterator();
+			while (iter.hasNext()) {
+				ServerThread client = iter.next();
+				if (client instanceof RemoteClient) {
+					Room old = client.swapCurrentRoom(this);
+					if (old != null && old != this) {
+						old.removeClient(client);
+					}
+				} else if (from == null || !client.compareAndSetCurrentRoom(from, this)) {
+					// left before the room got here
+					continue;
+				}
+				if (!clients.contains(client)) {
+					clients.add(client);
+					indexMutes(client);
+				}
+			}
+			clientCount = clients.size();
+		});
+	}
+
+	/***
+	 * Hands the room over to another node of the cluster, see Cluster.migrate().
+	 * Runs on our worker so nothing changes while the members, recent messages
+	 * and history offset are copied. Clients keep their connections: ours stay
+	 * in a RemoteRoom for the room, and whatever is still posted to this room is
+	 * passed on to that.
+	 * 
+	 * @param link to the new owner
+	 */
+	protected void moveTo(ClusterLink link) {
+		execute(() -> moveNow(link));
+	}
+
+	private void moveNow(ClusterLink link) {
+		String roomName = name;
+		if (roomName == null || movedTo != null) {
+			return;
+		}
+		// still arriving from its last move, what we held goes out before it leaves
+		releaseHeld();
+		long nextOffset = history != null ? history.getNextOffset() : 0;
+		if (!link.sendMigrate(roomName, recent.getCapacity(), nextOffset, clients,
+				recent.getRecent(recent.getCapacity()))) {
+			log.log(Level.WARNING, "Couldn''t move room {0} to node {1}", roomName, link.getNodeId());
+			return;
+		}
+		RemoteRoom remote = server.roomMoved(this, link);
+		int count = clients.size();
+		List<ServerThread> ours = new ArrayList<ServerThread>();
+		Iterator<ServerThread> iter = clients.iterator();
+		while (iter.hasNext()) {
+			ServerThread client = iter.next();
+			if (client instanceof RemoteClient) {
+				// the new owner has them now, we only pass on what's still on its way
+				link.movedAway((RemoteClient) client, this, remote);
+			} else {
+				ours.add(client);
+			}
+		}
+		remote.adoptClients(ours, this);
+		clients.clear();
+		mutedBy.clear();
+		clientCount = 0;
+		movedTo = remote;
+		log.log(Level.INFO, "Moved room {0} with {1} members to node {2}", roomName, count, link.getNodeId());
+	}
+
+	/***
+	 * Passes whoever is still here on to the room that replaced us after the room
+	 * moved to this node. The members the old owner knew are adopted by the new
+	 * room (see adoptClients()), the rest had their join still on its way and
+	 * join properly.
+	 * 
+	 * @param room
+	 * @param known the old owner's members
+	 */
+	protected void handOver(Room room, Set<ServerThread> known) {
+		execute(() -> {
+			Iterator<ServerThread> iter = clients.iterator();
+			while (iter.hasNext()) {
+				ServerThread client = iter.next();
+				if (!known.contains(client) && client.compareAndSetCurrentRoom(this, room)) {
+					room.addClient(client);
+				}
+			}
+			clients.clear();
+			mutedBy.clear();
+			clientCount = 0;
+			movedTo = room;
+		});
+	}
+
+	/***
+	 * @return where the room's messages are kept, null for nowhere
+	 */
+	protected RoomHistory getHistory() {
+		return history;
+	}
+
+	/***
+	 * @return the room that replaced this one, null unless it moved
+	 */
+	protected Room getMovedTo() {
+		return movedTo;
+	}
+
+	/***
+	 * Picks up where the room's previous owner left off: its history offsets and
+	 * recent messages. Called before the room is registered.
+	 * 
+	 * @param nextOffset offset the old owner would have given the next message
+	 * @param broadcasts the old owner's ring, oldest first
+	 */
+	protected void resume(long nextOffset, List<Broadcast> broadcasts) {
+		if (history != null) {
+			history.skipTo(nextOffset);
+		}
+		Iterator<Broadcast> iter = broadcasts.iterator();
+		while (iter.hasNext()) {
+			recent.add(iter.next());
+		}
+	}
+
+	protected void cleanupEmptyRoom() {
 		if (name == null || name.equalsIgnoreCase(SocketServer.LOBBY)) {
 			return;
 		}
-		try {
-			log.log(Level.INFO, "Closing empty room: " + name);
-			close();
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		log.log(Level.INFO, "Closing empty room: {0}", name);
+		closeNow();
+	}
+
+	private void indexMutes(ServerThread client) {
+		for (String muted : client.mutedList) {
+			indexMute(client, muted);
 		}
 	}
 
-	protected void joinRoom(String room, ServerThread client) {
-		server.joinRoom(room, client);
+	private void unindexMutes(ServerThread client) {
+		for (String muted : client.mutedList) {
+			unindexMute(client, muted);
+		}
+	}
+
+	private void indexMute(ServerThread client, String muted) {
+		mutedBy.computeIfAbsent(muted, name -> new HashSet<ServerThread>()).add(client);
+	}
+
+	private void unindexMute(ServerThread client, String muted) {
+		mutedBy.computeIfPresent(muted, (name, muters) -> {
+			muters.remove(client);
+			return muters.isEmpty() ? null : muters;
+		});
+	}
+
+	/***
+	 * Mutes a user for the client and updates this room's mute index. Runs on the
+	 * room's worker (it's called by the mute command).
+	 * 
+	 * @param client
+	 * @param muted
+	 * @return false if it was already muted
+	 */
+	protected boolean mute(ServerThread client, String muted) {
+		if (!client.mutedList.add(muted)) {
+			return false;
+		}
+		if (client.getCurrentRoom() == this) {
+			indexMute(client, muted);
+		}
+		return true;
+	}
+
+	/***
+	 * Unmutes a user for the client and updates this room's mute index. Runs on
+	 * the room's worker.
+	 * 
+	 * @param client
+	 * @param muted
+	 * @return false if it wasn't muted
+	 */
+	protected boolean unmute(ServerThread client, String muted) {
+		if (!client.mutedList.remove(muted)) {
+			return false;
+		}
+		unindexMute(client, muted);
+		return true;
+	}
+
+	protected boolean joinRoom(String room, ServerThread client) {
+		return server.joinRoom(room, client);
 	}
 
 	protected void joinLobby(ServerThread client) {
 		server.joinLobby(client);
 	}
 
+	protected void registerClient(ServerThread client) {
+		server.registerClient(client);
+	}
+
+	protected void unregisterClient(ServerThread client) {
+		server.unregisterClient(client);
+	}
+
+	protected void forgetClient(ServerThread client) {
+		server.forgetClient(client);
+	}
+
+	protected void addSession(ServerThread client) {
+		server.addSession(client);
+	}
+
+	protected void parkSession(ServerThread client) {
+		server.parkSession(client);
+	}
+
+	protected ServerThread takeSession(String token) {
+		return server.takeSession(token);
+	}
+
+	/***
+	 * Puts a resumed connection in the place of its parked session (see
+	 * ServerThread.resume()) and sends it what it missed. Nobody else is told,
+	 * for them the client never left. The new connection already points at us,
+	 * so whatever it sends comes after this.
+	 * 
+	 * @param parked the session's old connection
+	 * @param client the new connection
+	 * @param after  newest message offset the client has, 0 if it doesn't know
+	 */
+	protected void resumeClient(ServerThread parked, ServerThread client, long after) {
+		execute(() -> {
+			int index = clients.indexOf(parked);
+			if (index < 0 || movedTo != null) {
+				// dropped or moved on meanwhile, join the usual way
+				parked.endSession();
+				addClientNow(client);
+				return;
+			}
+			clients.set(index, client);
+			unindexMutes(parked);
+			indexMutes(client);
+			parked.replayMissed(client, sendMissed(client, after));
+		});
+	}
+
+	/***
+	 * Sends a resuming client the messages after the offset it has, from the ring
+	 * if it reaches back that far, otherwise from the history plus whatever the
+	 * history writer hasn't caught up with yet
+	 * 
+	 * @param client
+	 * @param after
+	 * @return newest offset the client has now, 0 if the room doesn't number its
+	 *         messages
+	 */
+	private long sendMissed(ServerThread client, long after) {
+		if (history == null || after <= 0) {
+			return 0;
+		}
+		List<Broadcast> kept = recent.getRecent(recent.getCapacity());
+		long upTo = after;
+		if (kept.isEmpty() || kept.get(0).getPayload().getOffset() > after + 1) {
+			long written = history.getLastOffset();
+			try {
+				client.sendHistory(getName(), history.readAfter(after, MAX_HISTORY));
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Problem reading history for {0}", getName(), e);
+			}
+			upTo = Math.max(upTo, written);
+		}
+		Iterator<Broadcast> iter = kept.iterator();
+		while (iter.hasNext()) {
+			Broadcast broadcast = iter.next();
+			long offset = broadcast.getPayload().getOffset();
+			if (offset > upTo) {
+				if (!client.isMuted(broadcast.getPayload().getClientName()) && !client.sendBroadcast(broadcast)) {
+					break;
+				}
+				upTo = offset;
+			}
+		}
+		return upTo;
+	}
+
 	/***
 	 * Helper function to process messages to trigger different functionality.
+	 * Only messages starting with the command trigger are looked at, see
+	 * CommandRegistry.
 	 * 
 	 * @param message The original message being sent
 	 * @param client  The sender of the message (since they'll be the ones
 	 *                triggering the actions)
 	 */
 	private boolean processCommands(String message, ServerThread client) {
-		boolean wasCommand = false;
-		try {
-			if (message.indexOf(COMMAND_TRIGGER) > -1) {
-				String[] comm = message.split(COMMAND_TRIGGER);
-				log.log(Level.INFO, message);
-				String part1 = comm[1];
-				String[] comm2 = part1.split(" ");
-				String command = comm2[0];
-				if (command != null) {
-					command = command.toLowerCase();
+		return commands.dispatch(this, client, message);
+	}
+
+	/***
+	 * Registry the chat commands are looked up in, more can be registered here
+	 * 
+	 * @return
+	 */
+	public static CommandRegistry getCommands() {
+		return commands;
+	}
+
+	private static boolean usage(ServerThread client, String usage) {
+		client.send(client.getClientName(), "Usage: " + usage);
+		return true;
+	}
+
+	static {
+		commands.register(CREATE_ROOM, (room, client, args) -> {
+			String roomName = args.get(0);
+			if (roomName == null) {
+				return usage(client, "/createroom name [recent messages kept]");
+			}
+			List<String> created = client.getCreatedRooms();
+			synchronized (created) {
+				// the ones that closed since don't count
+				created.removeIf(name -> !server.hasRoom(name));
+				if (created.size() >= MAX_ROOMS_PER_CLIENT) {
+					client.send(client.getClientName(),
+							"You already have " + created.size() + " rooms open, wait for one to close");
+					return true;
 				}
-				String roomName;
-				switch (command) {
-				case CREATE_ROOM:
-					roomName = comm2[1];
-					if (server.createNewRoom(roomName)) {
-						joinRoom(roomName, client);
-					}
-					wasCommand = true;
-					break;
-				case JOIN_ROOM:
-					roomName = comm2[1];
-					joinRoom(roomName, client);
-					wasCommand = true;
-					break;
-				case ROLL:
-					// roll a number from 1 to 1000 randomly
-					// changed the output text into underlined
-					int randomNum = (int) ((Math.random() * (1000)));
-					String rMsg = "<u>The number is<u> " + Integer.toString(randomNum);
-					sendMessage(client, rMsg);
-					wasCommand = true;
-					break;
-				case FLIP:
-					// flip a coin either heads or tails
-					// change the color of the result to purple if heads and green for tails
-					// I used HTML for this
-					int flipCoin = ((int) Math.random() * 2);
-					String fMsg = "Ezpz u got <style=color:purple> Heads \\_(^_^)_/";
-					if (flipCoin == 2) {
-						fMsg = "Oh u got <style=color:green>Tails";
-					}
-					sendMessage(client, fMsg);
-					wasCommand = true;
-					break;
-				case MUTE:
-					String[] msgMute = message.split(" ");
-					String mutedUser = msgMute[1];
-					client.mutedList.add(mutedUser);
-					sendMessage(client, "<b> muted <b> " + mutedUser);
-					wasCommand = true;
-					break;
-				case UNMUTE:
-					String[] msgUnmute = message.split(" ");
-					String unmutedUser = msgUnmute[1];
-					for (String name : client.mutedList) {
-						if (name.equals(unmutedUser)) {
-							client.mutedList.remove(unmutedUser);
-							sendMessage(client, "<b>unmuted <b>" + unmutedUser);
-							wasCommand = true;
-							break;
-						}
-					}
-					break;
+				// optional size of the room's recent message ring, i.e. /createroom name 500
+				if (!server.createNewRoom(roomName, args.getInt(1, 0))) {
+					return true;
 				}
+				created.add(roomName);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return wasCommand;
+			room.joinRoom(roomName, client);
+			return true;
+		});
+		commands.register(JOIN_ROOM, (room, client, args) -> {
+			String roomName = args.get(0);
+			if (roomName == null) {
+				return usage(client, "/joinroom name");
+			}
+			room.joinRoom(roomName, client);
+			return true;
+		});
+		commands.register(ROLL, (room, client, args) -> {
+			// roll a number from 1 to 1000 randomly
+			// changed the output text into underlined
+			int randomNum = (int) ((Math.random() * (1000)));
+			String rMsg = "<u>The number is<u> " + Integer.toString(randomNum);
+			room.sendMessage(client, rMsg);
+			return true;
+		});
+		commands.register(FLIP, (room, client, args) -> {
+			// flip a coin either heads or tails
+			// change the color of the result to purple if heads and green for tails
+			// I used HTML for this
+			int flipCoin = ((int) Math.random() * 2);
+			String fMsg = "Ezpz u got <style=color:purple> Heads \\_(^_^)_/";
+			if (flipCoin == 2) {
+				fMsg = "Oh u got <style=color:green>Tails";
+			}
+			room.sendMessage(client, fMsg);
+			return true;
+		});
+		commands.register(MUTE, (room, client, args) -> {
+			String mutedUser = args.get(0);
+			if (mutedUser == null) {
+				return usage(client, "/mute name");
+			}
+			room.mute(client, mutedUser);
+			room.sendMessage(client, "<b> muted <b> " + mutedUser);
+			return true;
+		});
+		commands.register(UNMUTE, (room, client, args) -> {
+			String unmutedUser = args.get(0);
+			if (unmutedUser == null) {
+				return usage(client, "/unmute name");
+			}
+			if (room.unmute(client, unmutedUser)) {
+				room.sendMessage(client, "<b>unmuted <b>" + unmutedUser);
+				return true;
+			}
+			return false;
+		});
 	}
 
 	// TODO changed from string to ServerThread
@@ -175,12 +683,26 @@ public class Room implements AutoCloseable {
 			ServerThread c = iter.next();
 			boolean messageSent = c.sendConnectionStatus(client.getClientName(), isConnect, message);
 			if (!messageSent) {
-				iter.remove();
-				log.log(Level.INFO, "Removed client " + c.getId());
+				dropClient(c);
 			}
 		}
 	}
 
+	/***
+	 * Removes a client we failed to send to. The removal is posted rather than
+	 * done right away so it's safe to call mid broadcast.
+	 * 
+	 * @param client
+	 */
+	private void dropClient(ServerThread client) {
+		if (client.isResumable()) {
+			// its connection is closing, the session it leaves behind stays here
+			return;
+		}
+		log.log(Level.INFO, "Removing client {0}", client.getId());
+		removeClient(client);
+	}
+
 	/***
 	 * Takes a sender and a message and broadcasts the message to all clients in
 	 * this room. Client is mostly passed for command purposes but we can also use
@@ -190,46 +712,234 @@ public class Room implements AutoCloseable {
 	 * @param message The message to broadcast inside the room
 	 */
 	protected void sendMessage(ServerThread sender, String message) {
-		log.log(Level.INFO, getName() + ": Sending message to " + clients.size() + " clients");
+		sendMessage(sender, message, 0);
+	}
+
+	/***
+	 * Same as sendMessage(sender, message) but echoes the sender's timestamp on the
+	 * broadcast
+	 * 
+	 * @param sender
+	 * @param message
+	 * @param timestamp from the sender's payload, 0 if none
+	 */
+	protected void sendMessage(ServerThread sender, String message, long timestamp) {
+		execute(() -> broadcast(sender, message, timestamp));
+	}
+
+	private void broadcast(ServerThread sender, String message, long timestamp) {
+		Room moved = movedTo;
+		if (moved != null) {
+			moved.forwarded(this, () -> moved.broadcast(sender, message, timestamp));
+			return;
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "{0}: Sending message to {1} clients", getName(), clients.size());
+		}
 		if (processCommands(message, sender)) {
 			return;
 		}
 		if (sendPM(sender, message)) {
 			return;
 		}
+		if (!hold(server.getNodeId(), sender, message, timestamp)) {
+			publish(sender, message, timestamp);
+		}
+	}
+
+	/***
+	 * Sends chat that was already checked for commands and private messages (on
+	 * the sender's node, see ClusterLink)
+	 * 
+	 * @param sender
+	 * @param message
+	 * @param timestamp
+	 * @param via       node whose link it came over
+	 */
+	protected void sendChat(ServerThread sender, String message, long timestamp, String via) {
+		execute(() -> chat(sender, message, timestamp, via));
+	}
+
+	private void chat(ServerThread sender, String message, long timestamp, String via) {
+		Room moved = movedTo;
+		if (moved != null) {
+			moved.forwarded(this, () -> moved.chat(sender, message, timestamp, via));
+		} else if (!hold(via, sender, message, timestamp)) {
+			publish(sender, message, timestamp);
+		}
+	}
+
+	/***
+	 * Keeps chat from the node back while we wait on its fence, see holdChat()
+	 * 
+	 * @return true if it's held
+	 */
+	private boolean hold(String via, ServerThread sender, String message, long timestamp) {
+		List<Runnable> waiting = held == null || via == null ? null : held.get(via);
+		if (waiting == null) {
+			return false;
+		}
+		waiting.add(() -> publish(sender, message, timestamp));
+		return true;
+	}
+
+	/***
+	 * Called for a room that's moving here, before anyone can post to it. Chat
+	 * the nodes sent before they heard of the move goes through the old owner,
+	 * so what they send us directly waits until their fence arrives the same
+	 * way (see releaseChat()). Chat the old owner passes on isn't held.
+	 * 
+	 * @param nodes every node that sends a fence, including this one
+	 */
+	protected void holdChat(Collection<String> nodes) {
+		execute(() -> {
+			held = new HashMap<String, List<Runnable>>();
+			Iterator<String> iter = nodes.iterator();
+			while (iter.hasNext()) {
+				held.put(iter.next(), new ArrayList<Runnable>());
+			}
+		});
+	}
+
+	/***
+	 * The node's fence arrived: everything it sent through the old owner is
+	 * here, the chat it sent us directly goes out after it
+	 * 
+	 * @param node null for every node, when we can't wait any longer
+	 */
+	protected void releaseChat(String node) {
+		execute(() -> {
+			if (held == null) {
+				return;
+			}
+			if (node == null) {
+				log.log(Level.WARNING, "{0} stopped waiting for fences from {1}", getName(), held.keySet());
+				releaseHeld();
+				return;
+			}
+			List<Runnable> waiting = held.remove(node);
+			if (held.isEmpty()) {
+				held = null;
+			}
+			if (waiting != null) {
+				Iterator<Runnable> iter = waiting.iterator();
+				while (iter.hasNext()) {
+					iter.next().run();
+				}
+			}
+		});
+	}
+
+	private void releaseHeld() {
+		Map<String, List<Runnable>> waiting = held;
+		held = null;
+		if (waiting == null) {
+			return;
+		}
+		Iterator<List<Runnable>> lists = waiting.values().iterator();
+		while (lists.hasNext()) {
+			Iterator<Runnable> iter = lists.next().iterator();
+			while (iter.hasNext()) {
+				iter.next().run();
+			}
+		}
+	}
+
+	/***
+	 * Records a chat message and sends it to every member
+	 * 
+	 * @param sender
+	 * @param message
+	 * @param timestamp
+	 */
+	protected void publish(ServerThread sender, String message, long timestamp) {
+		// format + encode once, every recipient gets the same bytes (and the history
+		// stores them too)
+		String formatted = ServerThread.formatMessage(message);
+		Broadcast broadcast = history != null ? history.append(sender.getClientName(), formatted, timestamp)
+				: new Broadcast(PayloadType.MESSAGE, sender.getClientName(), formatted, timestamp);
+		recent.add(broadcast);
+		fanOut(broadcast);
+	}
+
+	/***
+	 * Sends the broadcast to every member that didn't mute its sender
+	 * 
+	 * @param broadcast
+	 */
+	protected void fanOut(Broadcast broadcast) {
+		String senderName = broadcast.getPayload().getClientName();
+		Set<ServerThread> muters = senderName == null ? null : mutedBy.get(senderName);
+		long start = System.nanoTime();
+		int recipients = 0;
 		Iterator<ServerThread> iter = clients.iterator();
 		while (iter.hasNext()) {
 			ServerThread client = iter.next();
-			if (!client.isMuted(sender.getClientName())) {
-				boolean messageSent = client.send(sender.getClientName(), message);
+			if (muters == null || !muters.contains(client)) {
+				boolean messageSent = client.sendRoomBroadcast(broadcast);
 				if (!messageSent) {
-					iter.remove();
-					log.log(Level.INFO, "Removed client " + client.getId());
+					dropClient(client);
 				}
+				recipients++;
 			}
 		}
+		Metrics.broadcastNanos.record(System.nanoTime() - start);
+		Metrics.broadcastRecipients.record(recipients);
 	}
 
+	/***
+	 * Sends the client messages from this room's history, oldest first. With an
+	 * offset the client gets what came after it, otherwise the newest messages.
+	 * Only reads the history, so it runs on the caller instead of the room's
+	 * worker.
+	 * 
+	 * @param client
+	 * @param count  how many messages, 0 for the default
+	 * @param after  offset the client already has, 0 or less for the newest
+	 */
+	protected void sendHistory(ServerThread client, int count, long after) {
+		Room moved = movedTo;
+		if (moved != null) {
+			moved.sendHistory(client, count, after);
+			return;
+		}
+		int max = count <= 0 ? DEFAULT_HISTORY : Math.min(count, MAX_HISTORY);
+		ByteBuffer[] frames = null;
+		try {
+			if (history != null) {
+				frames = after <= 0 ? history.readLast(max) : history.readAfter(after, max);
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Problem reading history for {0}", getName(), e);
+		}
+		client.sendHistory(getName(), frames);
+	}
+
+	/***
+	 * Delivers the message to every @name in it. Recipients are looked up in the
+	 * server wide name index so they don't have to be in this room.
+	 * 
+	 * @param sender
+	 * @param message
+	 * @return true if the message was a private message
+	 */
 	protected boolean sendPM(ServerThread sender, String message) {
+		if (message.indexOf('@') < 0) {
+			return false;
+		}
 		boolean pm = false;
-		String receiver = null;
-
-		if (message.indexOf("@") > -1) {
-			String[] words = message.split(" ");
-			for (String word : words) {
-				if (word.charAt(0) == '@') {
-					receiver = word.substring(1);
-					pm = true;
-
-					Iterator<ServerThread> iter = clients.iterator();
-					while (iter.hasNext()) {
-						ServerThread userPM = iter.next();
-						if (userPM.getClientName().equals(receiver)) {
-							userPM.send(sender.getClientName(), message);
-						}
-					}
+		String[] words = message.split(" ");
+		for (String word : words) {
+			if (word.length() > 0 && word.charAt(0) == '@') {
+				pm = true;
+				ServerThread receiver = server.findClient(word.substring(1));
+				if (receiver != null && receiver != sender) {
+					receiver.send(sender.getClientName(), message);
 				}
 			}
+		}
+		if (pm) {
+			// echo it back so the sender sees what they sent
 			sender.send(sender.getClientName(), message);
 		}
 		return pm;
@@ -245,17 +955,26 @@ public class Room implements AutoCloseable {
 
 	@Override
 	public void close() throws Exception {
+		execute(this::closeNow);
+	}
+
+	private void closeNow() {
 		int clientCount = clients.size();
 		if (clientCount > 0) {
-			log.log(Level.INFO, "Migrating " + clients.size() + " to Lobby");
+			log.log(Level.INFO, "Migrating {0} to Lobby", clientCount);
 			Iterator<ServerThread> iter = clients.iterator();
 			Room lobby = server.getLobby();
 			while (iter.hasNext()) {
 				ServerThread client = iter.next();
-				lobby.addClient(client);
-				iter.remove();
+				unindexMutes(client);
+				// unless they're already on their way somewhere else
+				if (lobby != this && client.compareAndSetCurrentRoom(this, lobby)) {
+					lobby.addClient(client);
+				}
 			}
-			log.log(Level.INFO, "Done Migrating " + clients.size() + " to Lobby");
+			clients.clear();
+			this.clientCount = 0;
+			log.log(Level.INFO, "Done Migrating {0} to Lobby", clientCount);
 		}
 		server.cleanupRoom(this);
 		name = null;
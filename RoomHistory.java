@@ -0,0 +1,678 @@
+package server;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/***
+ * Append-only message log for one room. Every chat broadcast gets the next
+ * offset (1, 2, 3...) and its binary frame is stored exactly as it goes out on
+ * the wire, so replaying history is a matter of copying bytes.
+ *
+ * The log is split into segment files named after the first offset they hold:
+ *
+ * <pre>
+ * history/&lt;room&gt;/00000000000000000001.log   frames, back to back
+ * history/&lt;room&gt;/00000000000000000001.idx   4 byte position of each frame
+ * </pre>
+ *
+ * Reads come straight out of read only mappings of the log files, so replaying
+ * to many joiners at once is served from the page cache without copying the
+ * frames onto the heap.
+ *
+ * Broadcasters never touch the disk. append() hands the frame to a single
+ * writer thread shared by every room, which writes whatever has piled up and
+ * then fsyncs each touched segment once (group commit). Under load one fsync
+ * covers hundreds of messages instead of each message waiting for its own.
+ */
+public class RoomHistory implements AutoCloseable {
+	private final static AsyncLog log = AsyncLog.getLogger(RoomHistory.class.getName());
+	private final static long SEGMENT_BYTES = 16 * 1024 * 1024;
+	private final static int MAX_BATCH = 1024;
+	// appends waiting for the writer; if the disk can't keep up senders wait here
+	private final static BlockingQueue<Entry> pending = new ArrayBlockingQueue<Entry>(64 * 1024);
+	private final static AtomicLong queued = new AtomicLong();
+	private static volatile long committed = 0;// only the writer thread moves this
+	private static Thread writer;
+	private final static String LOG_SUFFIX = ".log";
+	private final static String INDEX_SUFFIX = ".idx";
+	private final static ByteBuffer[] NO_FRAMES = new ByteBuffer[0];
+	private final static Metrics.Counter appended = Metrics.counter("history.appended");
+	private final static Metrics.Counter writeFailures = Metrics.counter("history.write.failures");
+	private final static Metrics.Histogram commitBatch = Metrics.histogram("history.commit.batch");
+	private final static Metrics.Histogram fsyncNanos = Metrics.histogram("history.fsync.nanos");
+
+	private final Path dir;
+	// offsets are handed out and queued under this lock so the writer sees each
+	// room's entries in offset order
+	private final ReentrantLock appendLock = new ReentrantLock();
+	private long nextOffset;
+	// guards segments and their in memory indexes (writer appends, readers look
+	// up)
+	private final ReentrantLock indexLock = new ReentrantLock();
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private volatile boolean closed = false;
+	private boolean closing = false;// guarded by appendLock, see closeWhenWritten()
+	// which closeWhenWritten() call counts, an earlier one was undone by reopen()
+	private long closeRequest = 0;// guarded by appendLock
+
+	/***
+	 * One frame waiting to be written, or with no frame a request to close the
+	 * history once what's ahead of it is written (offset is then the request, see
+	 * closeWhenWritten())
+	 */
+	private static class Entry {
+		final RoomHistory history;
+		final long offset;
+		final ByteBuffer frame;
+
+		Entry(RoomHistory history, long offset, ByteBuffer frame) {
+			this.history = history;
+			this.offset = offset;
+			this.frame = frame;
+		}
+	}
+
+	/***
+	 * A log file plus its index. The index is also kept in memory (positions) so
+	 * lookups never read the .idx file.
+	 */
+	private static class Segment {
+		final long baseOffset;
+		final FileChannel log;
+		final FileChannel index;
+		int[] positions = new int[1024];
+		int count = 0;
+		int size = 0;// bytes of complete frames in the log
+		MappedByteBuffer map;// covers at least every frame handed out so far
+
+		Segment(long baseOffset, FileChannel log, FileChannel index) {
+			this.baseOffset = baseOffset;
+			this.log = log;
+			this.index = index;
+		}
+
+		long endOffset() {
+			return baseOffset + count;
+		}
+
+		int position(int i) {
+			return i < count ? positions[i] : size;
+		}
+
+		void add(int position) {
+			if (count == positions.length) {
+				positions = Arrays.copyOf(positions, count * 2);
+			}
+			positions[count++] = position;
+		}
+
+		/***
+		 * Called with indexLock held. The whole log is mapped read only; the active
+		 * segment is remapped when a read needs bytes written after the last
+		 * mapping.
+		 *
+		 * @return read only view of [start, end)
+		 */
+		ByteBuffer slice(int start, int end) throws IOException {
+			if (map == null || map.capacity() < end) {
+				map = log.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			return map.slice(start, end - start);
+		}
+
+		void close() throws IOException {
+			map = null;
+			log.close();
+			index.close();
+		}
+	}
+
+	private RoomHistory(Path dir) {
+		this.dir = dir;
+	}
+
+	/***
+	 * Opens (or creates) the history of a room, recovering anything a crash left
+	 * half written
+	 *
+	 * @param root     directory holding every room's history
+	 * @param roomName
+	 * @return the room's history
+	 * @throws IOException
+	 */
+	public static RoomHistory open(Path root, String roomName) throws IOException {
+		RoomHistory history = new RoomHistory(root.resolve(directoryName(roomName)));
+		history.load();
+		startWriter();
+		return history;
+	}
+
+	/***
+	 * Room names come from users, keep them from escaping the history directory
+	 */
+	private static String directoryName(String roomName) {
+		return URLEncoder.encode(roomName, StandardCharsets.UTF_8).replace(".", "%2E").replace("*", "%2A");
+	}
+
+	private static synchronized void startWriter() {
+		if (writer == null) {
+			writer = new Thread(RoomHistory::drain, "room-history");
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	private void load() throws IOException {
+		Files.createDirectories(dir);
+		List<Long> bases = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LOG_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					log.log(Level.WARNING, "Ignoring unexpected file {0}", file);
+				}
+			}
+		}
+		Collections.sort(bases);
+		for (Long base : bases) {
+			segments.add(recover(base));
+		}
+		nextOffset = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).endOffset();
+		if (nextOffset > 1) {
+			log.log(Level.INFO, "Loaded {0} messages of history from {1}", nextOffset - 1, dir);
+		}
+	}
+
+	/***
+	 * Opens a segment and makes its index match the log. Index entries pointing
+	 * past the end of the log are dropped, frames the index missed are indexed
+	 * and a trailing partial frame is cut off.
+	 */
+	private Segment recover(long base) throws IOException {
+		Segment segment = openSegment(base);
+		long logSize = segment.log.size();
+		int entries = (int) (segment.index.size() / 4);
+		ByteBuffer stored = ByteBuffer.allocate(entries * 4);
+		while (stored.hasRemaining() && segment.index.read(stored, stored.position()) >= 0) {
+		}
+		stored.flip();
+		entries = stored.remaining() / 4;
+		ByteBuffer header = ByteBuffer.allocate(PayloadFrames.HEADER_SIZE);
+		int end = 0;
+		for (int i = 0; i < entries; i++) {
+			int position = stored.getInt();
+			int length = frameLength(segment.log, position, logSize, header);
+			if (position != end || length < 0) {
+				break;
+			}
+			segment.add(position);
+			end = position + PayloadFrames.HEADER_SIZE + length;
+		}
+		boolean rebuilt = segment.count != entries;
+		int length;
+		while ((length = frameLength(segment.log, end, logSize, header)) >= 0) {
+			segment.add(end);
+			end += PayloadFrames.HEADER_SIZE + length;
+			rebuilt = true;
+		}
+		segment.size = end;
+		if (end < logSize) {
+			log.log(Level.WARNING, "Truncating {0} partial bytes from segment {1} of {2}", logSize - end, base, dir);
+			segment.log.truncate(end);
+		}
+		if (rebuilt) {
+			segment.index.truncate(0);
+			writeIndex(segment, 0);
+		}
+		return segment;
+	}
+
+	/***
+	 * @return length of the frame at position or -1 if there's no complete frame
+	 *         there
+	 */
+	private static int frameLength(FileChannel channel, int position, long logSize, ByteBuffer header)
+			throws IOException {
+		if (position + PayloadFrames.HEADER_SIZE > logSize) {
+			return -1;
+		}
+		header.clear();
+		while (header.hasRemaining() && channel.read(header, position + header.position()) >= 0) {
+		}
+		int length = header.getInt(0);
+		if (length < 0 || length > PayloadFrames.MAX_FRAME_SIZE
+				|| position + PayloadFrames.HEADER_SIZE + (long) length > logSize) {
+			return -1;
+		}
+		return length;
+	}
+
+	private Segment openSegment(long base) throws IOException {
+		String name = String.format("%020d", base);
+		FileChannel logChannel = FileChannel.open(dir.resolve(name + LOG_SUFFIX), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileChannel indexChannel = FileChannel.open(dir.resolve(name + INDEX_SUFFIX), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return new Segment(base, logChannel, indexChannel);
+	}
+
+	/***
+	 * Records a chat message and returns the broadcast to send for it. The
+	 * broadcast carries the message's offset so clients can later
+	 * ask for what came after it.
+	 *
+	 * @param clientName
+	 * @param message    already formatted
+	 * @param timestamp
+	 * @return broadcast to fan out
+	 */
+	public Broadcast append(String clientName, String message, long timestamp) {
+		appendLock.lock();
+		try {
+			long offset = nextOffset++;
+			Broadcast broadcast = new Broadcast(PayloadType.MESSAGE, clientName, message, timestamp, offset);
+			if (closing) {
+				// the room let go of us, a late message isn't kept
+				return broadcast;
+			}
+			try {
+				pending.put(new Entry(this, offset, broadcast.getFrame(PayloadFrames.BINARY)));
+				queued.incrementAndGet();
+			} catch (IOException e) {
+				writeFailures.increment();
+				log.log(Level.WARNING, "Couldn't encode message for history", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return broadcast;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/***
+	 * Writer loop, shared by every room. Takes everything that's queued, writes
+	 * each room's run with one gathering write and then fsyncs every segment it
+	 * touched once.
+	 */
+	private static void drain() {
+		List<Entry> batch = new ArrayList<Entry>(MAX_BATCH);
+		Map<RoomHistory, List<Entry>> byRoom = new LinkedHashMap<RoomHistory, List<Entry>>();
+		while (true) {
+			try {
+				batch.add(pending.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			pending.drainTo(batch, MAX_BATCH - 1);
+			for (Entry e : batch) {
+				byRoom.computeIfAbsent(e.history, k -> new ArrayList<Entry>()).add(e);
+			}
+			Iterator<Map.Entry<RoomHistory, List<Entry>>> iter = byRoom.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<RoomHistory, List<Entry>> room = iter.next();
+				try {
+					room.getKey().write(room.getValue());
+				} catch (IOException e) {
+					writeFailures.increment();
+					log.log(Level.WARNING, "Problem writing room history", e);
+				}
+			}
+			commitBatch.record(batch.size());
+			appended.add(batch.size());
+			committed += batch.size();
+			batch.clear();
+			byRoom.clear();
+		}
+	}
+
+	/***
+	 * Writer thread only. Appends the entries (in offset order) to the active
+	 * segment, rolling to a new one when it's full or an offset was skipped
+	 * because an earlier write failed.
+	 */
+	private void write(List<Entry> entries) throws IOException {
+		int start = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			if (entries.get(i).frame != null) {
+				continue;
+			}
+			// closeWhenWritten() was called, anything after it came after a reopen()
+			try {
+				append(entries.subList(start, i));
+			} finally {
+				closeIfLetGo(entries.get(i).offset);
+			}
+			if (closed) {
+				return;
+			}
+			start = i + 1;
+		}
+		append(entries.subList(start, entries.size()));
+	}
+
+	/***
+	 * Closes the history unless it was reopened since the request
+	 * 
+	 * @param request see closeWhenWritten()
+	 * @throws IOException
+	 */
+	private void closeIfLetGo(long request) throws IOException {
+		appendLock.lock();
+		try {
+			if (closing && request == closeRequest) {
+				close();
+			}
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/***
+	 * Writer thread only, write() without close requests
+	 */
+	private void append(List<Entry> entries) throws IOException {
+		if (closed || entries.isEmpty()) {
+			return;
+		}
+		List<Segment> touched = new ArrayList<Segment>(1);
+		int i = 0;
+		while (i < entries.size()) {
+			Segment segment = activeSegment(entries.get(i).offset);
+			if (!touched.contains(segment)) {
+				touched.add(segment);
+			}
+			// everything that fits in this segment goes out in one gathering write
+			int start = i;
+			long expected = segment.endOffset();
+			long bytes = segment.size;
+			while (i < entries.size() && entries.get(i).offset == expected
+					&& (i == start || bytes + entries.get(i).frame.remaining() <= SEGMENT_BYTES)) {
+				bytes += entries.get(i).frame.remaining();
+				expected++;
+				i++;
+			}
+			ByteBuffer[] frames = new ByteBuffer[i - start];
+			for (int f = 0; f < frames.length; f++) {
+				frames[f] = entries.get(start + f).frame;
+			}
+			segment.log.position(segment.size);
+			long remaining = bytes - segment.size;
+			while (remaining > 0) {
+				remaining -= segment.log.write(frames);
+			}
+			int firstNew = segment.count;
+			indexLock.lock();
+			try {
+				int position = segment.size;
+				for (ByteBuffer frame : frames) {
+					segment.add(position);
+					position += frame.limit();
+				}
+				segment.size = position;
+			} finally {
+				indexLock.unlock();
+			}
+			writeIndex(segment, firstNew);
+		}
+		long start = System.nanoTime();
+		for (Segment segment : touched) {
+			// the index isn't synced, recover() rebuilds it from the log
+			segment.log.force(false);
+		}
+		fsyncNanos.record(System.nanoTime() - start);
+	}
+
+	/***
+	 * @return the segment the entry with this offset should go in
+	 */
+	private Segment activeSegment(long offset) throws IOException {
+		Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (last != null && last.endOffset() == offset && last.size < SEGMENT_BYTES) {
+			return last;
+		}
+		Segment segment = openSegment(offset);
+		indexLock.lock();
+		try {
+			segments.add(segment);
+		} finally {
+			indexLock.unlock();
+		}
+		return segment;
+	}
+
+	private static void writeIndex(Segment segment, int from) throws IOException {
+		ByteBuffer index = ByteBuffer.allocate((segment.count - from) * 4);
+		for (int i = from; i < segment.count; i++) {
+			index.putInt(segment.positions[i]);
+		}
+		index.flip();
+		long position = from * 4L;
+		while (index.hasRemaining()) {
+			position += segment.index.write(index, position);
+		}
+	}
+
+	/***
+	 * @return offset of the newest message that's been written, 0 if none
+	 */
+	public long getLastOffset() {
+		indexLock.lock();
+		try {
+			return segments.isEmpty() ? 0 : segments.get(segments.size() - 1).endOffset() - 1;
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/***
+	 * @return offset the next appended message gets
+	 */
+	public long getNextOffset() {
+		appendLock.lock();
+		try {
+			return nextOffset;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/***
+	 * Continues numbering at the offset, i.e. for a room that moved here from
+	 * another node, so offsets its clients already have stay unique. The skipped
+	 * offsets just aren't in this history (the writer starts a new segment).
+	 *
+	 * @param offset
+	 */
+	public void skipTo(long offset) {
+		appendLock.lock();
+		try {
+			if (offset > nextOffset) {
+				nextOffset = offset;
+			}
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/***
+	 * Reads the newest messages
+	 *
+	 * @param count
+	 * @return see readAfter()
+	 * @throws IOException
+	 */
+	public ByteBuffer[] readLast(int count) throws IOException {
+		return readAfter(Math.max(0, getLastOffset() - count), count);
+	}
+
+	/***
+	 * Reads messages with an offset greater than after. Nothing is copied, the
+	 * result is one view of the mapped log per segment the range touches, so a
+	 * replay costs the same few objects however many messages it holds.
+	 *
+	 * @param after offset the client already has, 0 for the beginning
+	 * @param max   most messages to return
+	 * @return read only views holding frames back to back, oldest first (empty if
+	 *         there's nothing newer)
+	 * @throws IOException
+	 */
+	public ByteBuffer[] readAfter(long after, int max) throws IOException {
+		long from = after + 1;
+		long to = from + max;// exclusive
+		indexLock.lock();
+		try {
+			int first = segments.size();
+			int last = 0;
+			for (int i = 0; i < segments.size(); i++) {
+				Segment segment = segments.get(i);
+				if (segment.endOffset() > from && segment.baseOffset < to) {
+					first = Math.min(first, i);
+					last = i + 1;
+				}
+			}
+			if (first >= last) {
+				return NO_FRAMES;
+			}
+			ByteBuffer[] views = new ByteBuffer[last - first];
+			for (int i = first; i < last; i++) {
+				Segment segment = segments.get(i);
+				int start = segment.position((int) (Math.max(from, segment.baseOffset) - segment.baseOffset));
+				int end = segment.position((int) (Math.min(to, segment.endOffset()) - segment.baseOffset));
+				views[i - first] = segment.slice(start, end);
+			}
+			return views;
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/***
+	 * Waits (up to timeoutMillis) for everything appended so far to be written
+	 *
+	 * @param timeoutMillis
+	 */
+	public static void flush(long timeoutMillis) {
+		long target = queued.get();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (committed < target && System.currentTimeMillis() < deadline) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	/***
+	 * @return appends the writer hasn't gotten to yet
+	 */
+	public static long getPendingCount() {
+		return queued.get() - committed;
+	}
+
+	/***
+	 * Closes the history once the writer got everything appended so far, without
+	 * waiting for it. Messages appended afterwards aren't kept, unless it's
+	 * reopened.
+	 */
+	public void closeWhenWritten() {
+		appendLock.lock();
+		try {
+			if (closing) {
+				return;
+			}
+			closing = true;
+			pending.put(new Entry(this, ++closeRequest, null));
+			queued.incrementAndGet();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			try {
+				close();
+			} catch (IOException e1) {
+				log.log(Level.WARNING, "Problem closing room history", e1);
+			}
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/***
+	 * @return true once closeWhenWritten() was called
+	 */
+	public boolean isClosing() {
+		appendLock.lock();
+		try {
+			return closing;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/***
+	 * Takes the history back after closeWhenWritten(), for a room that's back
+	 * before the writer got to closing it. It carries on as if it had never been
+	 * let go of.
+	 * 
+	 * @return false if it's closed already, everything it was given is in its
+	 *         files then so opening it again continues after it
+	 */
+	public boolean reopen() {
+		appendLock.lock();
+		try {
+			if (closed) {
+				return false;
+			}
+			closing = false;
+			return true;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/***
+	 * Closes the segment files. Call flush() first, anything still queued for
+	 * this room afterwards is thrown away.
+	 */
+	@Override
+	public void close() throws IOException {
+		indexLock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			Iterator<Segment> iter = segments.iterator();
+			while (iter.hasNext()) {
+				iter.next().close();
+			}
+			segments.clear();
+		} finally {
+			indexLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/***
+ * The threads rooms run on. Every room gets a Mailbox pinned to one worker by
+ * the hash of its name, so all joins, leaves, commands and broadcasts of a room
+ * run on the same thread one after another while different rooms spread over
+ * the workers and run in parallel.
+ *
+ * An idle worker parks and whoever schedules a mailbox on it unparks it, the
+ * same way AsyncLog's writer waits, so it only wakes up for work.
+ */
+public class RoomWorkers {
+	private final static AsyncLog log = AsyncLog.getLogger(RoomWorkers.class.getName());
+	private final Worker[] workers;
+
+	static class Worker extends Thread {
+		// rooms with work waiting, each one is in here at most once
+		private final Queue<Mailbox> ready = new ConcurrentLinkedQueue<Mailbox>();
+		private volatile boolean isRunning = true;
+		private volatile boolean parked = false;
+
+		Worker(String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		void schedule(Mailbox mailbox) {
+			ready.offer(mailbox);
+			// read after queueing, the worker sets it before it looks again
+			if (parked) {
+				LockSupport.unpark(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			// interrupted when shutdown() gave up waiting
+			while (!isInterrupted()) {
+				Mailbox mailbox = ready.poll();
+				if (mailbox != null) {
+					mailbox.run();
+					continue;
+				}
+				if (!isRunning) {
+					return;
+				}
+				parked = true;
+				// look again, whoever scheduled before we set it won't unpark us
+				if (ready.isEmpty() && isRunning) {
+					LockSupport.park(this);
+				}
+				parked = false;
+			}
+		}
+	}
+
+	/***
+	 * @param count number of worker threads
+	 */
+	public RoomWorkers(int count) {
+		workers = new Worker[Math.max(1, count)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker("room-worker-" + i);
+			workers[i].start();
+		}
+		log.log(Level.INFO, "Started {0} room workers", workers.length);
+	}
+
+	public int getCount() {
+		return workers.length;
+	}
+
+	/***
+	 * @param key normalized room name, rooms with the same key share a worker
+	 * @return a new mailbox on the key's worker
+	 */
+	public Mailbox newMailbox(String key) {
+		int hash = key.hashCode();
+		return new Mailbox(workers[Math.floorMod(hash ^ (hash >>> 16), workers.length)]);
+	}
+
+	/***
+	 * @return true if the calling thread is a room worker, which must never block
+	 *         on a client
+	 */
+	public static boolean isWorkerThread() {
+		return Thread.currentThread() instanceof Worker;
+	}
+
+	/***
+	 * Lets the workers finish what's queued and stops them
+	 *
+	 * @param timeoutMillis how long to wait for each worker
+	 */
+	public void shutdown(long timeoutMillis) {
+		for (Worker worker : workers) {
+			worker.isRunning = false;
+			LockSupport.unpark(worker);
+		}
+		for (Worker worker : workers) {
+			try {
+				worker.join(timeoutMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (worker.isAlive()) {
+				log.log(Level.WARNING, "{0} didn''t finish in time", worker.getName());
+				worker.interrupt();
+			}
+		}
+	}
+}
@@ -1,44 +1,164 @@
 package server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
-import java.util.logging.Logger;
 
 public class ServerThread extends Thread {
 	private Socket client;
-	private ObjectInputStream in;// from client
-	private ObjectOutputStream out;// to client
+	private ObjectInputStream in;// from client (legacy clients only)
+	private ObjectOutputStream out;// to client (legacy clients only)
+	private DataInputStream framedIn;// from client when it negotiated frames
+	private DataOutputStream framedOut;// to client when it negotiated frames
+	private int wireVersion = PayloadFrames.LEGACY_STREAM;
+	private PayloadCodec readCodec;
+	private PayloadCodec writeCodec;
+	// stream clients: Payloads/Broadcasts waiting for the writer thread
+	private OutboundQueue<Object> outbound;
+	private Thread writerThread;
+	private final static int MAX_BATCH = 64;
+	private final static int COPY_CHUNK = 16 * 1024;
+	private byte[] copyBuffer;// writer thread only
+	private NioConnection connection;// used instead of the streams when on the selector transport
 	private boolean isRunning = false;
-	private Room currentRoom;// what room we are in, should be lobby by default
+	// what room we are in (or on our way into), null until the client sends
+	// CONNECT
+	private final AtomicReference<Room> currentRoom = new AtomicReference<Room>();
+	private final Room lobby;// where we go once CONNECT arrives
+	// true until the client sends CONNECT; SocketServer closes us if that takes too
+	// long
+	private final AtomicBoolean handshakePending = new AtomicBoolean(true);
+	// lets the client resume this session after its connection drops, null for
+	// legacy clients or when sessions are off
+	private volatile String sessionToken;
+	private volatile boolean leaving;// said DISCONNECT (or was taken over), nothing to resume
+	// what rooms sent us while the session is parked, null while connected
+	private volatile OutboundQueue<Object> missed;
+	// another connection resumed our session, we go away without leaving
+	private volatile boolean takenOver;// set under parkLock
+	private final Object parkLock = new Object();
 	private String clientName;
-	private final static Logger log = Logger.getLogger(ServerThread.class.getName());
+	// names this client muted; rooms also index these by muted name so
+	// broadcasts don't need to ask every recipient
+	protected final Set<String> mutedList = ConcurrentHashMap.newKeySet();
+	// rooms this client created, Room caps how many of them can be open
+	private final List<String> createdRooms = new ArrayList<String>();// guarded by itself
+	private final static AsyncLog log = AsyncLog.getLogger(ServerThread.class.getName());
+	private final static Metrics.Counter replayed = Metrics.counter("history.replayed");
+
+	/***
+	 * @return names of the rooms this client created, lock it to use it
+	 */
+	protected List<String> getCreatedRooms() {
+		return createdRooms;
+	}
 
 	public String getClientName() {
 		return clientName;
 	}
 
-	protected synchronized Room getCurrentRoom() {
-		return currentRoom;
+	protected String getSessionToken() {
+		return sessionToken;
 	}
 
-	protected synchronized void setCurrentRoom(Room room) {
-		if (room != null) {
-			currentRoom = room;
-		} else {
-			log.log(Level.INFO, "Passed in room was null, this shouldn't happen");
-		}
+	/***
+	 * @return true if a dropped connection leaves a session behind instead of
+	 *         leaving the room
+	 */
+	protected boolean isResumable() {
+		return sessionToken != null && !leaving;
+	}
+
+	public boolean isMuted(String name) {
+		return name != null && mutedList.contains(name);
+	}
+
+	protected Room getCurrentRoom() {
+		return currentRoom.get();
+	}
+
+	/***
+	 * Points us at a new room. Done before the room's worker adds us, so what we
+	 * send afterwards is posted to the new room behind the join.
+	 * 
+	 * @param room
+	 * @return the room we were in before
+	 */
+	protected Room swapCurrentRoom(Room room) {
+		return currentRoom.getAndSet(room);
+	}
+
+	/***
+	 * Moves us to another room only if we're still in the expected one
+	 * 
+	 * @param expected
+	 * @param room
+	 * @return false if we're somewhere else by now
+	 */
+	protected boolean compareAndSetCurrentRoom(Room expected, Room room) {
+		return currentRoom.compareAndSet(expected, room);
 	}
 
 	public ServerThread(Socket myClient, Room room) throws IOException {
 		this.client = myClient;
-		this.currentRoom = room;
-		out = new ObjectOutputStream(client.getOutputStream());
-		in = new ObjectInputStream(client.getInputStream());
+		this.lobby = room;
+		this.outbound = newOutboundQueue();
+		openStreams(client.getInputStream());
+	}
+
+	private static OutboundQueue<Object> newOutboundQueue() {
+		return new OutboundQueue<Object>(SocketServer.getOutboundCapacity(), SocketServer.getOverflowPolicy());
+	}
+
+	/***
+	 * Figures out what the client speaks. Old clients start with the java
+	 * serialization header and get plain object streams; everyone else sends a
+	 * hello and we agree on a frame version.
+	 * 
+	 * @param raw
+	 * @throws IOException
+	 */
+	private void openStreams(InputStream raw) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(raw);
+		if (PayloadFrames.peekLegacyStream(buffered)) {
+			log.log(Level.INFO, "Client is using legacy object streams");
+			out = new ObjectOutputStream(new BufferedOutputStream(client.getOutputStream()));
+			out.flush();// the client's ObjectInputStream waits for our header
+			in = new ObjectInputStream(buffered);
+		} else {
+			framedIn = new DataInputStream(buffered);
+			framedOut = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+			wireVersion = PayloadFrames.accept(framedIn, framedOut);
+			readCodec = new PayloadCodec();
+			writeCodec = new PayloadCodec();
+		}
+	}
+
+	/***
+	 * Used by the selector transport. No streams or thread are needed since the
+	 * event loop decodes frames and hands them to receivePayload()
+	 * 
+	 * @param connection
+	 * @param room
+	 */
+	protected ServerThread(NioConnection connection, Room room) {
+		this.connection = connection;
+		this.lobby = room;
 	}
 
 	/***
@@ -70,72 +190,61 @@ public class ServerThread extends Thread {
 	 * @return
 	 */
 	public boolean send(String clientName, String message) {
-		// checking if there are multiple text style triggers in the message
-		int bold = 0;
-		int italic = 0;
-		int underline = 0;
-
-		for (int i = 0; i < message.length(); i++) {
-			if (message.charAt(i) == '@') {
-				bold++;
-			} else if (message.charAt(i) == '#') {
-				italic++;
-			} else if (message.charAt(i) == '_') {
-				underline++;
-			}
-		}
-
-		// pairs of triggers replaced with respective html tags
-		if (bold >= 2) {
-			message = message + " ";
-			message = message.replace("@", "<b>");
-			message = message.replace("<b> ", "</b> ");
-		}
-		if (italic >= 2) {
-			message = message + " ";
-			message = message.replace("#", "<i>");
-			message = message.replace("<i> ", "</i> ");
-		}
-		if (underline >= 2) {
-			message = message + " ";
-			message = message.replace("_", "<u>");
-			message = message.replace("<u> ", "</u> ");
-		}
-
-		// colors
-		int color = 0;
-		for (int i = 0; i < message.length(); i++) {
-			if (message.charAt(i) == '%') {
-				color++;
-			}
-		}
-
-		if (color % 2 == 0) {
-			message = message + " ";
-			message = message.replace("% ", "</b> ");
+		Payload payload = new Payload();
+		payload.setPayloadType(PayloadType.MESSAGE);
+		payload.setClientName(clientName);
+		payload.setMessage(formatMessage(message));
 
-			String[] words = message.split(" ");
-			message = "";
-			for (String word : words) {
+		return sendPayload(payload);
+	}
 
-				if (word.contains("%")) {
-					int trigger = word.indexOf('%');
-					String colors = word.substring(0, trigger);
-					String colorStyle = "<b style=color:" + colors + ">";
-					String replace = word.substring(0, trigger + 1);
-					word = word.replace(replace, colorStyle);
-				}
+	/***
+	 * Converts the text style triggers in a message into html. Static so a Room
+	 * can format a broadcast once instead of once per recipient.
+	 * 
+	 * @param message
+	 * @return formatted message
+	 */
+	protected static String formatMessage(String message) {
+		return MessageFormatter.get().format(message);
+	}
 
-				message = message + word + " ";
+	/***
+	 * Sends an already formatted/encoded broadcast. Framed clients get the shared
+	 * bytes, legacy object stream clients still need the Payload written.
+	 * 
+	 * @param broadcast
+	 * @return
+	 */
+	protected boolean sendBroadcast(Broadcast broadcast) {
+		OutboundQueue<Object> parked = missed;
+		if (parked != null) {
+			return parked.offer(broadcast, false);
+		}
+		Metrics.payloadOut(broadcast.getPayload().getPayloadType());
+		try {
+			if (connection != null) {
+				return sent(connection.send(broadcast.getFrame(connection.getWireVersion())));
 			}
+			return sent(enqueue(broadcast));
+		} catch (IOException e) {
+			Metrics.sendFailures.increment();
+			log.log(Level.INFO, "Error sending message to client (most likely disconnected)");
+			e.printStackTrace();
+			cleanup();
+			return false;
 		}
+	}
 
-		Payload payload = new Payload();
-		payload.setPayloadType(PayloadType.MESSAGE);
-		payload.setClientName(clientName);
-		payload.setMessage(message);
-
-		return sendPayload(payload);
+	/***
+	 * Sends a broadcast as one of a room's members, the room calls this for
+	 * everyone in it
+	 * 
+	 * @param broadcast
+	 * @return
+	 */
+	protected boolean sendRoomBroadcast(Broadcast broadcast) {
+		return sendBroadcast(broadcast);
 	}
 
 	protected boolean sendConnectionStatus(String clientName, boolean isConnect, String message) {
@@ -151,6 +260,118 @@ public class ServerThread extends Thread {
 		return sendPayload(payload);
 	}
 
+	/***
+	 * Tells the client to clear its user list since it just changed rooms
+	 * 
+	 * @return
+	 */
+	protected boolean sendClearList() {
+		if (connection == null && framedOut == null) {
+			// old object stream clients don't know CLEAR_PLAYERS
+			return true;
+		}
+		Payload payload = new Payload();
+		payload.setPayloadType(PayloadType.CLEAR_PLAYERS);
+		return sendPayload(payload);
+	}
+
+	/***
+	 * Sends stored history frames followed by a GET_HISTORY reply with the room
+	 * name and how many messages were sent. Binary clients get the stored bytes
+	 * as they are (straight from the mapped log, the selector transport writes
+	 * them to the socket without a copy); other versions, or clients that muted
+	 * someone, go through decoding.
+	 * 
+	 * @param room
+	 * @param views  binary frames back to back, null if there's no history
+	 * @return
+	 */
+	protected boolean sendHistory(String room, ByteBuffer[] views) {
+		int count = 0;
+		if (views != null) {
+			int version = connection != null ? connection.getWireVersion() : wireVersion;
+			boolean raw = version == PayloadFrames.BINARY && mutedList.isEmpty();
+			byte[] body = null;
+			for (ByteBuffer frames : views) {
+				int position = frames.position();
+				while (position < frames.limit()) {
+					int length = frames.getInt(position);
+					if (!raw) {
+						if (body == null || body.length < length) {
+							body = new byte[Math.max(length, 256)];
+						}
+						frames.get(position + PayloadFrames.HEADER_SIZE, body, 0, length);
+						try {
+							Payload p = PayloadFrames.decode(body, 0, length, PayloadFrames.BINARY);
+							if (!isMuted(p.getClientName()) && !sendPayload(p)) {
+								return false;
+							}
+						} catch (IOException e) {
+							log.log(Level.WARNING, "Skipping unreadable history frame");
+						}
+					}
+					position += PayloadFrames.HEADER_SIZE + length;
+					count++;
+				}
+				if (raw && frames.hasRemaining()) {
+					Metrics.payloadOut(PayloadType.MESSAGE);
+					if (!sendFrames(frames)) {
+						return false;
+					}
+				}
+			}
+			replayed.add(count);
+		}
+		return sendHistoryEnd(room, count);
+	}
+
+	/***
+	 * Tells the client a catch up is done
+	 * 
+	 * @param room
+	 * @param count how many messages it got
+	 * @return
+	 */
+	protected boolean sendHistoryEnd(String room, int count) {
+		if (connection == null && framedOut == null) {
+			// old object stream clients don't know GET_HISTORY
+			return true;
+		}
+		Payload payload = new Payload();
+		payload.setPayloadType(PayloadType.GET_HISTORY);
+		payload.setMessage(room);
+		payload.setNumber(count);
+		return sendPayload(payload);
+	}
+
+	/***
+	 * Queues frames that are already encoded in our wire version
+	 */
+	private boolean sendFrames(ByteBuffer frames) {
+		OutboundQueue<Object> parked = missed;
+		if (parked != null) {
+			return parked.offer(frames, false);
+		}
+		if (connection != null) {
+			return sent(connection.send(frames));
+		}
+		return sent(enqueue(frames));
+	}
+
+	/***
+	 * Tells the client its session token, or that the session it tried to resume
+	 * is gone (null) and it should CONNECT instead
+	 * 
+	 * @param token
+	 * @return
+	 */
+	protected boolean sendSession(String token) {
+		Payload payload = new Payload();
+		payload.setPayloadType(PayloadType.SESSION);
+		payload.setMessage(token);
+		return sendPayload(payload);
+	}
+
 	protected boolean sendRoom(String room) {
 		Payload payload = new Payload();
 		payload.setPayloadType(PayloadType.GET_ROOMS);
@@ -158,11 +379,19 @@ public class ServerThread extends Thread {
 		return sendPayload(payload);
 	}
 
-	private boolean sendPayload(Payload p) {
+	protected boolean sendPayload(Payload p) {
+		OutboundQueue<Object> parked = missed;
+		if (parked != null) {
+			return parked.offer(p, false);
+		}
+		Metrics.payloadOut(p.getPayloadType());
 		try {
-			out.writeObject(p);
-			return true;
+			if (connection != null) {
+				return sent(connection.send(PayloadFrames.encode(p, connection.getWireVersion())));
+			}
+			return sent(enqueue(p));
 		} catch (IOException e) {
+			Metrics.sendFailures.increment();
 			log.log(Level.INFO, "Error sending message to client (most likely disconnected)");
 			e.printStackTrace();
 			cleanup();
@@ -170,35 +399,197 @@ public class ServerThread extends Thread {
 		}
 	}
 
+	private static boolean sent(boolean sent) {
+		if (!sent) {
+			Metrics.sendFailures.increment();
+		}
+		return sent;
+	}
+
+	/***
+	 * Hands a Payload or Broadcast to our writer. If the client can't keep up the
+	 * overflow policy decides what happens; a disconnect just closes the socket
+	 * and our read loop does the usual cleanup. Room workers never wait on a
+	 * client (the other rooms on the worker would wait too), for them BLOCK means
+	 * disconnect like it does on the selector transport.
+	 * 
+	 * @param item
+	 * @return false if the client is being disconnected
+	 */
+	private boolean enqueue(Object item) {
+		if (!outbound.offer(item, !RoomWorkers.isWorkerThread())) {
+			log.log(Level.INFO, "Outbound queue full, disconnecting slow client {0}", clientName);
+			closeSocket();
+			return false;
+		}
+		return true;
+	}
+
+	/***
+	 * @return number of payloads waiting to be written to this client
+	 */
+	public int getOutboundQueueDepth() {
+		if (connection != null) {
+			return connection.getQueueDepth();
+		}
+		return outbound == null ? 0 : outbound.size();
+	}
+
+	/***
+	 * Writer loop for stream clients. Takes everything that's queued (up to
+	 * MAX_BATCH), writes it into the buffered stream and flushes once so bursts
+	 * become a single socket write.
+	 */
+	private void writeOutbound() {
+		List<Object> batch = new ArrayList<Object>(MAX_BATCH);
+		try {
+			while (!client.isClosed()) {
+				batch.add(outbound.take());
+				outbound.drainTo(batch, MAX_BATCH - 1);
+				long bytes = 0;
+				for (Object item : batch) {
+					bytes += writeItem(item);
+				}
+				if (framedOut != null) {
+					framedOut.flush();
+				} else {
+					out.flush();
+				}
+				Metrics.bytesWritten.add(bytes);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// cleanup() stops the writer
+		} catch (IOException e) {
+			log.log(Level.INFO, "Error sending message to client (most likely disconnected)");
+			closeSocket();
+		}
+	}
+
+	/***
+	 * @return number of bytes written for framed clients (object streams don't
+	 *         tell us, so 0 there)
+	 */
+	private int writeItem(Object item) throws IOException {
+		if (item instanceof ByteBuffer) {
+			// frames that are already encoded for our version, i.e. a view of the
+			// mapped history. Plain sockets have no channel to hand it to, so it's
+			// copied through one reusable chunk.
+			ByteBuffer frames = (ByteBuffer) item;
+			int size = frames.remaining();
+			if (copyBuffer == null) {
+				copyBuffer = new byte[COPY_CHUNK];
+			}
+			while (frames.hasRemaining()) {
+				int chunk = Math.min(copyBuffer.length, frames.remaining());
+				frames.get(copyBuffer, 0, chunk);
+				framedOut.write(copyBuffer, 0, chunk);
+			}
+			return size;
+		}
+		if (item instanceof Broadcast) {
+			Broadcast broadcast = (Broadcast) item;
+			if (framedOut != null) {
+				ByteBuffer frame = broadcast.getFrame(wireVersion);
+				framedOut.write(frame.array(), frame.arrayOffset(), frame.remaining());
+				return frame.remaining();
+			}
+			out.writeObject(broadcast.getPayload());
+			return 0;
+		}
+		Payload p = (Payload) item;
+		if (framedOut != null && wireVersion == PayloadFrames.BINARY) {
+			// only this thread writes, so the codec buffer can be reused
+			int size = writeCodec.encodeFrame(p);
+			framedOut.write(writeCodec.getBuffer(), 0, size);
+			return size;
+		} else if (framedOut != null) {
+			ByteBuffer frame = PayloadFrames.encode(p, wireVersion);
+			framedOut.write(frame.array(), frame.arrayOffset(), frame.remaining());
+			return frame.remaining();
+		}
+		out.writeObject(p);
+		return 0;
+	}
+
+	private void startWriter() {
+		if (Thread.currentThread() == this) {
+			// we're a regular platform thread, give the writer one too
+			writerThread = new Thread(this::writeOutbound, getName() + "-writer");
+			writerThread.setDaemon(true);
+			writerThread.start();
+		} else {
+			// running on a virtual thread (or handed off from the selector transport)
+			writerThread = VirtualThreads.start(this::writeOutbound);
+		}
+	}
+
+	private void closeSocket() {
+		try {
+			if (client != null) {
+				client.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.INFO, "Client already closed");
+		}
+	}
+
 	/***
 	 * Process payloads we receive from our client
 	 * 
 	 * @param p
 	 */
 	private void processPayload(Payload p) {
+		Metrics.payloadIn(p.getPayloadType());
+		if (handshakePending.get() && p.getPayloadType() != PayloadType.CONNECT
+				&& p.getPayloadType() != PayloadType.DISCONNECT && p.getPayloadType() != PayloadType.SESSION) {
+			log.log(Level.FINE, "Ignoring {0} before CONNECT", p.getPayloadType());
+			return;
+		}
+		if (takenOver) {
+			// what a half open connection still sends, the client is elsewhere now
+			return;
+		}
 		switch (p.getPayloadType()) {
 		case CONNECT:
 			String n = p.getClientName();
 			if (n != null) {
+				// in case we're renaming
+				lobby.unregisterClient(this);
 				clientName = n;
-				log.log(Level.INFO, "Set our name to " + clientName);
-				if (currentRoom != null) {
-					currentRoom.joinLobby(this);
+				log.log(Level.INFO, "Set our name to {0}", clientName);
+				lobby.registerClient(this);
+				endHandshake();
+				if (sessionToken == null && (connection != null || framedOut != null)
+						&& SocketServer.getSessionGrace() > 0) {
+					// old object stream clients can't resume
+					sessionToken = SocketServer.newSessionToken();
+					lobby.addSession(this);
+					sendSession(sessionToken);
 				}
+				lobby.joinLobby(this);
+			}
+			break;
+		case SESSION:
+			// instead of CONNECT: token = message, plus the newest offset the client has
+			if (handshakePending.get()) {
+				resume(p.getMessage(), p.getOffset());
 			}
 			break;
 		case DISCONNECT:
+			leaving = true;
 			isRunning = false;
 			break;
 		case MESSAGE:
-			currentRoom.sendMessage(this, p.getMessage());
+			currentRoom.get().sendMessage(this, p.getMessage(), p.getTimestamp());
 			break;
 		case GET_ROOMS:
-			List<String> roomNames = currentRoom.getRooms();
+			String current = currentRoom.get().getName();
+			List<String> roomNames = currentRoom.get().getRooms();
 			Iterator<String> iter = roomNames.iterator();
 			while (iter.hasNext()) {
 				String room = iter.next();
-				if (room != null && !room.equalsIgnoreCase(currentRoom.getName())) {
+				if (room != null && !room.equalsIgnoreCase(current)) {
 					if (!sendRoom(room)) {
 						break;
 					}
@@ -206,25 +597,258 @@ public class ServerThread extends Thread {
 			}
 			break;
 		case JOIN_ROOM:
-			currentRoom.joinRoom(p.getMessage(), this);
+			currentRoom.get().joinRoom(p.getMessage(), this);
+			break;
+		case GET_HISTORY:
+			// number = how many, offset = where to continue after (0 for the newest)
+			currentRoom.get().sendHistory(this, p.getNumber(), p.getOffset());
 			break;
 		default:
-			log.log(Level.INFO, "Unhandled payload on server: " + p);
+			log.log(Level.INFO, "Unhandled payload on server: {0}", p);
 			break;
 		}
 	}
 
+	/***
+	 * Takes over the session a dropped connection left behind (see park()): its
+	 * name, mutes and room. The room swaps us in and catches us up from the
+	 * offset, nobody else sees the client leave or come back. The old connection
+	 * can still look connected if the client noticed the drop before we did,
+	 * it's closed then. If the session is gone the client is told to CONNECT
+	 * instead.
+	 * 
+	 * @param token
+	 * @param after newest message offset the client has
+	 */
+	private void resume(String token, long after) {
+		ServerThread parked = token == null ? null : lobby.takeSession(token);
+		if (parked == null) {
+			log.log(Level.INFO, "No session to resume, the client has to CONNECT");
+			sendSession(null);
+			return;
+		}
+		clientName = parked.clientName;
+		mutedList.addAll(parked.mutedList);
+		synchronized (parked.createdRooms) {
+			createdRooms.addAll(parked.createdRooms);
+		}
+		sessionToken = token;
+		lobby.addSession(this);
+		lobby.registerClient(this);
+		endHandshake();
+		sendSession(token);
+		log.log(Level.INFO, "{0} resumed its session", clientName);
+		parked.closeTakenOver();
+		Room room = parked.getCurrentRoom();
+		if (room == null || room instanceof RemoteRoom) {
+			// the room's owner knows the old connection by its id, join again
+			parked.endSession();
+			if (room == null || !lobby.joinRoom(room.getName(), this)) {
+				lobby.joinLobby(this);
+			}
+			return;
+		}
+		currentRoom.set(room);
+		room.resumeClient(parked, this, after);
+	}
+
+	/***
+	 * Keeps our session after the connection dropped so the client can resume it.
+	 * We stay in our room (and the name index) and whatever is sent to us is kept
+	 * for the client until it's back or the grace period is over.
+	 * 
+	 * @return true if the session is parked (now or already)
+	 */
+	private boolean park() {
+		synchronized (parkLock) {
+			if (takenOver) {
+				// the session lives on in another connection
+				return true;
+			}
+			if (sessionToken == null || leaving || !SocketServer.isRunning) {
+				return false;
+			}
+			if (missed == null) {
+				missed = new OutboundQueue<Object>(SocketServer.getOutboundCapacity(), OverflowPolicy.DROP_OLDEST);
+				lobby.parkSession(this);
+			}
+		}
+		return true;
+	}
+
+	/***
+	 * Called by SocketServer.takeSession() for the connection whose session
+	 * another one is resuming. If we're still connected we're parked right away,
+	 * so what rooms send us until the new connection is swapped in is kept for
+	 * it, and our cleanup won't take the session out of its room.
+	 */
+	protected void takeOver() {
+		synchronized (parkLock) {
+			takenOver = true;
+			if (missed == null) {
+				missed = new OutboundQueue<Object>(SocketServer.getOutboundCapacity(), OverflowPolicy.DROP_OLDEST);
+			}
+		}
+	}
+
+	/***
+	 * Closes the connection of a session that was taken over, a no-op if it's
+	 * already closed
+	 */
+	private void closeTakenOver() {
+		if (connection != null) {
+			if (connection.isOpen()) {
+				log.log(Level.INFO, "Closing the old connection of {0}", clientName);
+				connection.close();
+			}
+		} else if (client != null && !client.isClosed()) {
+			log.log(Level.INFO, "Closing the old connection of {0}", clientName);
+			closeSocket();
+		}
+	}
+
+	/***
+	 * Ends a parked session that wasn't resumed in time (or can't be handed
+	 * over): we leave our room like any disconnected client
+	 */
+	protected void endSession() {
+		leaving = true;
+		lobby.forgetClient(this);
+		Room room = currentRoom.getAndSet(null);
+		if (room != null) {
+			room.removeClient(this);
+		}
+		OutboundQueue<Object> parked = missed;
+		if (parked != null) {
+			parked.clear();
+		}
+	}
+
+	/***
+	 * Hands what was kept while parked to the connection that resumed the
+	 * session. Runs on the room's worker once it swapped that connection in.
+	 * 
+	 * @param client
+	 * @param upTo   newest message offset the room caught the client up to, chat
+	 *               up to there is skipped
+	 */
+	protected void replayMissed(ServerThread client, long upTo) {
+		leaving = true;
+		lobby.forgetClient(this);
+		currentRoom.set(null);
+		OutboundQueue<Object> parked = missed;
+		if (parked == null) {
+			return;
+		}
+		Object item;
+		while ((item = parked.poll()) != null) {
+			if (item instanceof Broadcast) {
+				Broadcast broadcast = (Broadcast) item;
+				if (!isCaughtUp(broadcast.getPayload(), upTo) && !client.sendBroadcast(broadcast)) {
+					return;
+				}
+			} else if (item instanceof Payload) {
+				Payload p = (Payload) item;
+				if (!isCaughtUp(p, upTo) && !client.sendPayload(p)) {
+					return;
+				}
+			}
+			// history frames are in our wire version, the client can ask for them again
+		}
+	}
+
+	private static boolean isCaughtUp(Payload p, long upTo) {
+		return p.getPayloadType() == PayloadType.MESSAGE && p.getOffset() > 0 && p.getOffset() <= upTo;
+	}
+
+	/***
+	 * Leaves the handshake state, either because CONNECT arrived or because we're
+	 * closing
+	 */
+	private void endHandshake() {
+		if (handshakePending.compareAndSet(true, false)) {
+			SocketServer.handshakeEnded();
+		}
+	}
+
+	/***
+	 * Called by SocketServer's reaper once the handshake timeout passed. Drops the
+	 * connection if the client still hasn't sent CONNECT.
+	 */
+	protected void expireHandshake() {
+		if (!handshakePending.get()) {
+			return;
+		}
+		log.log(Level.INFO, "{0} didn''t send CONNECT in time, closing", getName());
+		if (connection != null) {
+			connection.close();
+		} else {
+			// our read loop fails and does the usual cleanup
+			closeSocket();
+		}
+	}
+
+	/***
+	 * Entry point for payloads decoded by the selector transport
+	 * 
+	 * @param p
+	 */
+	protected void receivePayload(Payload p) {
+		processPayload(p);
+		if (p.getPayloadType() == PayloadType.DISCONNECT) {
+			connection.close();
+		}
+	}
+
+	/***
+	 * Called by the selector transport when it sees a legacy object stream client.
+	 * The channel has been switched to blocking mode and this ServerThread carries
+	 * on as a regular stream based connection on the calling thread.
+	 * 
+	 * @param socket
+	 * @param raw    input including any bytes the event loop already read
+	 */
+	protected void runHandedOff(Socket socket, InputStream raw) {
+		client = socket;
+		outbound = newOutboundQueue();
+		connection = null;
+		try {
+			openStreams(raw);
+		} catch (IOException e) {
+			log.log(Level.INFO, "Client Disconnected during handshake");
+			cleanup();
+			return;
+		}
+		run();
+	}
+
+	private Payload readPayload() throws IOException, ClassNotFoundException {
+		if (framedIn != null) {
+			return PayloadFrames.read(framedIn, wireVersion, readCodec);
+		}
+		return (Payload) in.readObject();
+	}
+
+	/***
+	 * Called by the selector transport once the channel is closed
+	 */
+	protected void onConnectionClosed() {
+		log.log(Level.INFO, "Cleaning up connection for ServerThread");
+		cleanup();
+	}
+
 	@Override
 	public void run() {
 		try {
 			isRunning = true;
+			startWriter();
 			Payload fromClient;
 			while (isRunning && // flag to let us easily control the loop
 					!client.isClosed() // breaks the loop if our connection closes
-					&& (fromClient = (Payload) in.readObject()) != null // reads an object from inputStream (null would
+					&& (fromClient = readPayload()) != null // reads a payload from the client (null would
 			// likely mean a disconnect)
 			) {
-				System.out.println("Received from client: " + fromClient);
+				log.log(Level.FINE, "Received from client: {0}", fromClient);
 				processPayload(fromClient);
 			} // close while loop
 		} catch (Exception e) {
@@ -239,10 +863,27 @@ public class ServerThread extends Thread {
 	}
 
 	private void cleanup() {
-		if (currentRoom != null) {
-			log.log(Level.INFO, getName() + " removing self from room " + currentRoom.getName());
-			currentRoom.removeClient(this);
+		if (connection != null && connection.isOpen()) {
+			// closing the channel calls back into cleanup() via onConnectionClosed()
+			connection.close();
+			return;
+		}
+		endHandshake();
+		if (!park()) {
+			lobby.forgetClient(this);
+			Room room = currentRoom.get();
+			if (room != null) {
+				log.log(Level.INFO, "{0} removing self from room {1}", getName(), room.getName());
+				room.removeClient(this);
+			}
 		}
+		if (connection != null) {
+			return;
+		}
+		if (writerThread != null) {
+			writerThread.interrupt();
+		}
+		outbound.clear();
 		if (in != null) {
 			try {
 				in.close();
@@ -257,6 +898,20 @@ public class ServerThread extends Thread {
 				log.log(Level.INFO, "Client already closed");
 			}
 		}
+		if (framedIn != null) {
+			try {
+				framedIn.close();
+			} catch (IOException e) {
+				log.log(Level.INFO, "Input already closed");
+			}
+		}
+		if (framedOut != null) {
+			try {
+				framedOut.close();
+			} catch (IOException e) {
+				log.log(Level.INFO, "Client already closed");
+			}
+		}
 		if (client != null && !client.isClosed()) {
 			try {
 				client.shutdownInput();
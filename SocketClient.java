@@ -1,17 +1,23 @@
 package client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import server.Payload;
+import server.PayloadCodec;
+import server.PayloadFrames;
 import server.PayloadType;
 
 public enum SocketClient {
@@ -19,9 +25,21 @@ public enum SocketClient {
 
 	private static Socket server;
 	private static Thread fromServerThread;
-	private static Thread clientThread;
+	private static Socket started;// the connection start() last ran for
 	private static String clientName;
-	private static ObjectOutputStream out;
+	private static DataOutputStream out;
+	private static int wireVersion;// agreed with the server during the hello
+	// lets reconnect() pick up where we left off, null until the server sends one
+	private static volatile String sessionToken;
+	private static volatile long lastOffset;// newest message offset we got in our room
+	private static volatile boolean reconnecting;
+	// counted down once the server took us back, see reconnect()
+	private static volatile CountDownLatch resumed;
+	// most we wait for the server's hello, and for it to take us back
+	private final static long HANDSHAKE_TIMEOUT_MS = 5000;
+	private static PayloadCodec writeCodec = new PayloadCodec();
+	private static PayloadCodec readCodec = new PayloadCodec();
+	private final static Object writeLock = new Object();
 	private final static Logger log = Logger.getLogger(SocketClient.class.getName());
 	private static List<Event> events = new ArrayList<Event>();// change from event to list<event>
 
@@ -46,37 +64,53 @@ public enum SocketClient {
 
 	private void sendPayload(Payload p) {
 		try {
-			out.writeObject(p);
+			synchronized (writeLock) {
+				PayloadFrames.write(out, p, wireVersion, writeCodec);
+			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 	}
 
-	private void listenForServerMessage(ObjectInputStream in) {
-		if (fromServerThread != null) {
-			log.log(Level.INFO, "Server Listener is likely already running");
-			return;
-		}
+	/***
+	 * Reads what the server sends on the connection until it closes. Only ever
+	 * touches that connection, a reconnect may have opened the next one by the
+	 * time this one's done.
+	 * 
+	 * @param socket
+	 * @param in
+	 */
+	private void listenForServerMessage(Socket socket, DataInputStream in) {
 		fromServerThread = new Thread() {
 			@Override
 			public void run() {
+				boolean lost = false;
 				try {
 					Payload fromServer;
 					// while we're connected, listen for Payloads from server
-					while (!server.isClosed() && (fromServer = (Payload) in.readObject()) != null) {
+					while (!socket.isClosed() && (fromServer = PayloadFrames.read(in, wireVersion, readCodec)) != null) {
 						processPayload(fromServer);
 					}
 				} catch (Exception e) {
-					if (!server.isClosed()) {
+					if (!socket.isClosed()) {
 						e.printStackTrace();
 						log.log(Level.INFO, "Server closed connection");
+						lost = true;
 					} else {
 						log.log(Level.INFO, "Connection closed");
 					}
 				} finally {
-					close();
+					try {
+						socket.close();
+					} catch (IOException e) {
+					}
 					log.log(Level.INFO, "Stopped listening to server input");
+					if (lost) {
+						sendOnConnectionLost();
+					}
+					// reconnect() finds the socket closed
+					wasResumed();
 				}
 			}
 		};
@@ -123,6 +157,16 @@ public enum SocketClient {
 		}
 	}
 
+	private void sendOnConnectionLost() {
+		Iterator<Event> iter = events.iterator();
+		while (iter.hasNext()) {
+			Event e = iter.next();
+			if (e != null) {
+				e.onConnectionLost();
+			}
+		}
+	}
+
 	private void sendRoom(String roomName) {
 		Iterator<Event> iter = events.iterator();
 		while (iter.hasNext()) {
@@ -142,20 +186,48 @@ public enum SocketClient {
 
 		switch (p.getPayloadType()) {
 		case CONNECT:
+			if (clientName != null && clientName.equals(p.getClientName())) {
+				// we're in a room again, that's how a CONNECT without a session ends
+				wasResumed();
+			}
 			sendOnClientConnect(p.getClientName(), p.getMessage());
 			break;
 		case DISCONNECT:
 			sendOnClientDisconnect(p.getClientName(), p.getMessage());
 			break;
 		case MESSAGE:
+			if (p.getOffset() > lastOffset) {
+				lastOffset = p.getOffset();
+			}
 			sendOnMessage(p.getClientName(), p.getMessage());
 			break;
 		case GET_ROOMS:
 			// reply from ServerThread
 			sendRoom(p.getMessage());
 			break;
+		case CLEAR_PLAYERS:
+			// we changed rooms, the server sends the new member list next
+			lastOffset = 0;
+			sendOnChangeRoom();
+			break;
+		case SESSION:
+			if (p.getMessage() != null) {
+				sessionToken = p.getMessage();
+				wasResumed();
+			} else {
+				// our session expired, start over
+				log.log(Level.INFO, "Session is gone, connecting again");
+				sessionToken = null;
+				lastOffset = 0;
+				sendPayload(buildConnectionStatus(clientName, true));
+			}
+			break;
+		case GET_HISTORY:
+			// end of a history reply, the messages themselves came as MESSAGEs
+			log.log(Level.INFO, "Received {0} messages of history for {1}", new Object[] { p.getNumber(), p.getMessage() });
+			break;
 		default:
-			log.log(Level.WARNING, "unhandled payload on client" + p);
+			log.log(Level.WARNING, "Unhandled payload on client: {0}", p);
 			break;
 
 		}
@@ -192,6 +264,62 @@ public enum SocketClient {
 		return false;
 	}
 
+	/***
+	 * Connects again after the connection dropped. If the server gave us a
+	 * session it's resumed: same room, and only the messages we missed are sent.
+	 * Otherwise we CONNECT with our name again. Waits until the server answered
+	 * that.
+	 * 
+	 * @param address
+	 * @param port
+	 * @return true once the server took us back, false if it didn't (in time),
+	 *         the connection is closed again then
+	 * @throws IOException
+	 */
+	public boolean reconnect(String address, String port) throws IOException {
+		CountDownLatch done = new CountDownLatch(1);
+		resumed = done;
+		reconnecting = true;
+		try {
+			if (!connectAndStart(address, port)) {
+				return false;
+			}
+			// the answer comes in on the listener, which closes the socket if the
+			// connection fails first
+			if (done.await(HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS) && !server.isClosed()) {
+				return true;
+			}
+			log.log(Level.INFO, "The server didn't take us back");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			resumed = null;
+			reconnecting = false;
+		}
+		close();
+		return false;
+	}
+
+	/***
+	 * Lets reconnect() return, the server answered our resume or CONNECT, or the
+	 * connection failed on the way
+	 */
+	private static void wasResumed() {
+		CountDownLatch done = resumed;
+		if (done != null) {
+			done.countDown();
+		}
+	}
+
+	private Payload buildResume() {
+		Payload payload = new Payload();
+		payload.setPayloadType(PayloadType.SESSION);
+		payload.setClientName(clientName);
+		payload.setMessage(sessionToken);
+		payload.setOffset(lastOffset);
+		return payload;
+	}
+
 	public void setUsername(String username) {
 		clientName = username;
 		sendPayload(buildConnectionStatus(clientName, true));
@@ -222,41 +350,66 @@ public enum SocketClient {
 		sendPayload(p);
 	}
 
+	/***
+	 * Asks for the newest messages of the current room
+	 * 
+	 * @param count 0 for the server's default
+	 */
+	public void sendGetHistory(int count) {
+		Payload p = new Payload();
+		p.setPayloadType(PayloadType.GET_HISTORY);
+		p.setNumber(count);
+		sendPayload(p);
+	}
+
+	/***
+	 * Asks for the messages that came after offset (see Payload.getOffset()) in the
+	 * current room
+	 * 
+	 * @param offset
+	 * @param count  0 for the server's default
+	 */
+	public void sendGetHistoryAfter(long offset, int count) {
+		Payload p = new Payload();
+		p.setPayloadType(PayloadType.GET_HISTORY);
+		p.setNumber(count);
+		p.setOffset(offset);
+		sendPayload(p);
+	}
+
 	public boolean start() throws IOException {
 		if (server == null) {
 			log.log(Level.WARNING, "Server is null");
 			return false;
 		}
-		if (clientThread != null && clientThread.isAlive()) {
-			log.log(Level.SEVERE, "Client thread is already active");
+		Socket socket = server;
+		if (started == socket && !socket.isClosed()) {
+			log.log(Level.SEVERE, "Client is already started");
 			return false;
 		}
-		if (clientThread != null) {
-			clientThread.interrupt();
-			clientThread = null;
-		}
+		started = socket;
 		log.log(Level.INFO, "Client Started");
-		clientThread = new Thread() {
-			@Override
-			public void run() {
-
-				try (ObjectOutputStream out = new ObjectOutputStream(server.getOutputStream());
-						ObjectInputStream in = new ObjectInputStream(server.getInputStream());) {
-					SocketClient.out = out;
-
-					listenForServerMessage(in);
-					while (!server.isClosed()) {
-						Thread.sleep(50);
-					}
-					log.log(Level.INFO, "Client Thread stopping");
-				} catch (Exception e) {
-					e.printStackTrace();
-				} finally {
-					close();
-				}
-			}
-		};
-		clientThread.start();
+		DataInputStream in;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			// before we return, so we can send right away; a server that doesn't answer
+			// isn't waited on forever
+			socket.setSoTimeout((int) HANDSHAKE_TIMEOUT_MS);
+			wireVersion = PayloadFrames.negotiate(in, out);
+			socket.setSoTimeout(0);
+			SocketClient.out = out;
+		} catch (IOException e) {
+			log.log(Level.INFO, "Handshake with the server failed: " + e.getMessage());
+			close();
+			return false;
+		}
+		log.log(Level.INFO, "Using wire version " + wireVersion);
+		listenForServerMessage(socket, in);
+		if (reconnecting) {
+			reconnecting = false;
+			sendPayload(sessionToken != null ? buildResume() : buildConnectionStatus(clientName, true));
+		}
 		return true;
 	}
 
@@ -1,48 +1,117 @@
 package server;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.SecureRandom;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
-import java.util.logging.Logger;
 
 public class SocketServer {
 	int port = 3001;
 	public static boolean isRunning = false;
-	private List<Room> rooms = new ArrayList<Room>();
+	private TransportMode transportMode = TransportMode.BLOCKING;
+	private int eventLoops = Runtime.getRuntime().availableProcessors();
+	// a client gets every message or is disconnected, DROP_OLDEST has to be asked for
+	private static OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+	private static int outboundCapacity = 1024;
+	private static int joinHistory = 50;// messages replayed to whoever joins a room
+	private static int sessionGraceSeconds = 30;// how long a dropped client can resume, 0 = off
+	private int metricsPort = 0;// loopback admin endpoint, 0 = off
+	private int metricsDumpSeconds = 0;// periodic stats in the log, 0 = off
+	private Path historyDir = null;// where room history is kept, null = not kept unless a directory is given
+	// keyed by normalized (lower case) room name, see roomKey()
+	private ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+	// every named client on the server, used to route private messages
+	private ConcurrentMap<String, ServerThread> clientsByName = new ConcurrentHashMap<String, ServerThread>();
+	// every connected client by thread id, what other cluster nodes address them by
+	private ConcurrentMap<Long, ServerThread> clientsById = new ConcurrentHashMap<Long, ServerThread>();
+	// sessions that can be resumed by token: connected clients and dropped ones
+	// still in their grace period
+	private ConcurrentMap<String, ServerThread> sessions = new ConcurrentHashMap<String, ServerThread>();
+	private final static SecureRandom tokens = new SecureRandom();
+	private final static Metrics.Counter sessionsResumed = Metrics.counter("sessions.resumed");
+	private final static Metrics.Counter sessionsExpired = Metrics.counter("sessions.expired");
+	// accepted clients that haven't sent CONNECT yet
+	private final static AtomicInteger handshakesPending = new AtomicInteger();
+	// open room histories by room key, closed when no room uses them anymore (a
+	// room that's recreated opens its old history again)
+	private final Map<String, SharedHistory> histories = new HashMap<String, SharedHistory>();// guarded by itself
+	// let go of but not closed yet, a room that's back takes it again
+	private final Map<String, RoomHistory> closingHistories = new HashMap<String, RoomHistory>();// guarded by histories
 	private Room lobby;
-	private List<Room> isolatedPrelobbies = new ArrayList<Room>();
-	private final static String PRELOBBY = "PreLobby";
+	// threads the rooms run on, one per event loop setting
+	private RoomWorkers roomWorkers;
+	private String clusterNodes = null;// host:port list of every node, null = no cluster
+	private String clusterSecret = null;// every node's links have to know it
+	private Cluster cluster;
 	protected final static String LOBBY = "Lobby";
-	private final static Logger log = Logger.getLogger(SocketServer.class.getName());
+	private final static long HANDSHAKE_TIMEOUT_SECONDS = 10;
+	// how long a blocking client gets to send its hello / stream header
+	private final static int HELLO_TIMEOUT_MS = 5000;
+	// pending connections the OS keeps for us, sized for everyone reconnecting
+	// after a restart
+	protected final static int ACCEPT_BACKLOG = 4096;
+	private final static int HANDSHAKE_THREADS = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+	// clients one address can have waiting on their hello in the pool, so a host
+	// opening idle sockets leaves half the handshake threads to everyone else
+	private final static int HELLOS_PER_ADDRESS = HANDSHAKE_THREADS / 2;
+	private final ConcurrentMap<InetAddress, Integer> pendingHellos = new ConcurrentHashMap<InetAddress, Integer>();
+	// closes connections that never send CONNECT
+	private final ScheduledExecutorService handshakeReaper = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "handshake-reaper");
+		t.setDaemon(true);
+		return t;
+	});
+	private final static AsyncLog log = AsyncLog.getLogger(SocketServer.class.getName());
 
 	private void start(int port) {
 		this.port = port;
 		log.log(Level.INFO, "Waiting for client");
-		try (ServerSocket serverSocket = new ServerSocket(port);) {
-			isRunning = true;
-			Room.setServer(this);
-			lobby = new Room(LOBBY);
-			rooms.add(lobby);
-			while (SocketServer.isRunning) {
-				try {
-					Socket client = serverSocket.accept();
-					log.log(Level.INFO, "Client connecting...");
-					ServerThread thread = new ServerThread(client, lobby);
-					thread.start();
-					Room prelobby = new Room(PRELOBBY);
-					prelobby.addClient(thread);
-					isolatedPrelobbies.add(prelobby);
-
-					log.log(Level.INFO, "Client added to clients pool");
-				} catch (IOException e) {
-					e.printStackTrace();
+		isRunning = true;
+		Room.setServer(this);
+		roomWorkers = new RoomWorkers(eventLoops);
+		lobby = new Room(LOBBY);
+		rooms.put(roomKey(LOBBY), lobby);
+		if (clusterNodes != null) {
+			cluster = Cluster.fromArgs(this, clusterNodes, clusterSecret, port);
+			try {
+				if (cluster != null) {
+					cluster.start();
 				}
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Couldn't open the cluster link port, running alone", e);
+				cluster = null;
+			}
+		}
+		registerMetrics();
+		try {
+			if (transportMode == TransportMode.SELECTOR) {
+				try (NioTransport transport = new NioTransport(this, eventLoops)) {
+					transport.start(port);
+				}
+			} else {
+				acceptBlocking(port);
 			}
-
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
@@ -56,20 +125,238 @@ public class SocketServer {
 		}
 	}
 
+	private void registerMetrics() {
+		Metrics.gauge("rooms", () -> rooms.size());
+		Metrics.gauge("clients", () -> clientsByName.size());
+		Metrics.gauge("handshakes.pending", handshakesPending::get);
+		Metrics.gaugeGroup("room.members", () -> {
+			Map<String, Long> members = new HashMap<String, Long>();
+			Iterator<Room> iter = rooms.values().iterator();
+			while (iter.hasNext()) {
+				Room r = iter.next();
+				String name = r.getName();
+				if (name != null) {
+					members.put(name, (long) r.getClientCount());
+				}
+			}
+			return members;
+		});
+		if (historyDir != null) {
+			Metrics.gauge("history.pending", RoomHistory::getPendingCount);
+		}
+		if (metricsPort > 0) {
+			try {
+				MetricsEndpoint.start(metricsPort);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Couldn't start metrics endpoint", e);
+			}
+		}
+		if (metricsDumpSeconds > 0) {
+			MetricsEndpoint.startDump(metricsDumpSeconds);
+		}
+	}
+
+	/***
+	 * Original transport, one ServerThread blocked on its socket per client. In
+	 * VIRTUAL mode the same blocking read loop runs on a virtual thread instead of
+	 * a platform thread.
+	 * 
+	 * The accept loop only accepts; reading the stream header / hello happens in
+	 * handshake() on a pool (or a virtual thread each) so one slow client can't
+	 * hold up everyone connecting after it. An address gets at most
+	 * HELLOS_PER_ADDRESS of the pool's threads, further connections from it are
+	 * dropped until one of its hellos is in or timed out.
+	 * 
+	 * @param port
+	 * @throws IOException
+	 */
+	private void acceptBlocking(int port) throws IOException {
+		ThreadPoolExecutor handshakePool = null;
+		if (transportMode != TransportMode.VIRTUAL) {
+			handshakePool = new ThreadPoolExecutor(HANDSHAKE_THREADS, HANDSHAKE_THREADS, 30, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(ACCEPT_BACKLOG), r -> {
+						Thread t = new Thread(r, "handshake");
+						t.setDaemon(true);
+						return t;
+					});
+			handshakePool.allowCoreThreadTimeOut(true);
+		}
+		try (ServerSocket serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);) {
+			while (SocketServer.isRunning) {
+				try {
+					Socket client = serverSocket.accept();
+					// writes are already batched per flush, don't let Nagle hold them back
+					client.setTcpNoDelay(true);
+					log.log(Level.INFO, "Client connecting...");
+					if (handshakePool == null) {
+						VirtualThreads.start(() -> handshake(client));
+					} else if (!claimHello(client.getInetAddress())) {
+						Metrics.handshakesRejected.increment();
+						log.log(Level.WARNING, "Too many pending handshakes from {0}, dropping new client",
+								client.getInetAddress());
+						client.close();
+					} else {
+						try {
+							handshakePool.execute(() -> {
+								try {
+									handshake(client);
+								} finally {
+									releaseHello(client.getInetAddress());
+								}
+							});
+						} catch (RejectedExecutionException e) {
+							// more clients waiting on their hello than we queue, shed this one
+							releaseHello(client.getInetAddress());
+							Metrics.handshakesRejected.increment();
+							log.log(Level.WARNING, "Handshake queue full, dropping new client");
+							client.close();
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			if (handshakePool != null) {
+				handshakePool.shutdownNow();
+			}
+		}
+	}
+
+	/***
+	 * @param address
+	 * @return false if the address already has HELLOS_PER_ADDRESS hellos pending
+	 */
+	private boolean claimHello(InetAddress address) {
+		if (pendingHellos.merge(address, 1, Integer::sum) > HELLOS_PER_ADDRESS) {
+			releaseHello(address);
+			return false;
+		}
+		return true;
+	}
+
+	private void releaseHello(InetAddress address) {
+		pendingHellos.computeIfPresent(address, (a, pending) -> pending > 1 ? pending - 1 : null);
+	}
+
+	/***
+	 * Reads the client's stream header / hello (bounded by HELLO_TIMEOUT_MS) and
+	 * starts its ServerThread. The CONNECT timeout takes over from there.
+	 * 
+	 * @param client
+	 */
+	private void handshake(Socket client) {
+		try {
+			client.setSoTimeout(HELLO_TIMEOUT_MS);
+			ServerThread thread = new ServerThread(client, lobby);
+			client.setSoTimeout(0);
+			onClientAccepted(thread);
+			if (transportMode == TransportMode.VIRTUAL) {
+				VirtualThreads.start(thread);
+			} else {
+				thread.start();
+			}
+		} catch (IOException e) {
+			Metrics.handshakesFailed.increment();
+			log.log(Level.INFO, "Client failed the handshake: {0}", e.getMessage());
+			try {
+				client.close();
+			} catch (IOException e1) {
+			}
+		}
+	}
+
+	/***
+	 * A newly accepted client isn't in any room until it sends CONNECT (the
+	 * ServerThread tracks that itself). We only arm the handshake timeout here.
+	 * Shared by every transport.
+	 * 
+	 * @param thread
+	 */
+	protected void onClientAccepted(ServerThread thread) {
+		Metrics.connectionsAccepted.increment();
+		handshakesPending.incrementAndGet();
+		handshakeReaper.schedule(thread::expireHandshake, HANDSHAKE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		clientsById.put(thread.getId(), thread);
+		log.log(Level.INFO, "Client added to clients pool");
+	}
+
+	/***
+	 * A room's history and how many rooms hold it. A room that's being replaced
+	 * and its replacement can share it for a moment.
+	 */
+	private static class SharedHistory {
+		final RoomHistory history;
+		int rooms = 0;
+
+		SharedHistory(RoomHistory history) {
+			this.history = history;
+		}
+	}
+
 	protected void cleanupRoom(Room r) {
-		Iterator<Room> iter = isolatedPrelobbies.iterator();
-		while (iter.hasNext()) {
-			Room check = iter.next();
-			if (check.equals(r)) {
-				iter.remove();
-				log.log(Level.INFO, "Removed " + check.getName() + " from prelobbies");
-				break;
+		String name = r.getName();
+		if (name != null && rooms.remove(roomKey(name), r)) {
+			releaseHistory(name, r.getHistory());
+			log.log(Level.INFO, "Removed {0} from rooms", name);
+			if (cluster != null) {
+				cluster.roomRemoved(r, name);
 			}
 		}
 	}
 
+	/***
+	 * Takes one of our rooms that was handed to another node out of the registry
+	 * (see Room.moveTo())
+	 * 
+	 * @param r
+	 * @param link to the new owner
+	 * @return the RemoteRoom our members in it continue in
+	 */
+	protected RemoteRoom roomMoved(Room r, ClusterLink link) {
+		String name = r.getName();
+		// until then lookups still find the room here
+		RemoteRoom remote = cluster.roomMoved(r, name, link);
+		if (rooms.remove(roomKey(name), r)) {
+			// the new owner keeps it from here on
+			releaseHistory(name, r.getHistory());
+		}
+		return remote;
+	}
+
+	/***
+	 * Registers a room another node handed to us
+	 * 
+	 * @param roomName
+	 * @param recentSize
+	 * @param nextOffset the old owner's next history offset
+	 * @param recent     the old owner's ring
+	 * @param members    the old owner's members, see Room.adoptClients()
+	 * @param from       where our clients among them are now, null if none are
+	 * @param fenced     nodes whose chat waits for their fence, see
+	 *                   Room.holdChat()
+	 * @return the room, or the one we already had by that name
+	 */
+	protected Room roomArrived(String roomName, int recentSize, long nextOffset, List<Broadcast> recent,
+			List<ServerThread> members, Room from, Collection<String> fenced) {
+		Room existing = rooms.get(roomKey(roomName));
+		if (existing != null) {
+			log.log(Level.WARNING, "Room {0} moved here but we already have it", roomName);
+			return existing;
+		}
+		// not ours until it's registered, so getHistory() wouldn't open it yet
+		Room room = new Room(roomName, recentSize, historyDir == null ? null : openHistory(roomKey(roomName)), from);
+		room.resume(nextOffset, recent);
+		// before anyone can find the room, so no chat gets to it ahead of its members
+		// or its fences
+		room.holdChat(fenced);
+		room.adoptClients(members, from);
+		rooms.put(roomKey(roomName), room);
+		return room;
+	}
+
 	private void cleanup() {
-		Iterator<Room> iter = this.rooms.iterator();
+		Iterator<Room> iter = this.rooms.values().iterator();
 		while (iter.hasNext()) {
 			Room r = iter.next();
 			try {
@@ -79,137 +366,549 @@ public class SocketServer {
 
 			}
 		}
-		Iterator<Room> pl = isolatedPrelobbies.iterator();
-		while (pl.hasNext()) {
-			Room r = pl.next();
-			try {
-				r.close();
-				pl.remove();
-			} catch (Exception e) {
-			}
+		handshakeReaper.shutdownNow();
+		if (cluster != null) {
+			cluster.stop();
 		}
 		try {
 			lobby.close();
 			log.log(Level.WARNING, "Lobby closed");
 		} catch (Exception e) {
 		}
+		// let the rooms finish closing before their history goes away
+		roomWorkers.shutdown(TimeUnit.SECONDS.toMillis(5));
+		RoomHistory.flush(TimeUnit.SECONDS.toMillis(5));
+		synchronized (histories) {
+			Iterator<SharedHistory> open = histories.values().iterator();
+			while (open.hasNext()) {
+				try {
+					open.next().history.close();
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Problem closing room history", e);
+				}
+			}
+			histories.clear();
+		}
+	}
+
+	/***
+	 * @param roomName
+	 * @return the room's message history or null if history is off (or couldn't
+	 *         be opened)
+	 */
+	protected RoomHistory getHistory(String roomName) {
+		if (historyDir == null || roomName == null) {
+			return null;
+		}
+		if (cluster != null && !cluster.isLocal(roomKey(roomName))) {
+			// kept by the node that owns the room
+			return null;
+		}
+		return openHistory(roomKey(roomName));
+	}
+
+	/***
+	 * Opens the room's history, or shares it if another room has it open. Every
+	 * room that gets it lets go of it with releaseHistory(). One that's still
+	 * closing is taken back, so this never waits for the writer.
+	 */
+	private RoomHistory openHistory(String key) {
+		synchronized (histories) {
+			SharedHistory shared = histories.get(key);
+			if (shared == null) {
+				RoomHistory closing = closingHistories.remove(key);
+				if (closing != null && closing.reopen()) {
+					shared = new SharedHistory(closing);
+				} else {
+					// if it was closing it's closed, so its files are complete
+					try {
+						shared = new SharedHistory(RoomHistory.open(historyDir, key));
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Couldn''t open history for room {0}", key, e);
+						return null;
+					}
+				}
+				histories.put(key, shared);
+			}
+			shared.rooms++;
+			return shared.history;
+		}
+	}
+
+	/***
+	 * Lets go of a room's history, see openHistory(). The last room to let go
+	 * closes it once everything appended to it is written, so a server doesn't
+	 * keep files open for every room it ever had.
+	 * 
+	 * @param roomName
+	 * @param history  null if the room had none
+	 */
+	protected void releaseHistory(String roomName, RoomHistory history) {
+		if (history == null) {
+			return;
+		}
+		String key = roomKey(roomName);
+		synchronized (histories) {
+			SharedHistory shared = histories.get(key);
+			if (shared == null || shared.history != history || --shared.rooms > 0) {
+				return;
+			}
+			histories.remove(key);
+			history.closeWhenWritten();
+			Iterator<RoomHistory> iter = closingHistories.values().iterator();
+			while (iter.hasNext()) {
+				if (iter.next().isClosed()) {
+					iter.remove();
+				}
+			}
+			closingHistories.put(key, history);
+		}
+	}
+
+	/***
+	 * @param roomName
+	 * @return a mailbox on the worker the room is pinned to, null if the server
+	 *         isn't running (the room then runs everything on the caller)
+	 */
+	protected Mailbox newMailbox(String roomName) {
+		return roomWorkers == null ? null : roomWorkers.newMailbox(roomKey(roomName));
+	}
+
+	/***
+	 * @return what to do when a client's outbound queue is full
+	 */
+	protected static OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/***
+	 * @return how many payloads can wait for a client before the overflow policy
+	 *         kicks in
+	 */
+	protected static int getOutboundCapacity() {
+		return outboundCapacity;
+	}
+
+	/***
+	 * @return how many history messages a client gets when it joins a room
+	 */
+	protected static int getJoinHistory() {
+		return joinHistory;
+	}
+
+	/***
+	 * @return how many seconds a dropped client's session is kept, 0 if clients
+	 *         don't get sessions
+	 */
+	protected static int getSessionGrace() {
+		return sessionGraceSeconds;
+	}
+
+	/***
+	 * A client accepted by onClientAccepted() sent CONNECT or went away
+	 */
+	protected static void handshakeEnded() {
+		handshakesPending.decrementAndGet();
+	}
+
+	/***
+	 * @return a new unguessable session token
+	 */
+	protected static String newSessionToken() {
+		byte[] token = new byte[18];
+		tokens.nextBytes(token);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+	}
+
+	/***
+	 * Indexes a client's session by its token as soon as it has one, so a
+	 * resume finds it even if the server never noticed the old connection drop
+	 * 
+	 * @param client
+	 */
+	protected void addSession(ServerThread client) {
+		sessions.put(client.getSessionToken(), client);
+	}
+
+	/***
+	 * Keeps a dropped client's session (its name, mutes and room membership)
+	 * until the client resumes it or the grace period is over
+	 * 
+	 * @param client
+	 */
+	protected void parkSession(ServerThread client) {
+		String token = client.getSessionToken();
+		log.log(Level.INFO, "Keeping the session of {0} for {1}s", client.getClientName(), sessionGraceSeconds);
+		handshakeReaper.schedule(() -> {
+			if (sessions.remove(token, client)) {
+				sessionsExpired.increment();
+				log.log(Level.INFO, "Session of {0} expired", client.getClientName());
+				client.endSession();
+			}
+		}, sessionGraceSeconds, TimeUnit.SECONDS);
+	}
+
+	/***
+	 * @param token
+	 * @return the session for the token, parked or still connected, or null if
+	 *         it expired (or never existed). It's taken over (see
+	 *         ServerThread.takeOver()) and no longer indexed afterwards.
+	 */
+	protected ServerThread takeSession(String token) {
+		ServerThread[] taken = new ServerThread[1];
+		// under the map's lock for the token, so the old connection can't park
+		// itself halfway through
+		sessions.computeIfPresent(token, (t, client) -> {
+			client.takeOver();
+			taken[0] = client;
+			return null;
+		});
+		if (taken[0] != null) {
+			sessionsResumed.increment();
+		}
+		return taken[0];
+	}
+
+	/***
+	 * Adds the client to the name index once it has sent its name. If someone else
+	 * already uses that name the newest connection wins.
+	 * 
+	 * @param client
+	 */
+	protected void registerClient(ServerThread client) {
+		String name = client.getClientName();
+		if (name == null) {
+			return;
+		}
+		ServerThread previous = clientsByName.put(name, client);
+		if (previous != null && previous != client) {
+			log.log(Level.INFO, "Name {0} is now routed to the newest connection", name);
+		}
+	}
+
+	/***
+	 * Removes the client from the name index (only if the entry still points at
+	 * this client)
+	 * 
+	 * @param client
+	 */
+	protected void unregisterClient(ServerThread client) {
+		String name = client.getClientName();
+		if (name != null) {
+			clientsByName.remove(name, client);
+		}
+	}
+
+	/***
+	 * Drops a client that disconnected from the indexes
+	 * 
+	 * @param client
+	 */
+	protected void forgetClient(ServerThread client) {
+		unregisterClient(client);
+		clientsById.remove(client.getId(), client);
+		String token = client.getSessionToken();
+		if (token != null) {
+			sessions.remove(token, client);
+		}
+	}
+
+	/***
+	 * @param name
+	 * @return the connected client with that name or null
+	 */
+	protected ServerThread findClient(String name) {
+		return clientsByName.get(name);
+	}
+
+	/***
+	 * @param id
+	 * @return the connected client with that thread id or null
+	 */
+	protected ServerThread findClient(long id) {
+		return clientsById.get(id);
 	}
 
 	protected Room getLobby() {
 		return lobby;
 	}
 
+	/***
+	 * @return rooms of the whole cluster
+	 */
 	protected List<String> getRooms() {
+		List<String> roomNames = getLocalRooms();
+		if (cluster != null) {
+			roomNames.addAll(cluster.getRemoteRoomNames());
+		}
+		return roomNames;
+	}
+
+	/***
+	 * @return rooms this node owns
+	 */
+	protected List<String> getLocalRooms() {
 		List<String> roomNames = new ArrayList<String>();
-		Iterator<Room> iter = rooms.iterator();
+		Iterator<Room> iter = rooms.values().iterator();
 		while (iter.hasNext()) {
 			Room r = iter.next();
-			if (r != null && r.getName() != null) {
-				roomNames.add(r.getName());
+			String name = r.getName();
+			if (name != null) {
+				roomNames.add(name);
 			}
 		}
 		return roomNames;
 	}
 
 	/***
-	 * Special helper to join the lobby and close the previous room client was in if
-	 * it's marked as Prelobby. Mostly used for prelobby once the server receives
-	 * more client details.
+	 * Special helper to join the lobby, used once the server receives the client's
+	 * details (CONNECT)
 	 * 
 	 * @param client
 	 */
 	protected void joinLobby(ServerThread client) {
-		Room prelobby = client.getCurrentRoom();
 		if (joinRoom(LOBBY, client)) {
-			if (prelobby != null) {
-				prelobby.removeClient(client);
-				log.log(Level.INFO, "Added " + client.getClientName() + " to Lobby; Prelobby should self destruct");
-			} else {
-				log.log(Level.WARNING, "Prelobby was null for " + client.getClientName());
-			}
+			log.log(Level.INFO, "Added {0} to Lobby", client.getClientName());
 		} else {
-			log.log(Level.INFO, "Problem moving " + client.getClientName() + " to lobby");
+			log.log(Level.INFO, "Problem moving {0} to lobby", client.getClientName());
 		}
 	}
 
+	/***
+	 * Rooms are looked up case insensitively, so they're stored under their lower
+	 * case name
+	 * 
+	 * @param roomName
+	 * @return registry key for the room
+	 */
+	protected static String roomKey(String roomName) {
+		return roomName.toLowerCase(Locale.ROOT);
+	}
+
+	/***
+	 * @return this node's id in the cluster, null without one
+	 */
+	protected String getNodeId() {
+		return cluster == null ? null : cluster.getSelfId();
+	}
+
 	/***
 	 * Helper function to check if room exists by case insensitive name
 	 * 
 	 * @param roomName The name of the room to look for
 	 * @return matched Room or null if not found
 	 */
-	private Room getRoom(String roomName) {
-		Iterator<Room> iter = rooms.iterator();
-		while (iter.hasNext()) {
-			Room r = iter.next();
-			if (r != null && r.getName() != null && r.getName().equalsIgnoreCase(roomName)) {
-				return r;
+	Room getRoom(String roomName) {
+		String key = roomKey(roomName);
+		Room r;
+		if (cluster == null) {
+			r = rooms.get(key);
+		} else {
+			boolean local = cluster.isLocal(key);
+			r = local ? rooms.get(key) : cluster.getRemoteRoom(key);
+			// a move switched the owner in between, the other side was in place before it
+			if (r == null && cluster.isLocal(key) != local) {
+				r = local ? cluster.getRemoteRoom(key) : rooms.get(key);
 			}
 		}
-		log.log(Level.WARNING, "Error getting room " + roomName);
-		return null;
+		if (r == null) {
+			log.log(Level.WARNING, "Error getting room {0}", roomName);
+		}
+		return r;
+	}
+
+	/***
+	 * @param roomName
+	 * @return true if the room exists here or on the node that owns it
+	 */
+	protected boolean hasRoom(String roomName) {
+		String key = roomKey(roomName);
+		return cluster != null && !cluster.isLocal(key) ? cluster.hasRemoteRoom(key) : rooms.containsKey(key);
 	}
 
 	/***
-	 * Attempts to join a room by name. Will remove client from old room and add
-	 * them to the new room.
+	 * Attempts to join a room by name. The client is pointed at the new room
+	 * right away, then the add and the removal from the old room are posted to
+	 * the rooms' workers. If the new room closes before the add runs the client
+	 * lands in the lobby.
 	 * 
 	 * @param roomName The desired room to join
 	 * @param client   The client moving rooms
 	 * @return true if reassign worked; false if new room doesn't exist
 	 */
-	protected synchronized boolean joinRoom(String roomName, ServerThread client) {
-		if (roomName == null || roomName.equalsIgnoreCase(PRELOBBY)) {
-			log.log(Level.WARNING, "Room is either null or " + PRELOBBY);
+	protected boolean joinRoom(String roomName, ServerThread client) {
+		if (roomName == null) {
+			log.log(Level.WARNING, "Room is null");
 			return false;
 		}
 		Room newRoom = getRoom(roomName);
-		Room oldRoom = client.getCurrentRoom();
-		if (newRoom != null) {
-			if (oldRoom != null) {
-				log.log(Level.INFO, client.getClientName() + " leaving room " + oldRoom.getName());
-				oldRoom.removeClient(client);
-			} else {
-				log.log(Level.WARNING, "old room is null for " + client.getClientName());
-			}
-			log.log(Level.INFO, client.getClientName() + " joining room " + newRoom.getName());
-			newRoom.addClient(client);
+		if (newRoom == null) {
+			return false;
+		}
+		Room oldRoom = client.swapCurrentRoom(newRoom);
+		if (newRoom == oldRoom) {
+			log.log(Level.INFO, "{0} is already in room {1}", client.getClientName(), newRoom.getName());
 			return true;
 		}
-		return false;
+		log.log(Level.INFO, "{0} joining room {1}", client.getClientName(), newRoom.getName());
+		newRoom.addClient(client);
+		if (oldRoom != null) {
+			log.log(Level.INFO, "{0} leaving room {1}", client.getClientName(), oldRoom.getName());
+			oldRoom.removeClient(client);
+		}
+		return true;
 	}
 
 	/***
 	 * Attempts to create a room with given name if it doesn't exist already.
+	 * Creation is atomic, if two clients race to create the same room only one
+	 * wins.
 	 * 
 	 * @param roomName The desired room to create
 	 * @return true if it was created and false if it exists
 	 */
-	protected synchronized boolean createNewRoom(String roomName) {
-		if (roomName == null || roomName.equalsIgnoreCase(PRELOBBY)) {
+	protected boolean createNewRoom(String roomName) {
+		return createNewRoom(roomName, 0);
+	}
+
+	/***
+	 * Same as createNewRoom(roomName) with the size of the room's in memory ring
+	 * of recent messages
+	 * 
+	 * @param roomName
+	 * @param recentSize 0 for the default
+	 * @return true if it was created and false if it exists
+	 */
+	protected boolean createNewRoom(String roomName, int recentSize) {
+		if (roomName == null) {
 			return false;
 		}
-		if (getRoom(roomName) != null) {
+		String key = roomKey(roomName);
+		if (cluster != null && !cluster.isLocal(key)) {
+			return cluster.createRemoteRoom(roomName, key, recentSize);
+		}
+		Room room = new Room(roomName, recentSize);
+		if (rooms.putIfAbsent(key, room) != null) {
 			// TODO can't create room
+			releaseHistory(roomName, room.getHistory());
 			log.log(Level.INFO, "Room already exists");
 			return false;
-		} else {
-			Room room = new Room(roomName);// , this);
-			rooms.add(room);
-			log.log(Level.INFO, "Created new room: " + roomName);
-			return true;
 		}
+		log.log(Level.INFO, "Created new room: {0}", roomName);
+		if (cluster != null) {
+			cluster.roomAdded(roomName);
+		}
+		return true;
 	}
 
+	/***
+	 * Takes a number option given as --name=value out of the options
+	 *
+	 * @param options what main() was given, by name
+	 * @param name
+	 * @param fallback used when the option isn't given or isn't a number
+	 * @return
+	 */
+	private static int intOption(Map<String, String> options, String name, int fallback) {
+		String value = options.remove(name);
+		if (value == null) {
+			return fallback;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			log.log(Level.WARNING, "--" + name + " needs a number, using " + fallback);
+			return fallback;
+		}
+	}
+
+	/***
+	 * Port first (or --port=n), then any of these, i.e. "3001
+	 * --transport=selector --event-loops=4":
+	 *
+	 * <pre>
+	 * --transport=selector|blocking|virtual
+	 * --event-loops=n           threads rooms (and selectors) run on
+	 * --overflow=policy         when --capacity payloads are queued for a client
+	 * --capacity=n
+	 * --metrics-port=n          loopback metrics and admin endpoint, 0 = off
+	 * --metrics-dump=seconds    metrics in the log that often, 0 = off
+	 * --history=directory       where room history is kept, not kept without one
+	 * --join-history=n          messages replayed on join
+	 * --cluster=host:port,...   every node of the cluster, same list on each
+	 * --cluster-secret=secret   same on each node, links without it are refused
+	 * --session-grace=seconds   how long a dropped client can resume, 0 = off
+	 * </pre>
+	 *
+	 * @param args
+	 */
 	public static void main(String[] args) {
 		int port = -1;
-		try {
-			port = Integer.parseInt(args[0]);
-		} catch (Exception e) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int eq = arg.indexOf('=');
+				if (eq < 0) {
+					log.log(Level.WARNING, "Option " + arg + " needs a value, i.e. " + arg + "=...");
+					continue;
+				}
+				options.put(arg.substring(2, eq).toLowerCase(Locale.ROOT), arg.substring(eq + 1));
+				continue;
+			}
+			try {
+				port = Integer.parseInt(arg);
+			} catch (NumberFormatException e) {
+				log.log(Level.WARNING, "Unknown argument " + arg);
+			}
 		}
+		port = intOption(options, "port", port);
 		if (port > -1) {
 			log.log(Level.INFO, "Starting Server");
 			SocketServer server = new SocketServer();
+			String transport = options.remove("transport");
+			if (transport != null) {
+				try {
+					server.transportMode = TransportMode.valueOf(transport.toUpperCase(Locale.ROOT));
+				} catch (IllegalArgumentException e) {
+					log.log(Level.WARNING, "Unknown transport " + transport + ", using " + server.transportMode);
+				}
+			}
+			server.eventLoops = intOption(options, "event-loops", server.eventLoops);
+			String overflow = options.remove("overflow");
+			if (overflow != null) {
+				try {
+					overflowPolicy = OverflowPolicy.valueOf(overflow.toUpperCase(Locale.ROOT));
+				} catch (IllegalArgumentException e) {
+					log.log(Level.WARNING, "Unknown overflow policy " + overflow + ", using " + overflowPolicy);
+				}
+			}
+			outboundCapacity = Math.max(1, intOption(options, "capacity", outboundCapacity));
+			server.metricsPort = intOption(options, "metrics-port", server.metricsPort);
+			server.metricsDumpSeconds = intOption(options, "metrics-dump", server.metricsDumpSeconds);
+			String history = options.remove("history");
+			if (history != null && !history.isEmpty()) {
+				server.historyDir = Paths.get(history);
+			}
+			joinHistory = Math.max(0, intOption(options, "join-history", joinHistory));
+			String cluster = options.remove("cluster");
+			if (cluster != null && !cluster.isEmpty()) {
+				server.clusterNodes = cluster;
+			}
+			server.clusterSecret = options.remove("cluster-secret");
+			sessionGraceSeconds = Math.max(0, intOption(options, "session-grace", sessionGraceSeconds));
+			if (!options.isEmpty()) {
+				log.log(Level.WARNING, "Ignoring unknown options " + options.keySet());
+			}
+			if (server.transportMode == TransportMode.VIRTUAL && !VirtualThreads.isSupported()) {
+				log.log(Level.WARNING, "Virtual threads need Java 21+, connections will use platform threads");
+			}
+			log.log(Level.INFO, "Using " + server.transportMode + " transport, " + overflowPolicy + " when "
+					+ outboundCapacity + " payloads are queued for a client");
+			if (server.historyDir != null) {
+				log.log(Level.INFO, "Keeping room history in " + server.historyDir.toAbsolutePath());
+			} else {
+				log.log(Level.INFO, "Not keeping room history, no history directory given");
+			}
 			log.log(Level.INFO, "Listening on port " + port);
 			server.start(port);
 			log.log(Level.INFO, "Server Stopped");
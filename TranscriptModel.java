@@ -0,0 +1,149 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/***
+ * Lines shown in the chat transcript, oldest first, with each row's cached
+ * height and y position. Everything lives in ring arrays sized to the
+ * scrollback cap, so appending a line (and dropping the oldest one once the cap
+ * is hit) costs the same however long the chat has been going.
+ *
+ * Row positions are kept in one coordinate space that only ever grows; the y
+ * of a row on screen is its position minus the position of the oldest row, so
+ * dropping a row doesn't touch any of the others.
+ */
+public class TranscriptModel {
+	private final String[] messages;
+	private final int[] heights;
+	private final long[] tops;
+	private int first = 0;// ring index of the oldest row
+	private int size = 0;
+	private long end = 0;// position just past the newest row
+
+	/***
+	 * @param capacity scrollback cap, the oldest line is dropped past this
+	 */
+	public TranscriptModel(int capacity) {
+		capacity = Math.max(1, capacity);
+		messages = new String[capacity];
+		heights = new int[capacity];
+		tops = new long[capacity];
+	}
+
+	public int getCapacity() {
+		return messages.length;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int index(int row) {
+		int i = first + row;
+		return i >= messages.length ? i - messages.length : i;
+	}
+
+	public String get(int row) {
+		return messages[index(row)];
+	}
+
+	public int getHeight(int row) {
+		return heights[index(row)];
+	}
+
+	/***
+	 * @param row
+	 * @return y of the row relative to the top of the oldest row
+	 */
+	public int getY(int row) {
+		return (int) (tops[index(row)] - tops[first]);
+	}
+
+	public int getTotalHeight() {
+		return size == 0 ? 0 : (int) (end - tops[first]);
+	}
+
+	/***
+	 * Appends a line
+	 *
+	 * @param message
+	 * @param height  row height in pixels
+	 * @return height of the row that was dropped to stay under the cap, 0 if none
+	 */
+	public int add(String message, int height) {
+		int dropped = 0;
+		if (size == messages.length) {
+			dropped = heights[first];
+			messages[first] = null;
+			first = index(1);
+			size--;
+		}
+		int i = index(size);
+		messages[i] = message;
+		heights[i] = height;
+		tops[i] = end;
+		end += height;
+		size++;
+		return dropped;
+	}
+
+	/***
+	 * Recomputes every row height, i.e. after the width changed
+	 *
+	 * @param measure height of a line at the new width
+	 */
+	public void remeasure(ToIntFunction<String> measure) {
+		long position = size == 0 ? end : tops[first];
+		for (int row = 0; row < size; row++) {
+			int i = index(row);
+			heights[i] = measure.applyAsInt(messages[i]);
+			tops[i] = position;
+			position += heights[i];
+		}
+		end = position;
+	}
+
+	/***
+	 * @param y relative to the top of the oldest row
+	 * @return the row covering y (clamped to the first/last row), -1 if empty
+	 */
+	public int rowAtY(int y) {
+		if (size == 0) {
+			return -1;
+		}
+		long target = tops[first] + Math.max(0, y);
+		int low = 0;
+		int high = size - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (tops[index(mid)] <= target) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/***
+	 * @return copy of the lines, oldest first
+	 */
+	public List<String> getMessages() {
+		List<String> copy = new ArrayList<String>(size);
+		for (int row = 0; row < size; row++) {
+			copy.add(get(row));
+		}
+		return copy;
+	}
+
+	public void clear() {
+		for (int row = 0; row < size; row++) {
+			messages[index(row)] = null;
+		}
+		first = 0;
+		size = 0;
+		end = 0;
+	}
+}
@@ -0,0 +1,179 @@
+package client;
+
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.List;
+
+import javax.swing.CellRendererPane;
+import javax.swing.JComponent;
+import javax.swing.JEditorPane;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.UIManager;
+
+/***
+ * Chat transcript that only renders the rows on screen. Lines live in a
+ * TranscriptModel and one shared html JEditorPane is stamped onto the
+ * component for each visible row (the same trick JList/JTable renderers use),
+ * so the number of components doesn't grow with the chat.
+ *
+ * A row's height is measured once when it's added and cached in the model; it's
+ * only measured again when the width changes. Appending is a measurement plus
+ * an O(1) model update however many lines there are.
+ *
+ * Must be used from the event dispatch thread.
+ */
+public class TranscriptView extends JComponent implements Scrollable {
+	private static final long serialVersionUID = 1L;
+	private final static int PIXEL_PADDING = 6;
+	private final static int ESTIMATED_HEIGHT = 24;// until we know our width
+	private final TranscriptModel model;
+	private final JEditorPane renderer = new JEditorPane();
+	private final CellRendererPane rendererPane = new CellRendererPane();
+	private int measuredWidth = 0;
+
+	/***
+	 * @param scrollback most lines kept, older ones are dropped
+	 */
+	public TranscriptView(int scrollback) {
+		model = new TranscriptModel(scrollback);
+		renderer.setContentType("text/html");
+		renderer.setEditable(false);
+		add(rendererPane);
+		setOpaque(true);
+		setBackground(UIManager.getColor("EditorPane.background"));
+	}
+
+	public TranscriptModel getModel() {
+		return model;
+	}
+
+	/***
+	 * Appends a line, keeping the view pinned to the bottom if it was already
+	 * there and keeping what's on screen in place otherwise
+	 *
+	 * @param message html fragment
+	 */
+	public void addMessage(String message) {
+		boolean atBottom = isAtBottom();
+		int width = getWidth();
+		int height = width > 0 ? measure(message, width) : ESTIMATED_HEIGHT;
+		int dropped = model.add(message, height);
+		JViewport viewport = getViewport();
+		if (dropped > 0 && !atBottom && viewport != null) {
+			// everything moved up by the dropped row, follow it
+			Point p = viewport.getViewPosition();
+			viewport.setViewPosition(new Point(p.x, Math.max(0, p.y - dropped)));
+		}
+		revalidate();
+		repaint();
+		if (atBottom) {
+			// after the revalidate above has resized us
+			SwingUtilities.invokeLater(this::scrollToBottom);
+		}
+	}
+
+	public void clear() {
+		model.clear();
+		revalidate();
+		repaint();
+	}
+
+	/***
+	 * @return the lines, oldest first
+	 */
+	public List<String> getMessages() {
+		return model.getMessages();
+	}
+
+	public void scrollToBottom() {
+		int height = model.getTotalHeight();
+		scrollRectToVisible(new Rectangle(0, Math.max(0, height - 1), 1, 1));
+	}
+
+	private boolean isAtBottom() {
+		JViewport viewport = getViewport();
+		if (viewport == null) {
+			return true;
+		}
+		Rectangle visible = viewport.getViewRect();
+		return visible.y + visible.height >= model.getTotalHeight() - PIXEL_PADDING;
+	}
+
+	private JViewport getViewport() {
+		return getParent() instanceof JViewport ? (JViewport) getParent() : null;
+	}
+
+	private int measure(String message, int width) {
+		renderer.setText(message);
+		// the html view wraps to the width it's given and reports the height for it
+		renderer.setSize(width, Short.MAX_VALUE);
+		return renderer.getPreferredSize().height + PIXEL_PADDING;
+	}
+
+	@Override
+	public void setBounds(int x, int y, int width, int height) {
+		if (width != measuredWidth && width > 0) {
+			// wrapping changed, every cached height is stale
+			measuredWidth = width;
+			model.remeasure(message -> measure(message, width));
+			revalidate();
+		}
+		super.setBounds(x, y, width, height);
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		}
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		int width = getWidth();
+		int bottom = clip.y + clip.height;
+		for (int row = model.rowAtY(clip.y); row >= 0 && row < model.size(); row++) {
+			int y = model.getY(row);
+			if (y >= bottom) {
+				break;
+			}
+			renderer.setText(model.get(row));
+			rendererPane.paintComponent(g, renderer, this, 0, y, width, model.getHeight(row), true);
+		}
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+		return new Dimension(measuredWidth, model.getTotalHeight());
+	}
+
+	@Override
+	public Dimension getPreferredScrollableViewportSize() {
+		return getPreferredSize();
+	}
+
+	@Override
+	public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return orientation == SwingConstants.VERTICAL ? ESTIMATED_HEIGHT : 10;
+	}
+
+	@Override
+	public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+	}
+
+	@Override
+	public boolean getScrollableTracksViewportWidth() {
+		// width comes from the viewport, rows wrap instead of scrolling sideways
+		return true;
+	}
+
+	@Override
+	public boolean getScrollableTracksViewportHeight() {
+		return false;
+	}
+}
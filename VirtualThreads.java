@@ -0,0 +1,53 @@
+package server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Small wrapper around Thread.ofVirtual(). It's looked up reflectively so the
+ * server still compiles and runs on JDKs older than 21; in that case we fall
+ * back to a regular platform thread.
+ */
+public class VirtualThreads {
+	private final static Logger log = Logger.getLogger(VirtualThreads.class.getName());
+	private static final MethodHandle startVirtualThread = lookup();
+
+	private VirtualThreads() {
+	}
+
+	private static MethodHandle lookup() {
+		try {
+			return MethodHandles.publicLookup().findStatic(Thread.class, "startVirtualThread",
+					MethodType.methodType(Thread.class, Runnable.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	public static boolean isSupported() {
+		return startVirtualThread != null;
+	}
+
+	/***
+	 * Runs the task on a new virtual thread (or a platform thread if the JVM
+	 * doesn't support them)
+	 *
+	 * @param task
+	 * @return the started thread
+	 */
+	public static Thread start(Runnable task) {
+		if (startVirtualThread != null) {
+			try {
+				return (Thread) startVirtualThread.invoke(task);
+			} catch (Throwable e) {
+				log.log(Level.WARNING, "Couldn't start virtual thread, using a platform thread", e);
+			}
+		}
+		Thread thread = new Thread(task);
+		thread.start();
+		return thread;
+	}
+}
@@ -1,10 +1,12 @@
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.logging.Level;
 
-import utils.Debug;
+import server.AsyncLog;
 
 public class Room implements AutoCloseable {
+	private final static AsyncLog log = AsyncLog.getLogger(Room.class.getName());
 	private static SocketServer server;// used to refer to accessible server functions
 	private String name;
 
@@ -30,7 +32,7 @@ public class Room implements AutoCloseable {
 	protected synchronized void addClient(ServerThread client) {
 		client.setCurrentRoom(this);
 		if (clients.indexOf(client) > -1) {
-			Debug.log("Attempting to add a client that already exists");
+			log.log(Level.INFO, "Attempting to add a client that already exists");
 		} else {
 			clients.add(client);
 			if (client.getClientName() != null) {
@@ -54,7 +56,7 @@ public class Room implements AutoCloseable {
 			return;
 		}
 		try {
-			Debug.log("Closing empty room: " + name);
+			log.log(Level.INFO, "Closing empty room: {0}", name);
 			close();
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
@@ -82,7 +84,7 @@ public class Room implements AutoCloseable {
 		try {
 			if (message.indexOf(COMMAND_TRIGGER) > -1) {
 				String[] comm = message.split(COMMAND_TRIGGER);
-				Debug.log(message);
+				log.log(Level.INFO, "Command: {0}", message);
 				String part1 = comm[1];
 				String[] comm2 = part1.split(" ");
 				String command = comm2[0];
@@ -118,7 +120,7 @@ public class Room implements AutoCloseable {
 			boolean messageSent = client.sendConnectionStatus(clientName, isConnect);
 			if (!messageSent) {
 				iter.remove();
-				Debug.log("Removed client " + client.getId());
+				log.log(Level.INFO, "Removed client {0}", client.getId());
 			}
 		}
 	}
@@ -132,7 +134,7 @@ public class Room implements AutoCloseable {
 	 * @param message The message to broadcast inside the room
 	 */
 	protected void sendMessage(ServerThread sender, String message) {
-		Debug.log(getName() + ": Sending message to " + clients.size() + " clients");
+		log.log(Level.INFO, "{0}: Sending message to {1} clients", getName(), clients.size());
 		if (processCommands(message, sender)) {
 			// it was a command, don't broadcast
 			return;
@@ -143,7 +145,7 @@ public class Room implements AutoCloseable {
 			boolean messageSent = client.send(sender.getClientName(), message);
 			if (!messageSent) {
 				iter.remove();
-				Debug.log("Removed client " + client.getId());
+				log.log(Level.INFO, "Removed client {0}", client.getId());
 			}
 		}
 	}
@@ -156,7 +158,7 @@ public class Room implements AutoCloseable {
 	public void close() throws Exception {
 		int clientCount = clients.size();
 		if (clientCount > 0) {
-			Debug.log("Migrating " + clients.size() + " to Lobby");
+			log.log(Level.INFO, "Migrating {0} to Lobby", clients.size());
 			Iterator<ServerThread> iter = clients.iterator();
 			Room lobby = server.getLobby();
 			while (iter.hasNext()) {
@@ -164,7 +166,7 @@ public class Room implements AutoCloseable {
 				lobby.addClient(client);
 				iter.remove();
 			}
-			Debug.log("Done Migrating " + clientCount + " to Lobby");
+			log.log(Level.INFO, "Done Migrating {0} to Lobby", clientCount);
 		}
 		server.cleanupRoom(this);
 		name = null;
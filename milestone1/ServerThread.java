@@ -2,10 +2,12 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.logging.Level;
 
-import utils.Debug;
+import server.AsyncLog;
 
 public class ServerThread extends Thread {
+	private final static AsyncLog log = AsyncLog.getLogger(ServerThread.class.getName());
 	private Socket client;
 	private ObjectInputStream in;// from client
 	private ObjectOutputStream out;// to client
@@ -25,7 +27,7 @@ public class ServerThread extends Thread {
 		if (room != null) {
 			currentRoom = room;
 		} else {
-			Debug.log("Passed in room was null, this shouldn't happen");
+			log.log(Level.INFO, "Passed in room was null, this shouldn't happen");
 		}
 	}
 
@@ -49,7 +51,7 @@ public class ServerThread extends Thread {
 			out.writeObject(message);
 			return true;
 		} catch (IOException e) {
-			Debug.log("Error sending message to client (most likely disconnected)");
+			log.log(Level.INFO, "Error sending message to client (most likely disconnected)");
 			e.printStackTrace();
 			cleanup();
 			return false;
@@ -89,7 +91,7 @@ public class ServerThread extends Thread {
 			out.writeObject(p);
 			return true;
 		} catch (IOException e) {
-			Debug.log("Error sending message to client (most likely disconnected)");
+			log.log(Level.INFO, "Error sending message to client (most likely disconnected)");
 			e.printStackTrace();
 			cleanup();
 			return false;
@@ -108,7 +110,7 @@ public class ServerThread extends Thread {
 			String n = p.getClientName();
 			if (n != null) {
 				clientName = n;
-				Debug.log("Set our name to " + clientName);
+				log.log(Level.INFO, "Set our name to {0}", clientName);
 				if (currentRoom != null) {
 					currentRoom.joinLobby(this);
 				}
@@ -121,7 +123,7 @@ public class ServerThread extends Thread {
 			currentRoom.sendMessage(this, p.getMessage());
 			break;
 		default:
-			Debug.log("Unhandled payload on server: " + p);
+			log.log(Level.INFO, "Unhandled payload on server: {0}", p);
 			break;
 		}
 	}
@@ -136,54 +138,54 @@ public class ServerThread extends Thread {
 					&& (fromClient = (Payload) in.readObject()) != null // reads an object from inputStream (null would
 			// likely mean a disconnect)
 			) {
-				System.out.println("Received from client: " + fromClient);
+				log.log(Level.FINE, "Received from client: {0}", fromClient);
 				processPayload(fromClient);
 			} // close while loop
 		} catch (Exception e) {
 			// happens when client disconnects
 			e.printStackTrace();
-			Debug.log("Client Disconnected");
+			log.log(Level.INFO, "Client Disconnected");
 		} finally {
 			isRunning = false;
-			Debug.log("Cleaning up connection for ServerThread");
+			log.log(Level.INFO, "Cleaning up connection for ServerThread");
 			cleanup();
 		}
 	}
 
 	private void cleanup() {
 		if (currentRoom != null) {
-			Debug.log(getName() + " removing self from room " + currentRoom.getName());
+			log.log(Level.INFO, "{0} removing self from room {1}", getName(), currentRoom.getName());
 			currentRoom.removeClient(this);
 		}
 		if (in != null) {
 			try {
 				in.close();
 			} catch (IOException e) {
-				Debug.log("Input already closed");
+				log.log(Level.INFO, "Input already closed");
 			}
 		}
 		if (out != null) {
 			try {
 				out.close();
 			} catch (IOException e) {
-				Debug.log("Client already closed");
+				log.log(Level.INFO, "Client already closed");
 			}
 		}
 		if (client != null && !client.isClosed()) {
 			try {
 				client.shutdownInput();
 			} catch (IOException e) {
-				Debug.log("Socket/Input already closed");
+				log.log(Level.INFO, "Socket/Input already closed");
 			}
 			try {
 				client.shutdownOutput();
 			} catch (IOException e) {
-				Debug.log("Socket/Output already closed");
+				log.log(Level.INFO, "Socket/Output already closed");
 			}
 			try {
 				client.close();
 			} catch (IOException e) {
-				Debug.log("Client already closed");
+				log.log(Level.INFO, "Client already closed");
 			}
 		}
 	}
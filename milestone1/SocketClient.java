@@ -4,10 +4,12 @@ import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Scanner;
+import java.util.logging.Level;
 
-import utils.Debug;
+import server.AsyncLog;
 
 public class SocketClient implements AutoCloseable {
+	private final static AsyncLog log = AsyncLog.getLogger(SocketClient.class.getName());
 	private Socket server;
 	private Thread inputThread;
 	private Thread fromServerThread;
@@ -16,7 +18,7 @@ public class SocketClient implements AutoCloseable {
 	public void connect(String address, int port) {
 		try {
 			server = new Socket(address, port);
-			Debug.log("Client connected");
+			log.log(Level.INFO, "Client connected");
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
@@ -59,7 +61,7 @@ public class SocketClient implements AutoCloseable {
 
 	private void listenForKeyboard(Scanner si, ObjectOutputStream out) {
 		if (inputThread != null) {
-			Debug.log("Input Listener is likely already running");
+			log.log(Level.INFO, "Input Listener is likely already running");
 			return;
 		}
 		// Thread to listen for keyboard input so main thread isn't blocked
@@ -71,14 +73,14 @@ public class SocketClient implements AutoCloseable {
 					sendPayload(buildConnectionStatus(clientName, true), out);
 
 					while (!server.isClosed()) {
-						Debug.log("Waiting for input");
+						log.log(Level.INFO, "Waiting for input");
 						String line = si.nextLine();// this line causes a problem due to blocking IO when the server
 						// terminates
 						if (!"quit".equalsIgnoreCase(line) && line != null) {
 							// grab line and write it to the stream
 							sendPayload(buildMessage(line), out);
 						} else {
-							Debug.log("Stopping input thread");
+							log.log(Level.INFO, "Stopping input thread");
 							// we're quitting so tell server we disconnected so it can broadcast
 							sendPayload(buildConnectionStatus(clientName, false), out);
 							break;
@@ -86,7 +88,7 @@ public class SocketClient implements AutoCloseable {
 						try {
 							sleep(50);
 						} catch (Exception e) {
-							Debug.log("Problem sleeping thread");
+							log.log(Level.INFO, "Problem sleeping thread");
 							e.printStackTrace();
 						}
 					}
@@ -94,7 +96,7 @@ public class SocketClient implements AutoCloseable {
 					e.printStackTrace();
 				} finally {
 					close();
-					Debug.log("Stopped listening to console input");
+					log.log(Level.INFO, "Stopped listening to console input");
 				}
 			}
 		};
@@ -103,7 +105,7 @@ public class SocketClient implements AutoCloseable {
 
 	private void listenForServerMessage(ObjectInputStream in) {
 		if (fromServerThread != null) {
-			Debug.log("Server Listener is likely already running");
+			log.log(Level.INFO, "Server Listener is likely already running");
 			return;
 		}
 		// Thread to listen for responses from server so it doesn't block main thread
@@ -119,13 +121,13 @@ public class SocketClient implements AutoCloseable {
 				} catch (Exception e) {
 					if (!server.isClosed()) {
 						e.printStackTrace();
-						Debug.log("Server closed connection");
+						log.log(Level.INFO, "Server closed connection");
 					} else {
-						Debug.log("Connection closed");
+						log.log(Level.INFO, "Connection closed");
 					}
 				} finally {
 					close();
-					Debug.log("Stopped listening to server input");
+					log.log(Level.INFO, "Stopped listening to server input");
 				}
 			}
 		};
@@ -149,7 +151,7 @@ public class SocketClient implements AutoCloseable {
 			System.out.println(p.getClientName() + ": " + p.getMessage());
 			break;
 		default:
-			Debug.log("Unhandled payload on client: " + p);
+			log.log(Level.INFO, "Unhandled payload on client: {0}", p);
 			break;
 
 		}
@@ -159,7 +161,7 @@ public class SocketClient implements AutoCloseable {
 		if (server == null) {
 			return;
 		}
-		Debug.log("Client Started");
+		log.log(Level.INFO, "Client Started");
 		// listen to console, server in, and write to server out
 		try (Scanner si = new Scanner(System.in);
 				ObjectOutputStream out = new ObjectOutputStream(server.getOutputStream());
@@ -177,8 +179,8 @@ public class SocketClient implements AutoCloseable {
 			while (!server.isClosed()) {
 				Thread.sleep(50);
 			}
-			Debug.log("Exited loop");
-			Debug.log("Press enter to stop the program");
+			log.log(Level.INFO, "Exited loop");
+			log.log(Level.INFO, "Press enter to stop the program");
 			// alternatively in this case we could nuke the program with
 			// System.exit(0);
 		} catch (Exception e) {
@@ -193,7 +195,7 @@ public class SocketClient implements AutoCloseable {
 		if (server != null && !server.isClosed()) {
 			try {
 				server.close();
-				Debug.log("Closed socket");
+				log.log(Level.INFO, "Closed socket");
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -207,7 +209,7 @@ public class SocketClient implements AutoCloseable {
 			// not safe but try-catch will get it
 			port = Integer.parseInt(args[0]);
 		} catch (Exception e) {
-			Debug.log("Invalid port");
+			log.log(Level.INFO, "Invalid port");
 		}
 		if (port > -1) {
 			try (SocketClient client = new SocketClient();) {
@@ -4,10 +4,12 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.logging.Level;
 
-import utils.Debug;
+import server.AsyncLog;
 
 public class SocketServer {
+	private final static AsyncLog log = AsyncLog.getLogger(SocketServer.class.getName());
 	int port = 3535;
 	public static boolean isRunning = false;
 	private List<Room> rooms = new ArrayList<Room>();
@@ -18,7 +20,7 @@ public class SocketServer {
 
 	private void start(int port) {
 		this.port = port;
-		Debug.log("Waiting for client");
+		log.log(Level.INFO, "Waiting for client");
 		try (ServerSocket serverSocket = new ServerSocket(port);) {
 			isRunning = true;
 			// create a lobby on start
@@ -28,7 +30,7 @@ public class SocketServer {
 			while (SocketServer.isRunning) {
 				try {
 					Socket client = serverSocket.accept();
-					Debug.log("Client connecting...");
+					log.log(Level.INFO, "Client connecting...");
 					// Server thread is the server's representation of the client
 					ServerThread thread = new ServerThread(client, lobby);
 					thread.start();
@@ -39,7 +41,7 @@ public class SocketServer {
 					prelobby.addClient(thread);
 					isolatedPrelobbies.add(prelobby);
 
-					Debug.log("Client added to clients pool");
+					log.log(Level.INFO, "Client added to clients pool");
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -51,7 +53,7 @@ public class SocketServer {
 			try {
 				isRunning = false;
 				cleanup();
-				Debug.log("closing server socket");
+				log.log(Level.INFO, "closing server socket");
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -103,9 +105,9 @@ public class SocketServer {
 		Room prelobby = client.getCurrentRoom();
 		if (joinRoom(LOBBY, client)) {
 			prelobby.removeClient(client);
-			Debug.log("Added " + client.getClientName() + " to Lobby; Prelobby should self destruct");
+			log.log(Level.INFO, "Added {0} to Lobby; Prelobby should self destruct", client.getClientName());
 		} else {
-			Debug.log("Problem moving " + client.getClientName() + " to lobby");
+			log.log(Level.INFO, "Problem moving {0} to lobby", client.getClientName());
 		}
 	}
 
@@ -144,10 +146,10 @@ public class SocketServer {
 		Room oldRoom = client.getCurrentRoom();
 		if (newRoom != null) {
 			if (oldRoom != null) {
-				Debug.log(client.getClientName() + " leaving room " + oldRoom.getName());
+				log.log(Level.INFO, "{0} leaving room {1}", client.getClientName(), oldRoom.getName());
 				oldRoom.removeClient(client);
 			}
-			Debug.log(client.getClientName() + " joining room " + newRoom.getName());
+			log.log(Level.INFO, "{0} joining room {1}", client.getClientName(), newRoom.getName());
 			newRoom.addClient(client);
 			return true;
 		}
@@ -166,12 +168,12 @@ public class SocketServer {
 		}
 		if (getRoom(roomName) != null) {
 			// TODO can't create room
-			Debug.log("Room already exists");
+			log.log(Level.INFO, "Room already exists");
 			return false;
 		} else {
 			Room room = new Room(roomName);// , this);
 			rooms.add(room);
-			Debug.log("Created new room: " + roomName);
+			log.log(Level.INFO, "Created new room: {0}", roomName);
 			return true;
 		}
 	}
@@ -187,11 +189,11 @@ public class SocketServer {
 			// ignore this, we know it was a parsing issue
 		}
 		if (port > -1) {
-			Debug.log("Starting Server");
+			log.log(Level.INFO, "Starting Server");
 			SocketServer server = new SocketServer();
-			Debug.log("Listening on port " + port);
+			log.log(Level.INFO, "Listening on port {0}", port);
 			server.start(port);
-			Debug.log("Server Stopped");
+			log.log(Level.INFO, "Server Stopped");
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/***
+ * Room member that isn't backed by a socket. Used by the benchmarks to drive
+ * Room code in-process; it only counts the broadcasts it receives.
+ */
+class FakeClient extends ServerThread {
+	private final String name;
+	private long received = 0;
+
+	FakeClient(String name, Room room) {
+		super((NioConnection) null, room);
+		this.name = name;
+	}
+
+	@Override
+	public String getClientName() {
+		return name;
+	}
+
+	@Override
+	protected boolean sendBroadcast(Broadcast broadcast) {
+		received++;
+		return true;
+	}
+
+	@Override
+	protected boolean sendConnectionStatus(String clientName, boolean isConnect, String message) {
+		return true;
+	}
+
+	@Override
+	protected boolean sendClearList() {
+		return true;
+	}
+
+	@Override
+	protected boolean sendHistory(String room, ByteBuffer[] views) {
+		return true;
+	}
+
+	@Override
+	protected boolean sendHistoryEnd(String room, int count) {
+		return true;
+	}
+
+	@Override
+	public boolean send(String clientName, String message) {
+		return true;
+	}
+
+	public long getReceived() {
+		return received;
+	}
+}
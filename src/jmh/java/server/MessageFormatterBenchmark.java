@@ -0,0 +1,137 @@
+package server;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/***
+ * Compares MessageFormatter with the original multi pass formatting code on
+ * ~10 KB messages
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(2)
+@State(Scope.Thread)
+public class MessageFormatterBenchmark {
+	private final static int MESSAGE_SIZE = 10 * 1024;
+	private final static String[] WORDS = { "hello", "@bold@", "#italic#", "_under_", "red%colored%", "plain",
+			"text", "blue%x%", "with", "@mixed#", "words" };
+	private String[] messages;
+	private MessageFormatter formatter;
+
+	@Setup
+	public void setup() {
+		messages = buildMessages(16);
+		formatter = new MessageFormatter();
+		// make sure we're comparing the same output before timing anything
+		for (String message : messages) {
+			if (!legacyFormat(message).equals(formatter.formatUncached(message))) {
+				throw new IllegalStateException("Formatter output differs from the original implementation");
+			}
+		}
+	}
+
+	@Benchmark
+	public void legacy(Blackhole bh) {
+		for (String message : messages) {
+			bh.consume(legacyFormat(message));
+		}
+	}
+
+	@Benchmark
+	public void singlePass(Blackhole bh) {
+		for (String message : messages) {
+			bh.consume(formatter.formatUncached(message));
+		}
+	}
+
+	private static String[] buildMessages(int count) {
+		Random random = new Random(114);
+		String[] messages = new String[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder sb = new StringBuilder(MESSAGE_SIZE + 16);
+			while (sb.length() < MESSAGE_SIZE) {
+				sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+			messages[i] = sb.toString();
+		}
+		return messages;
+	}
+
+	/***
+	 * The formatting code ServerThread.send() used before MessageFormatter, kept
+	 * here as the baseline
+	 */
+	static String legacyFormat(String message) {
+		int bold = 0;
+		int italic = 0;
+		int underline = 0;
+
+		for (int i = 0; i < message.length(); i++) {
+			if (message.charAt(i) == '@') {
+				bold++;
+			} else if (message.charAt(i) == '#') {
+				italic++;
+			} else if (message.charAt(i) == '_') {
+				underline++;
+			}
+		}
+
+		if (bold >= 2) {
+			message = message + " ";
+			message = message.replace("@", "<b>");
+			message = message.replace("<b> ", "</b> ");
+		}
+		if (italic >= 2) {
+			message = message + " ";
+			message = message.replace("#", "<i>");
+			message = message.replace("<i> ", "</i> ");
+		}
+		if (underline >= 2) {
+			message = message + " ";
+			message = message.replace("_", "<u>");
+			message = message.replace("<u> ", "</u> ");
+		}
+
+		int color = 0;
+		for (int i = 0; i < message.length(); i++) {
+			if (message.charAt(i) == '%') {
+				color++;
+			}
+		}
+
+		if (color % 2 == 0) {
+			message = message + " ";
+			message = message.replace("% ", "</b> ");
+
+			String[] words = message.split(" ");
+			message = "";
+			for (String word : words) {
+
+				if (word.contains("%")) {
+					int trigger = word.indexOf('%');
+					String colors = word.substring(0, trigger);
+					String colorStyle = "<b style=color:" + colors + ">";
+					String replace = word.substring(0, trigger + 1);
+					word = word.replace(replace, colorStyle);
+				}
+
+				message = message + word + " ";
+			}
+		}
+		return message;
+	}
+}
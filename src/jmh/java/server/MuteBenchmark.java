@@ -0,0 +1,67 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Measures Room.sendMessage fan-out while every member's mute list grows. With
+ * the per room mute index the cost per broadcast should stay flat no matter how
+ * many names each member muted. Uses in-process clients that just count what
+ * they receive.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(2)
+@State(Scope.Thread)
+public class MuteBenchmark {
+	@Param({ "1000" })
+	int members;
+	@Param({ "0", "10", "100", "1000", "5000" })
+	int mutedEach;
+	private Room room;
+	private FakeClient sender;
+
+	static {
+		// the room logs every message, keep that out of the numbers
+		Logger.getLogger("").setLevel(Level.WARNING);
+	}
+
+	@Setup
+	public void setup() {
+		room = new Room("bench");
+		sender = new FakeClient("sender", room);
+		room.addClient(sender);
+		for (int i = 0; i < members; i++) {
+			FakeClient client = new FakeClient("user" + i, room);
+			room.addClient(client);
+			for (int m = 0; m < mutedEach; m++) {
+				room.mute(client, "other" + m);
+			}
+			if (mutedEach > 0 && i % 10 == 0) {
+				// some members actually muted the sender
+				room.mute(client, sender.getClientName());
+			}
+		}
+	}
+
+	@Benchmark
+	public long broadcast() {
+		room.sendMessage(sender, "hello everyone");
+		return sender.getReceived();
+	}
+}
@@ -0,0 +1,238 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/***
+ * Benchmarks for the server hot paths. Run with gradle jmh (see build.gradle),
+ * results are written as JSON so runs from different releases can be compared.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(2)
+public class ServerBenchmarks {
+	private final static int ROOM_COUNT = 10000;
+	private final static int HISTORY_MESSAGES = 10000;
+
+	static {
+		// the code under test logs, keep that out of the numbers
+		Logger.getLogger("").setLevel(Level.WARNING);
+	}
+
+	/***
+	 * Chat lines for ServerThread.send() formatting. Short lines hit the
+	 * formatter cache, long ones are formatted every time.
+	 */
+	@State(Scope.Thread)
+	public static class Formatting {
+		@Param({ "32", "1024" })
+		int messageLength;
+		final String[] messages = new String[16];
+		int next = 0;
+
+		@Setup
+		public void setup() {
+			for (int i = 0; i < messages.length; i++) {
+				StringBuilder sb = new StringBuilder();
+				while (sb.length() < messageLength) {
+					sb.append("hi @bold@ #it# red%x% ").append(i).append(' ');
+				}
+				messages[i] = sb.substring(0, messageLength);
+			}
+		}
+	}
+
+	/***
+	 * A chat line for each framed wire version
+	 */
+	@State(Scope.Thread)
+	public static class Wire {
+		@Param({ "serialized", "binary" })
+		String wireVersion;
+		int version;
+		final Payload payload = new Payload();
+
+		@Setup
+		public void setup() {
+			version = wireVersion.equals("binary") ? PayloadFrames.BINARY : PayloadFrames.SERIALIZED;
+			payload.setPayloadType(PayloadType.MESSAGE);
+			payload.setClientName("bob");
+			payload.setMessage("hello <b>world</b> how is everyone doing today");
+		}
+	}
+
+	/***
+	 * A room with in-process members
+	 */
+	@State(Scope.Thread)
+	public static class Fanout {
+		@Param({ "10", "100", "1000" })
+		int clients;
+		Room room;
+		FakeClient sender;
+
+		@Setup
+		public void setup() {
+			room = new Room("bench");
+			sender = new FakeClient("sender", room);
+			room.addClient(sender);
+			for (int i = 1; i < clients; i++) {
+				room.addClient(new FakeClient("user" + i, room));
+			}
+		}
+	}
+
+	/***
+	 * A command, a command that does nothing and a plain chat line
+	 */
+	@State(Scope.Thread)
+	public static class Commands {
+		@Param({ "/mute someone", "/unmute nobody", "just chatting" })
+		String message;
+		Room room;
+		FakeClient client;
+
+		@Setup
+		public void setup() {
+			room = new Room("bench");
+			client = new FakeClient("sender", room);
+			room.addClient(client);
+		}
+	}
+
+	/***
+	 * A server with ROOM_COUNT rooms registered
+	 */
+	@State(Scope.Thread)
+	public static class Rooms {
+		SocketServer server;
+		final String[] names = new String[ROOM_COUNT];
+		int next = 0;
+
+		@Setup
+		public void setup() {
+			server = new SocketServer();
+			for (int i = 0; i < ROOM_COUNT; i++) {
+				names[i] = "Room" + i;
+				server.createNewRoom(names[i]);
+			}
+		}
+	}
+
+	/***
+	 * A room history with HISTORY_MESSAGES messages in it
+	 */
+	@State(Scope.Benchmark)
+	public static class History {
+		Path dir;
+		RoomHistory history;
+
+		@Setup
+		public void setup() throws IOException {
+			dir = Files.createTempDirectory("history-bench");
+			history = RoomHistory.open(dir, "bench");
+			for (int i = 0; i < HISTORY_MESSAGES; i++) {
+				history.append("user" + (i % 10), "message number " + i, 0);
+			}
+			RoomHistory.flush(TimeUnit.SECONDS.toMillis(30));
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			history.close();
+			try (DirectoryStream<Path> rooms = Files.newDirectoryStream(dir)) {
+				for (Path room : rooms) {
+					try (DirectoryStream<Path> files = Files.newDirectoryStream(room)) {
+						for (Path file : files) {
+							Files.delete(file);
+						}
+					}
+					Files.delete(room);
+				}
+			}
+			Files.delete(dir);
+		}
+	}
+
+	/***
+	 * ServerThread.send() formatting
+	 */
+	@Benchmark
+	public String format(Formatting state) {
+		return ServerThread.formatMessage(state.messages[state.next++ & 15]);
+	}
+
+	/***
+	 * Encode + decode of a chat line
+	 */
+	@Benchmark
+	public void payloadRoundTrip(Wire state, Blackhole bh) throws IOException {
+		ByteBuffer frame = PayloadFrames.encode(state.payload, state.version);
+		bh.consume(PayloadFrames.decode(frame.array(), frame.arrayOffset() + PayloadFrames.HEADER_SIZE,
+				frame.remaining() - PayloadFrames.HEADER_SIZE, state.version));
+	}
+
+	/***
+	 * Room.sendMessage() to in-process members (a room without a server runs it
+	 * on the caller)
+	 */
+	@Benchmark
+	public long roomFanout(Fanout state) {
+		state.room.sendMessage(state.sender, "hello everyone");
+		return state.sender.getReceived();
+	}
+
+	/***
+	 * Command lookup and argument parsing, what Room.processCommands() does for
+	 * every chat line
+	 */
+	@Benchmark
+	public boolean processCommands(Commands state) {
+		return Room.getCommands().dispatch(state.room, state.client, state.message);
+	}
+
+	/***
+	 * SocketServer.getRoom()
+	 */
+	@Benchmark
+	public Room getRoom(Rooms state) {
+		int i = state.next++;
+		if (state.next == ROOM_COUNT) {
+			state.next = 0;
+		}
+		return state.server.getRoom(state.names[i]);
+	}
+
+	/***
+	 * RoomHistory.readLast() of HISTORY_MESSAGES messages, i.e. what each joiner
+	 * of a busy room costs before its frames are queued
+	 */
+	@Benchmark
+	public void historyReplay(History state, Blackhole bh) throws IOException {
+		for (ByteBuffer view : state.history.readLast(HISTORY_MESSAGES)) {
+			bh.consume(view);
+		}
+	}
+}
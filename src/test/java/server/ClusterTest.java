@@ -0,0 +1,132 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static server.TestClient.chat;
+import static server.TestClient.joined;
+import static server.TestClient.left;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/***
+ * Three nodes on localhost, clients on each of them in rooms owned by one
+ */
+class ClusterTest {
+	@TempDir
+	Path dir;
+	private List<TestServer> nodes;
+	private final List<TestClient> clients = new ArrayList<TestClient>();
+
+	@BeforeEach
+	void startNodes() throws IOException {
+		nodes = TestServer.startCluster(dir, 3);
+	}
+
+	@AfterEach
+	void stopNodes() {
+		TestServer.closeAll(clients);
+		TestServer.closeAll(nodes);
+	}
+
+	private TestClient connect(int node, String name) throws IOException {
+		TestClient client = TestClient.connect(nodes.get(node).getPort(), name);
+		clients.add(client);
+		client.await(joined(name, SocketServer.LOBBY));
+		return client;
+	}
+
+	/***
+	 * Joins the room once the client's node heard it exists
+	 */
+	static void join(TestClient client, String name, String room) throws IOException {
+		for (int i = 0; i < 50 && client.find(joined(name, room)).isEmpty(); i++) {
+			client.join(room);
+			TestServer.sleep(200);
+		}
+		client.await(joined(name, room));
+	}
+
+	@Test
+	void chatReachesMembersOnEveryNode() throws IOException {
+		// owned by the node none of them is on
+		String room = TestServer.roomOwnedBy(nodes, nodes.get(1));
+		TestClient alice = connect(0, "alice");
+		TestClient bob = connect(2, "bob");
+		TestClient carol = connect(2, "carol");
+		alice.say("/createroom " + room);
+		alice.await(joined("alice", room));
+		join(bob, "bob", room);
+		join(carol, "carol", room);
+		alice.await(joined("carol", room));
+
+		alice.say("hi from alice");
+		bob.say("hi from bob");
+		for (TestClient client : new TestClient[] { alice, bob, carol }) {
+			client.await(chat("hi from alice"));
+			client.await(chat("hi from bob"));
+		}
+		// carol and bob share a node, the owner sends it one copy for both
+		assertEquals(1, carol.find(chat("hi from alice")).size());
+		assertEquals(1, bob.find(chat("hi from alice")).size());
+		assertEquals("alice", carol.await(chat("hi from alice")).getClientName());
+	}
+
+	@Test
+	void leavingIsSeenOnEveryNode() throws IOException {
+		String room = TestServer.roomOwnedBy(nodes, nodes.get(0));
+		TestClient alice = connect(0, "alice");
+		TestClient bob = connect(1, "bob");
+		TestClient carol = connect(2, "carol");
+		alice.say("/createroom " + room);
+		alice.await(joined("alice", room));
+		join(bob, "bob", room);
+		join(carol, "carol", room);
+		bob.await(joined("carol", room));
+
+		carol.join(SocketServer.LOBBY);
+		alice.await(left("carol"));
+		bob.await(left("carol"));
+		carol.await(joined("carol", SocketServer.LOBBY), 2);
+	}
+
+	@Test
+	void membersGoBackToTheLobbyWhenTheOwnerIsGone() throws Exception {
+		String room = TestServer.roomOwnedBy(nodes, nodes.get(2));
+		TestClient alice = connect(0, "alice");
+		TestClient bob = connect(1, "bob");
+		alice.say("/createroom " + room);
+		alice.await(joined("alice", room));
+		join(bob, "bob", room);
+
+		nodes.get(2).close();
+		alice.await(joined("alice", SocketServer.LOBBY), 2);
+		bob.await(joined("bob", SocketServer.LOBBY), 2);
+	}
+
+	@Test
+	void linkWithoutTheSecretIsRefused() throws Exception {
+		TestServer node = nodes.get(1);
+		try (Socket socket = new Socket("localhost", node.getPort() + Cluster.LINK_PORT_OFFSET)) {
+			// an idle connection doesn't hold up the one after it
+			try (Socket idle = new Socket("localhost", node.getPort() + Cluster.LINK_PORT_OFFSET)) {
+				ClusterLink.writeHello(socket.getOutputStream(), nodes.get(0).getNodeId(), "guess");
+				node.awaitLog("Wrong cluster secret", 1);
+			}
+			socket.setSoTimeout(5000);
+			assertEquals(-1, socket.getInputStream().read());
+		}
+		// the real links are still up
+		String room = TestServer.roomOwnedBy(nodes, node);
+		TestClient alice = connect(0, "alice");
+		alice.say("/createroom " + room);
+		alice.await(joined("alice", room));
+	}
+}
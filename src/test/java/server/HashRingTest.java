@@ -0,0 +1,63 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class HashRingTest {
+	private final static List<String> NODES = Arrays.asList("localhost:3001", "localhost:3002", "localhost:3003");
+	private final static int ROOMS = 10000;
+
+	@Test
+	void everyNodeAgreesOnTheOwner() {
+		HashRing ring = new HashRing(NODES);
+		HashRing reversed = new HashRing(Arrays.asList("localhost:3003", "localhost:3002", "localhost:3001"));
+		for (int i = 0; i < ROOMS; i++) {
+			assertEquals(ring.getOwner("room" + i), reversed.getOwner("room" + i));
+		}
+	}
+
+	@Test
+	void roomsAreSpreadOverEveryNode() {
+		HashRing ring = new HashRing(NODES);
+		Map<String, Integer> owned = new HashMap<String, Integer>();
+		for (int i = 0; i < ROOMS; i++) {
+			owned.merge(ring.getOwner("room" + i), 1, Integer::sum);
+		}
+		assertEquals(NODES.size(), owned.size());
+		for (String node : NODES) {
+			int share = owned.get(node);
+			assertTrue(share > ROOMS / 5 && share < ROOMS / 2, node + " owns " + share + " of " + ROOMS);
+		}
+	}
+
+	@Test
+	void addingANodeOnlyMovesRoomsToIt() {
+		HashRing before = new HashRing(NODES);
+		HashRing after = new HashRing(Arrays.asList("localhost:3001", "localhost:3002", "localhost:3003",
+				"localhost:3004"));
+		int moved = 0;
+		for (int i = 0; i < ROOMS; i++) {
+			String room = "room" + i;
+			String owner = after.getOwner(room);
+			if (!owner.equals(before.getOwner(room))) {
+				assertEquals("localhost:3004", owner);
+				moved++;
+			}
+		}
+		assertTrue(moved > 0 && moved < ROOMS / 2, moved + " rooms moved");
+	}
+
+	@Test
+	void emptyRingOwnsNothing() {
+		assertNull(new HashRing(Collections.<String>emptyList()).getOwner("room"));
+	}
+}
@@ -0,0 +1,51 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class PayloadCodecTest {
+	private static Payload roundTrip(Payload p) throws IOException {
+		ByteBuffer frame = PayloadCodec.encode(p);
+		return PayloadCodec.decode(frame.array(), PayloadFrames.HEADER_SIZE,
+				frame.remaining() - PayloadFrames.HEADER_SIZE);
+	}
+
+	private static Payload message(long timestamp, long offset) {
+		Payload p = new Payload();
+		p.setPayloadType(PayloadType.MESSAGE);
+		p.setClientName("alice");
+		p.setMessage("hi");
+		p.setTimestamp(timestamp);
+		p.setOffset(offset);
+		return p;
+	}
+
+	@Test
+	void offsetPastIntRangeSurvives() throws IOException {
+		long offset = Integer.MAX_VALUE * 3L;
+		Payload p = roundTrip(message(-42, offset));
+		assertEquals(offset, p.getOffset());
+		assertEquals(-42, p.getTimestamp());
+		assertEquals("hi", p.getMessage());
+	}
+
+	@Test
+	void offsetWithoutTimestamp() throws IOException {
+		Payload p = roundTrip(message(0, 7));
+		assertEquals(7, p.getOffset());
+		assertEquals(0, p.getTimestamp());
+	}
+
+	@Test
+	void missingFieldsDecodeAsZero() throws IOException {
+		Payload p = roundTrip(message(0, 0));
+		assertEquals(0, p.getOffset());
+		assertEquals(0, p.getTimestamp());
+		// the body ends after the message, like an older encoder writes it
+		assertEquals(1 + 1 + 6 + 3, PayloadCodec.encode(p).remaining() - PayloadFrames.HEADER_SIZE);
+	}
+}
@@ -0,0 +1,203 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static server.TestClient.chat;
+import static server.TestClient.joined;
+import static server.TestClient.left;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/***
+ * Moves a busy room between the nodes of a cluster
+ */
+class RoomMigrationTest {
+	private final static int BURST = 40;
+	@TempDir
+	Path dir;
+	private List<TestServer> nodes;
+	private final List<TestClient> clients = new ArrayList<TestClient>();
+
+	@BeforeEach
+	void startNodes() throws IOException {
+		nodes = TestServer.startCluster(dir, 3);
+	}
+
+	@AfterEach
+	void stopNodes() {
+		TestServer.closeAll(clients);
+		TestServer.closeAll(nodes);
+	}
+
+	private TestClient connect(int node, String name) throws IOException {
+		TestClient client = TestClient.connect(nodes.get(node).getPort(), name);
+		clients.add(client);
+		client.await(joined(name, SocketServer.LOBBY));
+		return client;
+	}
+
+	/***
+	 * Sends half the burst, then waits for the move to be asked for and sends the
+	 * rest right behind it, so it's on its way while the room moves
+	 */
+	private static Thread burst(TestClient client, String prefix, CountDownLatch halfway, CountDownLatch moving) {
+		Thread sender = new Thread(() -> {
+			try {
+				for (int i = 0; i < BURST; i++) {
+					if (i == BURST / 2) {
+						halfway.countDown();
+						moving.await();
+					}
+					client.say(prefix + i);
+				}
+			} catch (IOException | InterruptedException e) {
+				throw new AssertionError(e);
+			}
+		});
+		sender.start();
+		return sender;
+	}
+
+	/***
+	 * Checks the client got every message of the burst once and in the order it
+	 * was sent
+	 */
+	private static void assertBurst(TestClient client, String prefix) {
+		for (int i = 0; i < BURST; i++) {
+			client.await(chat(prefix + i));
+		}
+		List<Payload> got = client.find(p -> p.getPayloadType() == PayloadType.MESSAGE && p.getMessage() != null
+				&& p.getMessage().trim().matches(prefix + "\\d+"));
+		List<String> order = new ArrayList<String>();
+		for (Payload p : got) {
+			order.add(p.getMessage().trim());
+		}
+		List<String> sent = new ArrayList<String>();
+		for (int i = 0; i < BURST; i++) {
+			sent.add(prefix + i);
+		}
+		assertEquals(sent, order);
+	}
+
+	@Test
+	void noMessageIsLostOrRepeatedWhileTheRoomMoves() throws Exception {
+		String room = TestServer.roomOwnedBy(nodes, nodes.get(0));
+		TestClient alice = connect(0, "alice");
+		TestClient bob = connect(1, "bob");
+		TestClient carol = connect(2, "carol");
+		alice.say("/createroom " + room);
+		alice.await(joined("alice", room));
+		ClusterTest.join(bob, "bob", room);
+		ClusterTest.join(carol, "carol", room);
+		alice.await(joined("carol", room));
+
+		CountDownLatch halfway = new CountDownLatch(3);
+		CountDownLatch moving = new CountDownLatch(1);
+		List<Thread> senders = new ArrayList<Thread>();
+		senders.add(burst(alice, "a", halfway, moving));
+		senders.add(burst(bob, "b", halfway, moving));
+		senders.add(burst(carol, "c", halfway, moving));
+		halfway.await();
+		// asked on a node that doesn't own the room, it passes it on
+		nodes.get(2).moveRoom(room, nodes.get(1));
+		moving.countDown();
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		nodes.get(1).awaitLog("moved here from node", 1);
+
+		TestClient[] members = { alice, bob, carol };
+		for (TestClient client : members) {
+			for (String prefix : new String[] { "a", "b", "c" }) {
+				assertBurst(client, prefix);
+			}
+		}
+		// everything is in, so a message after the last one shows nothing else came
+		alice.say("done");
+		for (TestClient client : members) {
+			client.await(chat("done"));
+			for (String prefix : new String[] { "a", "b", "c" }) {
+				assertBurst(client, prefix);
+			}
+			assertTrue(client.find(left("alice")).isEmpty());
+			assertEquals(1, client.find(joined("carol", room)).size());
+		}
+		// history offsets carry on where the old owner stopped
+		long last = 0;
+		Iterator<Payload> iter = alice.find(p -> p.getPayloadType() == PayloadType.MESSAGE).iterator();
+		while (iter.hasNext()) {
+			long offset = iter.next().getOffset();
+			assertTrue(offset > last, offset + " after " + last);
+			last = offset;
+		}
+		assertEquals(3 * BURST + 1, last);
+	}
+
+	@Test
+	void roomCanMoveAgain() throws Exception {
+		String room = TestServer.roomOwnedBy(nodes, nodes.get(0));
+		TestClient alice = connect(0, "alice");
+		TestClient bob = connect(1, "bob");
+		TestClient carol = connect(2, "carol");
+		alice.say("/createroom " + room);
+		alice.await(joined("alice", room));
+		ClusterTest.join(bob, "bob", room);
+		ClusterTest.join(carol, "carol", room);
+		alice.await(joined("carol", room));
+
+		assertEquals("Moving " + room + " to " + nodes.get(1).getNodeId(), nodes.get(0).moveRoom(room, nodes.get(1)));
+		nodes.get(1).awaitLog("moved here from node", 1);
+		nodes.get(1).moveRoom(room, nodes.get(2));
+		nodes.get(2).awaitLog("moved here from node", 1);
+
+		carol.say("after the second move");
+		for (TestClient client : new TestClient[] { alice, bob, carol }) {
+			client.await(chat("after the second move"));
+		}
+		// a new member finds it where it is now
+		TestClient dave = connect(0, "dave");
+		ClusterTest.join(dave, "dave", room);
+		alice.await(joined("dave", room));
+		dave.await(chat("after the second move"));
+	}
+
+	@Test
+	void clientsCantMoveRooms() throws Exception {
+		String room = TestServer.roomOwnedBy(nodes, nodes.get(0));
+		TestClient alice = connect(0, "alice");
+		alice.say("/createroom " + room);
+		alice.await(joined("alice", room));
+
+		alice.say("/moveroom " + nodes.get(1).getNodeId());
+		alice.say("still here");
+		alice.await(chat("still here"));
+		assertFalse(nodes.get(0).getLog().contains("Moving room"));
+	}
+
+	@Test
+	void movingTakesAPostWithTheSecret() throws Exception {
+		String room = TestServer.roomOwnedBy(nodes, nodes.get(0));
+		TestClient alice = connect(0, "alice");
+		alice.say("/createroom " + room);
+		alice.await(joined("alice", room));
+
+		String path = TestServer.moveRoomPath(room, nodes.get(1));
+		assertEquals(405, nodes.get(0).adminStatus("GET", path, TestServer.SECRET));
+		assertEquals(403, nodes.get(0).adminStatus("POST", path, null));
+		assertEquals(403, nodes.get(0).adminStatus("POST", path, "not-the-secret"));
+		alice.say("still here");
+		alice.await(chat("still here"));
+		assertFalse(nodes.get(0).getLog().contains("Moving room"));
+	}
+}
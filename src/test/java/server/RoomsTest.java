@@ -0,0 +1,106 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static server.TestClient.chat;
+import static server.TestClient.joined;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/***
+ * Rooms coming and going on one server with history on
+ */
+class RoomsTest {
+	@TempDir
+	Path dir;
+
+	private TestServer start() throws IOException {
+		return TestServer.start(dir, TestServer.freePort(), "--transport=selector", "--event-loops=2",
+				"--overflow=drop_oldest", "--capacity=1024", "--history=history");
+	}
+
+	@Test
+	void recreatedRoomCarriesOnWithItsHistory() throws Exception {
+		try (TestServer server = start(); TestClient alice = TestClient.connect(server.getPort(), "alice")) {
+			alice.await(joined("alice", SocketServer.LOBBY));
+			alice.say("/createroom r");
+			alice.await(joined("alice", "r"));
+			alice.say("first");
+			assertEquals(1, alice.await(chat("first")).getOffset());
+
+			// empty, so it closes along with its history
+			alice.join(SocketServer.LOBBY);
+			alice.await(joined("alice", SocketServer.LOBBY), 2);
+			server.awaitLog("Removed r from rooms", 1);
+
+			alice.say("/createroom r");
+			alice.await(joined("alice", "r"), 2);
+			alice.say("second");
+			assertEquals(2, alice.await(chat("second")).getOffset());
+		}
+	}
+
+	@Test
+	void historyContinuesAfterAnOffset() throws Exception {
+		try (TestServer server = start(); TestClient alice = TestClient.connect(server.getPort(), "alice")) {
+			alice.await(joined("alice", SocketServer.LOBBY));
+			alice.say("/createroom h");
+			alice.await(joined("alice", "h"));
+			alice.say("one");
+			long first = alice.await(chat("one")).getOffset();
+			alice.say("two");
+			alice.say("three");
+			alice.await(chat("three"));
+
+			// the history is written behind the chat, ask until it caught up (the first
+			// reply came with the join)
+			Payload end = null;
+			for (int asked = 2; end == null || end.getNumber() < 2; asked++) {
+				assertTrue(asked < 50, "History never caught up");
+				Payload p = new Payload();
+				p.setPayloadType(PayloadType.GET_HISTORY);
+				p.setOffset(first);
+				alice.send(p);
+				end = alice.await(r -> r.getPayloadType() == PayloadType.GET_HISTORY && "h".equals(r.getMessage()),
+						asked);
+			}
+			assertEquals(2, end.getNumber());
+			assertEquals(1, alice.find(chat("one")).size());
+		}
+	}
+
+	@Test
+	void clientCanOnlyHaveSoManyRoomsOpen() throws Exception {
+		List<TestClient> keepers = new ArrayList<TestClient>();
+		try (TestServer server = start(); TestClient alice = TestClient.connect(server.getPort(), "alice")) {
+			alice.await(joined("alice", SocketServer.LOBBY));
+			for (int i = 0; i < 10; i++) {
+				alice.say("/createroom r" + i);
+				alice.await(joined("alice", "r" + i));
+				// keeps the room open once alice moves on
+				TestClient keeper = TestClient.connect(server.getPort(), "keeper" + i);
+				keepers.add(keeper);
+				keeper.await(joined("keeper" + i, SocketServer.LOBBY));
+				keeper.join("r" + i);
+				keeper.await(joined("keeper" + i, "r" + i));
+			}
+			alice.say("/createroom r10");
+			alice.await(p -> p.getMessage() != null && p.getMessage().contains("rooms open"));
+			assertTrue(alice.find(joined("alice", "r10")).isEmpty());
+
+			// once one of them closes there's room for another
+			keepers.get(0).join(SocketServer.LOBBY);
+			server.awaitLog("Removed r0 from rooms", 1);
+			alice.say("/createroom r10");
+			alice.await(joined("alice", "r10"));
+		} finally {
+			TestServer.closeAll(keepers);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static server.TestClient.chat;
+import static server.TestClient.joined;
+import static server.TestClient.left;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import client.SocketClient;
+
+/***
+ * Clients that drop and come back with their session token
+ */
+class SessionResumeTest {
+	@TempDir
+	Path dir;
+
+	private TestServer start(String transport, int graceSeconds) throws IOException {
+		return TestServer.start(dir, TestServer.freePort(), "--transport=" + transport, "--event-loops=2",
+				"--overflow=drop_oldest", "--capacity=1024", "--history=history", "--join-history=5",
+				"--session-grace=" + graceSeconds);
+	}
+
+	private static TestClient inRoom(TestServer server, String name, String room) throws IOException {
+		TestClient client = TestClient.connect(server.getPort(), name);
+		client.await(joined(name, SocketServer.LOBBY));
+		client.join(room);
+		client.await(joined(name, room));
+		return client;
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "selector", "blocking" })
+	void resumeSendsOnlyWhatWasMissed(String transport) throws Exception {
+		try (TestServer server = start(transport, 10);
+				TestClient alice = TestClient.connect(server.getPort(), "alice")) {
+			alice.say("/createroom r");
+			alice.await(joined("alice", "r"));
+			TestClient bob = inRoom(server, "bob", "r");
+			String token = bob.awaitSessionToken();
+			for (int i = 0; i < 5; i++) {
+				alice.say("x" + i);
+			}
+			bob.await(chat("x4"));
+			long offset = bob.getLastOffset();
+			assertTrue(offset > 0);
+
+			bob.drop();
+			server.awaitLog("Keeping the session of bob", 1);
+			for (int i = 0; i < 10; i++) {
+				alice.say("m" + i);
+			}
+			alice.await(chat("m9"));
+
+			try (TestClient back = TestClient.resume(server.getPort(), token, offset)) {
+				assertEquals(token, back.awaitSessionToken());
+				back.await(chat("m9"));
+				TestServer.sleep(300);
+				for (int i = 0; i < 10; i++) {
+					assertEquals(1, back.find(chat("m" + i)).size(), "m" + i);
+				}
+				assertTrue(back.find(chat("x4")).isEmpty());
+
+				back.say("bob is back");
+				assertEquals("bob", alice.await(chat("bob is back")).getClientName());
+				// nobody saw bob go or come back
+				assertTrue(alice.find(left("bob")).isEmpty());
+				assertEquals(1, alice.find(joined("bob", "r")).size());
+			}
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "selector", "blocking" })
+	void resumeTakesOverAConnectionTheServerStillThinksIsUp(String transport) throws Exception {
+		try (TestServer server = start(transport, 10);
+				TestClient alice = TestClient.connect(server.getPort(), "alice")) {
+			alice.say("/createroom r");
+			alice.await(joined("alice", "r"));
+			TestClient bob = inRoom(server, "bob", "r");
+			String token = bob.awaitSessionToken();
+			alice.say("before");
+			bob.await(chat("before"));
+
+			// bob's client gave up on a half open connection, the server hasn't noticed
+			try (TestClient back = TestClient.resume(server.getPort(), token, bob.getLastOffset())) {
+				assertEquals(token, back.awaitSessionToken());
+				for (int i = 0; i < 50 && !bob.isClosed(); i++) {
+					TestServer.sleep(100);
+				}
+				assertTrue(bob.isClosed());
+
+				alice.say("after");
+				back.await(chat("after"));
+				back.say("bob is back");
+				assertEquals("bob", alice.await(chat("bob is back")).getClientName());
+				TestServer.sleep(300);
+				assertEquals(1, back.find(chat("after")).size());
+				assertTrue(back.find(chat("before")).isEmpty());
+				// no ghost: nobody saw bob go, come back or twice
+				assertTrue(alice.find(left("bob")).isEmpty());
+				assertEquals(1, alice.find(joined("bob", "r")).size());
+
+				// and the session can be resumed again later
+				back.drop();
+				server.awaitLog("Keeping the session of bob", 1);
+				try (TestClient again = TestClient.resume(server.getPort(), token, back.getLastOffset())) {
+					assertEquals(token, again.awaitSessionToken());
+					again.say("still bob");
+					alice.await(chat("still bob"));
+					assertTrue(alice.find(left("bob")).isEmpty());
+				}
+			}
+		}
+	}
+
+	@Test
+	void expiredSessionIsRefused() throws Exception {
+		try (TestServer server = start("selector", 1);
+				TestClient alice = TestClient.connect(server.getPort(), "alice")) {
+			alice.say("/createroom r");
+			alice.await(joined("alice", "r"));
+			TestClient carol = inRoom(server, "carol", "r");
+			String token = carol.awaitSessionToken();
+
+			carol.drop();
+			alice.await(left("carol"));
+			try (TestClient again = TestClient.resume(server.getPort(), token, 0)) {
+				assertNull(again.awaitSessionToken());
+			}
+		}
+	}
+
+	@Test
+	void saidGoodbyeLeavesNoSession() throws Exception {
+		try (TestServer server = start("selector", 30);
+				TestClient alice = TestClient.connect(server.getPort(), "alice")) {
+			alice.say("/createroom r");
+			alice.await(joined("alice", "r"));
+			TestClient dave = inRoom(server, "dave", "r");
+			String token = dave.awaitSessionToken();
+
+			dave.close();
+			alice.await(left("dave"));
+			try (TestClient again = TestClient.resume(server.getPort(), token, 0)) {
+				assertNull(again.awaitSessionToken());
+			}
+		}
+	}
+
+	@Test
+	void uiClientOnlyReconnectsWhenTheServerTookItBack() throws Exception {
+		SocketClient client = SocketClient.INSTANCE;
+		// accepts (the backlog does) but never says hello
+		try (TestServer server = start("selector", 30); ServerSocket silent = new ServerSocket(0)) {
+			String port = String.valueOf(server.getPort());
+			assertTrue(client.connectAndStart("localhost", port));
+			client.setUsername("erin");
+			server.awaitLog("Set our name to erin", 1);
+
+			client.close();
+			assertTrue(client.reconnect("localhost", port));
+			client.close();
+			assertFalse(client.reconnect("localhost", String.valueOf(silent.getLocalPort())));
+		} finally {
+			client.close();
+		}
+	}
+}
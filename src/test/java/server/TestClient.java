@@ -0,0 +1,222 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/***
+ * Client speaking the binary wire protocol, for tests. It keeps everything the
+ * server sent so tests can wait for what they expect and check what they
+ * didn't.
+ */
+class TestClient implements AutoCloseable {
+	private final static long TIMEOUT_MS = 15000;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final int version;
+	private final PayloadCodec writeCodec = new PayloadCodec();
+	private final List<Payload> received = new ArrayList<Payload>();// guarded by itself
+	private volatile boolean closed = false;
+
+	private TestClient(int port) throws IOException {
+		socket = new Socket("localhost", port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		version = PayloadFrames.negotiate(in, out);
+		Thread reader = new Thread(this::read, "test-client-" + port);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/***
+	 * Connects and sends CONNECT with the name
+	 *
+	 * @param port
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 */
+	static TestClient connect(int port, String name) throws IOException {
+		TestClient client = new TestClient(port);
+		client.send(PayloadType.CONNECT, name, null, 0);
+		return client;
+	}
+
+	/***
+	 * Connects and resumes a session instead of sending CONNECT
+	 *
+	 * @param port
+	 * @param token
+	 * @param after newest message offset the client has
+	 * @return
+	 * @throws IOException
+	 */
+	static TestClient resume(int port, String token, long after) throws IOException {
+		TestClient client = new TestClient(port);
+		Payload p = new Payload();
+		p.setPayloadType(PayloadType.SESSION);
+		p.setMessage(token);
+		p.setOffset(after);
+		client.send(p);
+		return client;
+	}
+
+	private void read() {
+		PayloadCodec codec = new PayloadCodec();
+		try {
+			while (true) {
+				Payload p = PayloadFrames.read(in, version, codec);
+				synchronized (received) {
+					received.add(p);
+					received.notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			closed = true;
+			synchronized (received) {
+				received.notifyAll();
+			}
+		}
+	}
+
+	void send(PayloadType type, String clientName, String message, int number) throws IOException {
+		Payload p = new Payload();
+		p.setPayloadType(type);
+		p.setClientName(clientName);
+		p.setMessage(message);
+		p.setNumber(number);
+		send(p);
+	}
+
+	synchronized void send(Payload p) throws IOException {
+		PayloadFrames.write(out, p, version, writeCodec);
+	}
+
+	void say(String message) throws IOException {
+		send(PayloadType.MESSAGE, null, message, 0);
+	}
+
+	void join(String room) throws IOException {
+		send(PayloadType.JOIN_ROOM, null, room, 0);
+	}
+
+	/***
+	 * Waits until the server sent count payloads that match
+	 *
+	 * @param match
+	 * @param count
+	 * @return the last of them
+	 */
+	Payload await(Predicate<Payload> match, int count) {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		synchronized (received) {
+			while (true) {
+				List<Payload> found = find(match);
+				if (found.size() >= count) {
+					return found.get(count - 1);
+				}
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0 || closed) {
+					throw new AssertionError("Got " + found.size() + " of " + count + " expected payloads, all: "
+							+ received);
+				}
+				try {
+					received.wait(left);
+				} catch (InterruptedException e) {
+					throw new AssertionError("Interrupted");
+				}
+			}
+		}
+	}
+
+	Payload await(Predicate<Payload> match) {
+		return await(match, 1);
+	}
+
+	/***
+	 * @param match
+	 * @return what the server sent so far that matches
+	 */
+	List<Payload> find(Predicate<Payload> match) {
+		List<Payload> found = new ArrayList<Payload>();
+		synchronized (received) {
+			Iterator<Payload> iter = received.iterator();
+			while (iter.hasNext()) {
+				Payload p = iter.next();
+				if (match.test(p)) {
+					found.add(p);
+				}
+			}
+		}
+		return found;
+	}
+
+	/***
+	 * @return the session token the server gave us
+	 */
+	String awaitSessionToken() {
+		return await(p -> p.getPayloadType() == PayloadType.SESSION).getMessage();
+	}
+
+	/***
+	 * @return newest message offset we got
+	 */
+	long getLastOffset() {
+		long last = 0;
+		Iterator<Payload> iter = find(p -> p.getPayloadType() == PayloadType.MESSAGE).iterator();
+		while (iter.hasNext()) {
+			last = Math.max(last, iter.next().getOffset());
+		}
+		return last;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	static Predicate<Payload> chat(String message) {
+		return p -> p.getPayloadType() == PayloadType.MESSAGE && p.getMessage() != null
+				&& p.getMessage().trim().equals(message);
+	}
+
+	static Predicate<Payload> joined(String name) {
+		return p -> p.getPayloadType() == PayloadType.CONNECT && name.equals(p.getClientName());
+	}
+
+	static Predicate<Payload> joined(String name, String room) {
+		return p -> joined(name).test(p) && ("joined the room " + room).equals(p.getMessage());
+	}
+
+	static Predicate<Payload> left(String name) {
+		return p -> p.getPayloadType() == PayloadType.DISCONNECT && name.equals(p.getClientName());
+	}
+
+	/***
+	 * Drops the connection without saying DISCONNECT, like a client whose network
+	 * went away
+	 */
+	void drop() throws IOException {
+		socket.setSoLinger(true, 0);
+		socket.close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!socket.isClosed()) {
+			try {
+				send(PayloadType.DISCONNECT, null, null, 0);
+			} catch (IOException e) {
+			}
+			socket.close();
+		}
+	}
+}
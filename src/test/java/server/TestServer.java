@@ -0,0 +1,274 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * A SocketServer running in its own JVM, so tests get real connections and can
+ * run several cluster nodes side by side (a server keeps its state in statics).
+ * Its log goes to a file the test can wait on.
+ */
+class TestServer implements AutoCloseable {
+	private final static long START_TIMEOUT_MS = 15000;
+	private final static Set<Integer> usedPorts = new HashSet<Integer>();
+	final static String SECRET = "test-cluster-secret";
+	private final Process process;
+	private final Path log;
+	private final int port;
+	private int adminPort = 0;
+
+	private TestServer(Process process, Path log, int port) {
+		this.process = process;
+		this.log = log;
+		this.port = port;
+	}
+
+	/***
+	 * Starts a server and waits until it accepts clients
+	 *
+	 * @param dir  where its log goes
+	 * @param port
+	 * @param args options SocketServer.main() takes after the port
+	 * @return
+	 * @throws IOException
+	 */
+	static TestServer start(Path dir, int port, String... args) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.add("-cp");
+		command.add(System.getProperty("chat.classpath", System.getProperty("java.class.path")));
+		command.add("server.SocketServer");
+		command.add(String.valueOf(port));
+		command.addAll(Arrays.asList(args));
+		Path log = dir.resolve("server-" + port + ".log");
+		Process process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true)
+				.redirectOutput(log.toFile()).start();
+		TestServer server = new TestServer(process, log, port);
+		server.awaitListening();
+		return server;
+	}
+
+	/***
+	 * Starts the nodes of a cluster on localhost and waits until they're all
+	 * linked. Each keeps its history in its own directory and has an admin
+	 * endpoint.
+	 *
+	 * @param dir
+	 * @param count
+	 * @return the nodes
+	 * @throws IOException
+	 */
+	static List<TestServer> startCluster(Path dir, int count) throws IOException {
+		int[] ports = new int[count];
+		StringBuilder nodes = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			ports[i] = freePort();
+			nodes.append(i > 0 ? "," : "").append("localhost:").append(ports[i]);
+		}
+		List<TestServer> servers = new ArrayList<TestServer>();
+		try {
+			for (int port : ports) {
+				int adminPort = freePort();
+				TestServer server = start(dir, port, "--transport=selector", "--event-loops=2",
+						"--overflow=drop_oldest", "--capacity=1024", "--metrics-port=" + adminPort,
+						"--history=history-" + port, "--join-history=50", "--cluster=" + nodes,
+						"--cluster-secret=" + SECRET);
+				server.adminPort = adminPort;
+				servers.add(server);
+			}
+			for (TestServer server : servers) {
+				server.awaitLog("Linked to node", count - 1);
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			closeAll(servers);
+			throw e;
+		}
+		return servers;
+	}
+
+	/***
+	 * @param nodes
+	 * @param owner
+	 * @return a room name the consistent hashing gives to the owner
+	 */
+	static String roomOwnedBy(List<TestServer> nodes, TestServer owner) {
+		List<String> ids = new ArrayList<String>();
+		for (TestServer node : nodes) {
+			ids.add(node.getNodeId());
+		}
+		HashRing ring = new HashRing(ids);
+		for (int i = 0;; i++) {
+			String room = "room" + i;
+			if (owner.getNodeId().equals(ring.getOwner(SocketServer.roomKey(room)))) {
+				return room;
+			}
+		}
+	}
+
+	static void closeAll(List<? extends AutoCloseable> closeables) {
+		for (AutoCloseable closeable : closeables) {
+			try {
+				closeable.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	/***
+	 * @return a port that's free, and so is the cluster link port that goes with
+	 *         it
+	 * @throws IOException
+	 */
+	static synchronized int freePort() throws IOException {
+		while (true) {
+			int port;
+			try (ServerSocket socket = new ServerSocket(0)) {
+				port = socket.getLocalPort();
+			}
+			int linkPort = port + Cluster.LINK_PORT_OFFSET;
+			if (linkPort > 65535 || usedPorts.contains(port) || usedPorts.contains(linkPort)) {
+				continue;
+			}
+			try (ServerSocket socket = new ServerSocket(linkPort)) {
+				usedPorts.add(port);
+				usedPorts.add(linkPort);
+				return port;
+			} catch (IOException e) {
+				// taken, try another
+			}
+		}
+	}
+
+	/***
+	 * Asks the node, through its admin endpoint, to move a room to another node
+	 *
+	 * @param room
+	 * @param to
+	 * @return the node's answer
+	 * @throws IOException
+	 */
+	String moveRoom(String room, TestServer to) throws IOException {
+		HttpURLConnection connection = admin("POST", moveRoomPath(room, to), SECRET);
+		try (InputStream in = connection.getInputStream()) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	static String moveRoomPath(String room, TestServer to) {
+		return "/moveroom?room=" + URLEncoder.encode(room, StandardCharsets.UTF_8) + "&node=" + to.getNodeId();
+	}
+
+	/***
+	 * @param method
+	 * @param path
+	 * @param secret for the X-Admin-Secret header, null for none
+	 * @return the status the node's admin endpoint answered with
+	 * @throws IOException
+	 */
+	int adminStatus(String method, String path, String secret) throws IOException {
+		HttpURLConnection connection = admin(method, path, secret);
+		try {
+			return connection.getResponseCode();
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private HttpURLConnection admin(String method, String path, String secret) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + adminPort + path)
+				.openConnection();
+		connection.setRequestMethod(method);
+		if (secret != null) {
+			connection.setRequestProperty("X-Admin-Secret", secret);
+		}
+		return connection;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	String getNodeId() {
+		return "localhost:" + port;
+	}
+
+	private void awaitListening() throws IOException {
+		long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+		while (true) {
+			try (Socket socket = new Socket()) {
+				socket.connect(new InetSocketAddress("localhost", port), 200);
+				return;
+			} catch (IOException e) {
+				if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+					throw new IOException("Server on port " + port + " didn't start:\n" + getLog());
+				}
+				sleep(100);
+			}
+		}
+	}
+
+	/***
+	 * Waits until the log has the text in it count times
+	 *
+	 * @param text
+	 * @param count
+	 * @throws IOException
+	 */
+	void awaitLog(String text, int count) throws IOException {
+		long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+		while (count(getLog(), text) < count) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Server on port " + port + " never logged " + text + ":\n" + getLog());
+			}
+			sleep(100);
+		}
+	}
+
+	String getLog() throws IOException {
+		return new String(Files.readAllBytes(log), StandardCharsets.UTF_8);
+	}
+
+	private static int count(String haystack, String needle) {
+		int count = 0;
+		int from = 0;
+		while ((from = haystack.indexOf(needle, from)) >= 0) {
+			count++;
+			from += needle.length();
+		}
+		return count;
+	}
+
+	static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+		process.destroy();
+		if (!process.waitFor(5, TimeUnit.SECONDS)) {
+			process.destroyForcibly();
+		}
+	}
+}